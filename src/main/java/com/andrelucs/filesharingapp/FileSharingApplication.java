@@ -3,6 +3,7 @@ package com.andrelucs.filesharingapp;
 import atlantafx.base.theme.NordDark;
 import com.andrelucs.filesharingapp.communication.client.Client;
 import com.andrelucs.filesharingapp.communication.client.file.FileAction;
+import com.andrelucs.filesharingapp.communication.client.file.TrackedFiles;
 import com.andrelucs.filesharingapp.components.FolderSelectionAlert;
 import com.andrelucs.filesharingapp.components.ServerConnectionAlert;
 import com.andrelucs.filesharingapp.controllers.MainViewController;
@@ -166,6 +167,16 @@ public class FileSharingApplication extends Application {
         return sharingClient.getSharedFileNames();
     }
 
+    public static TrackedFiles.Snapshot getFilesSnapshot() {
+        if (sharingClient == null) return TrackedFiles.Snapshot.EMPTY;
+        return sharingClient.getFilesSnapshot();
+    }
+
+    public static String getSharedName(File file) {
+        if (sharingClient == null) return file.getName();
+        return sharingClient.getSharedName(file);
+    }
+
     public static void showNotification(String action, String fileName, Icon icon) {
         mainViewController.showNotification(action, fileName, icon.getPath());
     }
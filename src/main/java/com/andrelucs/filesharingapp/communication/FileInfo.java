@@ -2,14 +2,58 @@ package com.andrelucs.filesharingapp.communication;
 
 import java.io.File;
 
-public record FileInfo(String name, String owner, Long size){
+/**
+ * A file offered by an owner.
+ *
+ * @param hash the root of the file's hash tree, as a hex string, or <code>null</code> if it is not known
+ */
+public record FileInfo(String name, String owner, Long size, String hash){
+    private static final char HASH_SEPARATOR = ':';
+
     public FileInfo {
         if (owner == null || name == null || size == null) {
             throw new IllegalArgumentException("Owner, name and size must not be null");
         }
     }
 
+    public FileInfo(String name, String owner, Long size) {
+        this(name, owner, size, null);
+    }
+
     public File toFile(){
         return new File(name);
     }
+
+    /**
+     * @return the size field used by the protocol, "size" or "size:hash" when the hash is known
+     */
+    public String sizeField() {
+        return sizeField(size, hash);
+    }
+
+    /**
+     * @param hash the hash, may be <code>null</code>
+     * @return the size field used by the protocol, "size" or "size:hash" when the hash is known
+     */
+    public static String sizeField(long size, String hash) {
+        return hash == null ? Long.toString(size) : Long.toString(size) + HASH_SEPARATOR + hash;
+    }
+
+    /**
+     * @param sizeField a "size" or "size:hash" protocol field
+     * @throws NumberFormatException if the size is not a number
+     */
+    public static long sizeOf(String sizeField) {
+        int separator = sizeField.indexOf(HASH_SEPARATOR);
+        return Long.parseLong(separator < 0 ? sizeField : sizeField.substring(0, separator));
+    }
+
+    /**
+     * @param sizeField a "size" or "size:hash" protocol field
+     * @return the hash, or <code>null</code> if the field has none
+     */
+    public static String hashOf(String sizeField) {
+        int separator = sizeField.indexOf(HASH_SEPARATOR);
+        return separator < 0 || separator == sizeField.length() - 1 ? null : sizeField.substring(separator + 1);
+    }
 }
@@ -1,8 +1,14 @@
 package com.andrelucs.filesharingapp.communication;
 
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Enum representing the protocol commands used in the file sharing application.
- * Each command has a specific format and may require certain attributes.
+ * Each command has a specific format and may require certain attributes.<br/>
+ * Client -> Server requests may be prefixed with a correlation id ("#12 SEARCH abc"), in which case every
+ * response to that request carries the same prefix.
  */
 public enum ProtocolCommand {
     // Client -> Server Requests
@@ -21,21 +27,49 @@ public enum ProtocolCommand {
     /**
      * CREATEFILE command.<br/>
      * Format: CREATEFILE arg0 arg1<br/>
-     * Attributes: [0] - File name, [1] - File size
+     * Attributes: [0] - File name, [1] - File size, optionally followed by ":" and the root of its hash tree
      */
     CREATEFILE("CREATEFILE %s %s"),
+    /**
+     * CREATEFILES command, registers many files in one frame.<br/>
+     * Format: CREATEFILES arg0, followed by arg0 lines in the format "size name" or "size:hash name"<br/>
+     * Attributes: [0] - Number of files
+     */
+    CREATEFILES("CREATEFILES %s"),
     /**
      * DELETEFILE command.<br/>
      * Format: DELETEFILE arg0<br/>
      * Attributes: [0] - File name
      */
     DELETEFILE("DELETEFILE %s"),
+    /**
+     * DELETEFILES command, unregisters many files in one frame.<br/>
+     * Format: DELETEFILES arg0, followed by arg0 lines with a file name each<br/>
+     * Attributes: [0] - Number of files
+     */
+    DELETEFILES("DELETEFILES %s"),
     /**
      * SEARCH command.<br/>
      * Format: SEARCH arg0<br/>
-     * Attributes: [0] - Search pattern
+     * Attributes: [0] - Search pattern<br/>
+     * Answered with a FILE line for each of the first owners of each matching name.
      */
     SEARCH("SEARCH %s"),
+    /**
+     * SEARCHPAGE command, paged form of SEARCH.<br/>
+     * Format: SEARCHPAGE arg0 arg1 arg2<br/>
+     * Attributes: [0] - Cursor of the page, the one of the previous ENDSEARCH or "-" for the first page,
+     * [1] - Maximum number of file names, [2] - Search pattern (may contain spaces)<br/>
+     * Like SEARCH, only the first owners of each name are sent.
+     */
+    SEARCHPAGE("SEARCHPAGE %s %s %s"),
+    /**
+     * SEARCHGROUPS command, same as SEARCHPAGE but answered with FILEGROUP lines, which list every owner.<br/>
+     * Format: SEARCHGROUPS arg0 arg1 arg2<br/>
+     * Attributes: [0] - Cursor of the page, the one of the previous ENDSEARCH or "-" for the first page,
+     * [1] - Maximum number of file names, [2] - Search pattern (may contain spaces)
+     */
+    SEARCHGROUPS("SEARCHGROUPS %s %s %s"),
     // Server -> Client Responses
     /**
      * CONFIRMJOIN response.<br/>
@@ -61,22 +95,72 @@ public enum ProtocolCommand {
      * Attributes: [0] - File name
      */
     CONFIRMDELETEFILE("CONFIRMDELETEFILE %s"),
+    /**
+     * CONFIRMCREATEFILES response, acknowledges a whole CREATEFILES frame.<br/>
+     * Format: CONFIRMCREATEFILES arg0<br/>
+     * Attributes: [0] - Number of files registered
+     */
+    CONFIRMCREATEFILES("CONFIRMCREATEFILES %s"),
+    /**
+     * CONFIRMDELETEFILES response, acknowledges a whole DELETEFILES frame.<br/>
+     * Format: CONFIRMDELETEFILES arg0<br/>
+     * Attributes: [0] - Number of files unregistered
+     */
+    CONFIRMDELETEFILES("CONFIRMDELETEFILES %s"),
     /**
      * FILE response.<br/>
      * Format: FILE arg0 arg1 arg2<br/>
-     * Attributes: [0] - File name, [1] - File owner, [2] - File size
+     * Attributes: [0] - File name, [1] - File owner, [2] - File size, optionally followed by ":" and the root of its hash tree
      */
     FILE("FILE %s %s %s"),
+    /**
+     * FILEGROUP response, every owner of a file in a single line.<br/>
+     * Format: FILEGROUP arg0 arg1 arg2<br/>
+     * Attributes: [0] - File size, optionally followed by ":" and the root of its hash tree,
+     * [1] - Comma separated owners, preferred ones first, [2] - File name
+     */
+    FILEGROUP("FILEGROUP %s %s %s"),
+    /**
+     * ENDSEARCH response, sent after the FILE or FILEGROUP lines of a search request.<br/>
+     * Format: ENDSEARCH arg0 arg1<br/>
+     * Attributes: [0] - Cursor of the next page, "-" if there are no more results,
+     * [1] - Total number of matching file names, -1 in the pages after the first
+     */
+    ENDSEARCH("ENDSEARCH %s %s"),
 
     // Client -> Client Requests
     /**
      * GET command.<br/>
      * Format: GET arg0 arg1-arg2<br/>
-     * Attributes: [0] - File name, [1] - Start byte, [2] (Optional: "") - End byte
+     * Attributes: [0] - File name, [1] - Start byte, [2] (Optional: "") - End byte<br/>
+     * The bytes are 64-bit offsets, files can be larger than 2 GiB.
      */
     GET("GET %s %s-%s"),
+    /**
+     * GETRANGE command, GET for connections that are kept open for more requests.<br/>
+     * Format: GETRANGE arg0 arg1-arg2<br/>
+     * Attributes: [0] - File name, [1] - Start byte, [2] - End byte (exclusive)<br/>
+     * Answered with the number of bytes that follow as a long, or -1 if the file is not available.
+     */
+    GETRANGE("GETRANGE %s %s-%s"),
+    /**
+     * HASHES command, asks for the piece hashes of a file.<br/>
+     * Format: HASHES arg0<br/>
+     * Attributes: [0] - File name<br/>
+     * Answered with the number of pieces as an int followed by the SHA-256 hash of each piece,
+     * or -1 if the hashes are not available.
+     */
+    HASHES("HASHES %s"),
     ;
 
+    private static final char REQUEST_ID_MARK = '#';
+    /**
+     * The cursor of the first page of a search, and the one sent after its last page.
+     */
+    public static final String NO_SEARCH_CURSOR = "-";
+    // Encoded names never start with it, URLEncoder escapes it
+    private static final char SEARCH_CURSOR_MARK = '>';
+
     private final String template;
 
     ProtocolCommand(String template) {
@@ -87,6 +171,56 @@ public enum ProtocolCommand {
         return String.format(template, args);
     }
 
+    /**
+     * Prefixes a request or response line with a correlation id.
+     */
+    public static String withRequestId(int requestId, String line) {
+        return REQUEST_ID_MARK + Integer.toString(requestId) + " " + line;
+    }
+
+    /**
+     * @return the correlation id of the line, or -1 if it has none
+     */
+    public static int requestIdOf(String line) {
+        if (line.isEmpty() || line.charAt(0) != REQUEST_ID_MARK) return -1;
+        int end = line.indexOf(' ');
+        try {
+            return Integer.parseInt(line.substring(1, end < 0 ? line.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the line without its correlation id prefix
+     */
+    public static String stripRequestId(String line) {
+        if (requestIdOf(line) < 0) return line;
+        int end = line.indexOf(' ');
+        return end < 0 ? "" : line.substring(end + 1);
+    }
+
+    /**
+     * Makes the cursor of the search page that starts after a name, a single word whatever the name.
+     *
+     * @param lastName the last name of the previous page, <code>null</code> if there is no next page
+     */
+    public static String searchCursor(String lastName) {
+        return lastName == null ? NO_SEARCH_CURSOR : SEARCH_CURSOR_MARK + URLEncoder.encode(lastName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the name the search page of the cursor starts after, <code>null</code> for the first page
+     * @throws IllegalArgumentException if it is not a cursor
+     */
+    public static String nameAfterSearchCursor(String cursor) {
+        if (cursor.equals(NO_SEARCH_CURSOR)) return null;
+        if (cursor.isEmpty() || cursor.charAt(0) != SEARCH_CURSOR_MARK) {
+            throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+        }
+        return URLDecoder.decode(cursor.substring(1), StandardCharsets.UTF_8);
+    }
+
     public static ProtocolCommand fromString(String command) {
         try {
             return ProtocolCommand.valueOf(command);
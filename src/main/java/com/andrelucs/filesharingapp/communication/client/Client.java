@@ -1,37 +1,62 @@
 package com.andrelucs.filesharingapp.communication.client;
 
 import com.andrelucs.filesharingapp.communication.FileInfo;
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+import com.andrelucs.filesharingapp.communication.client.file.Download;
+import com.andrelucs.filesharingapp.communication.client.file.DownloadManager;
 import com.andrelucs.filesharingapp.communication.client.file.DownloadProgressListener;
+import com.andrelucs.filesharingapp.communication.client.file.DownloadQueueListener;
 import com.andrelucs.filesharingapp.communication.client.file.FileTracker;
 import com.andrelucs.filesharingapp.communication.client.file.FileTransferring;
+import com.andrelucs.filesharingapp.communication.client.file.HashTree;
+import com.andrelucs.filesharingapp.communication.client.file.TrackedFiles;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import static com.andrelucs.filesharingapp.communication.ProtocolCommand.*;
 
-public class Client implements Closeable, SearchEventListener {
+public class Client implements Closeable {
     private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
     private static final int SERVER_CONNECTION_PORT = 1234;
+    private static final int SEARCH_PAGE_SIZE = 100;
+    private static final int FILE_BATCH_SIZE = 1000;
+    // CREATEFILES and DELETEFILES frames sent and not confirmed yet, the next ones are queued until a confirmation
+    private static final int MAX_FILE_BATCHES_IN_FLIGHT = 4;
+    private static final long FILE_BATCH_TIMEOUT_SECONDS = 30;
 
     protected Socket socket;
     protected PrintWriter writer;
     protected BufferedReader reader;
-    protected boolean isConnected = false;
-    private final Object connectionLock = new Object();
+    protected volatile boolean isConnected = false;
 
     protected final ServerResponseHandler serverResponseHandler;
     private final List<FileInfo> searchFiles = new ArrayList<>();
     private final Map<String, Set<String>> searchFileOwners = new HashMap<>(); // The owners of each file
+    private String searchPattern;
+    private String nextSearchCursor; // null when there are no more pages
+    private boolean searchPageInFlight = false;
+    // Incremented by each new search, the pages of the searches it replaced are dropped
+    private long searchGeneration = 0;
+
+    // Requests sent with a correlation id, waiting for their responses
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final Map<Integer, PendingRequest<?>> pendingRequests = new ConcurrentHashMap<>();
+    // Frames waiting for one of the frames in flight to be confirmed, sent in order. Guarded by itself
+    private final Queue<FileBatch> queuedFileBatches = new ArrayDeque<>();
+    private int fileBatchesInFlight = 0;
 
     private final Thread responseReadingThread;
 
     private FileTracker folderTracker;
     protected FileTransferring fileTransferring = null;
     private Thread fileTransferringThread = null;
+    private DownloadManager downloadManager = null;
 
     public Client(String serverIp) throws IOException {
         this(serverIp, List.of());
@@ -48,7 +73,6 @@ public class Client implements Closeable, SearchEventListener {
         this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
 
         this.serverResponseHandler = new ServerResponseHandler(this);
-        this.serverResponseHandler.addSearchResultListener(this);
         this.responseReadingThread = new Thread(this::readResponses);
         this.responseReadingThread.setName("Response Reading");
         this.responseReadingThread.setDaemon(true);
@@ -95,8 +119,7 @@ public class Client implements Closeable, SearchEventListener {
 
     public void start() {
         responseReadingThread.start();
-        sendJoinRequest();
-        waitConnection();
+        join().join();
         if(getFileTracker() != null)
             getFileTracker().sendPendingFiles();
 
@@ -106,13 +129,17 @@ public class Client implements Closeable, SearchEventListener {
     @Override
     public void close() throws IOException {
         deleteAllFiles();
-        writer.println(LEAVE.format());
-        waitDisconnection();
+        try {
+            leave().get(2, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            LOGGER.warning("Leave was not confirmed: " + e);
+        }
         shutdown();
     }
 
     public void shutdown() throws IOException {
         if (fileTransferringThread != null) fileTransferringThread.interrupt();
+        if (downloadManager != null) downloadManager.close();
         responseReadingThread.interrupt();
         writer.close();
         reader.close();
@@ -122,7 +149,7 @@ public class Client implements Closeable, SearchEventListener {
     }
 
     private void deleteAllFiles() {
-        boolean hasSharedFiles = getFileTracker().getTrackedFiles().isEmpty();
+        boolean hasSharedFiles = getFileTracker() != null && getFileTracker().getTrackedFileCount() > 0;
         if (hasSharedFiles) {
             getFileTracker().deleteAllFiles();
         }
@@ -130,7 +157,7 @@ public class Client implements Closeable, SearchEventListener {
 
     // Requests
     public void sendJoinRequest() {
-        writer.println(JOIN.format(socket.getLocalAddress().getHostAddress()));
+        join();
     }
 
     public void sendCreateFileRequest(String fileName, long fileSize) {
@@ -141,10 +168,232 @@ public class Client implements Closeable, SearchEventListener {
         writer.println(DELETEFILE.format(fileName));
     }
 
-    public void sendSearchRequest(String pattern) {
-        writer.println(SEARCH.format(pattern));
+    // Pipelined requests, any number of them may be waiting for responses at the same time
+
+    /**
+     * Joins the network.
+     *
+     * @return a future completed when the server confirms the join
+     */
+    public CompletableFuture<Void> join() {
+        return sendRequest(PendingRequest.confirmation(CONFIRMJOIN, () -> setConnected(true)),
+                JOIN.format(socket.getLocalAddress().getHostAddress()));
+    }
+
+    /**
+     * Leaves the network, the server stops listing the files of this client.
+     *
+     * @return a future completed when the server confirms it
+     */
+    public CompletableFuture<Void> leave() {
+        return sendRequest(PendingRequest.confirmation(CONFIRMLEAVE, () -> setConnected(false)), LEAVE.format());
+    }
+
+    /**
+     * Searches one page of files, independently of any other search in progress.
+     *
+     * @param pattern the search pattern
+     * @param cursor  the {@link SearchPage#nextCursor() cursor} of the previous page, <code>null</code> for the first page
+     * @param limit   the maximum number of file names in the page
+     * @return a future completed with the page once all of it was received
+     */
+    public CompletableFuture<SearchPage> search(String pattern, String cursor, int limit) {
+        return sendRequest(PendingRequest.search(), SEARCHGROUPS.format(cursor == null ? NO_SEARCH_CURSOR : cursor, limit, pattern));
+    }
+
+    /**
+     * Registers many files at once, using CREATEFILES frames of up to {@value FILE_BATCH_SIZE} files.
+     * The files of each frame are marked as shared as soon as that frame is confirmed.
+     * At most {@value MAX_FILE_BATCHES_IN_FLIGHT} frames wait for their confirmation at a time, the others are
+     * queued and sent as the confirmations arrive, so the call never blocks, even on the thread reading responses.
+     *
+     * @param fileSizes the size of each file, by file name
+     * @return a future completed when every frame was confirmed
+     */
+    public CompletableFuture<Void> register(Map<String, Long> fileSizes) {
+        return register(fileSizes, Map.of());
+    }
+
+    /**
+     * Registers many files at once, advertising the root of their hash trees.
+     * Registering a file again replaces the previous registration, so this is also how the hashes
+     * of files already registered are advertised once they are computed.
+     *
+     * @param fileSizes the size of each file, by file name
+     * @param hashes    the root of the hash tree of each file, by file name, files without it are registered without hash
+     * @return a future completed when every frame was confirmed
+     */
+    public CompletableFuture<Void> register(Map<String, Long> fileSizes, Map<String, String> hashes) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(fileSizes.entrySet());
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int start = 0; start < entries.size(); start += FILE_BATCH_SIZE) {
+            List<Map.Entry<String, Long>> batch = entries.subList(start, Math.min(start + FILE_BATCH_SIZE, entries.size()));
+            List<String> fileNames = batch.stream().map(Map.Entry::getKey).toList();
+            StringBuilder frame = new StringBuilder(CREATEFILES.format(batch.size()));
+            batch.forEach(entry -> frame.append('\n')
+                    .append(FileInfo.sizeField(entry.getValue(), hashes.get(entry.getKey())))
+                    .append(' ').append(entry.getKey()));
+            batches.add(sendFileBatch(PendingRequest.confirmation(CONFIRMCREATEFILES, () -> confirmFilesSharing(fileNames)), frame.toString()));
+        }
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Unregisters many files at once, using DELETEFILES frames of up to {@value FILE_BATCH_SIZE} files.
+     * Like {@link #register(Map, Map)} it queues the frames while too many are not confirmed.
+     *
+     * @return a future completed when every frame was confirmed
+     */
+    public CompletableFuture<Void> unregister(List<String> fileNames) {
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int start = 0; start < fileNames.size(); start += FILE_BATCH_SIZE) {
+            List<String> batch = List.copyOf(fileNames.subList(start, Math.min(start + FILE_BATCH_SIZE, fileNames.size())));
+            StringBuilder frame = new StringBuilder(DELETEFILES.format(batch.size()));
+            batch.forEach(fileName -> frame.append('\n').append(fileName));
+            batches.add(sendFileBatch(PendingRequest.confirmation(CONFIRMDELETEFILES, () -> confirmUnsharedFiles(batch)), frame.toString()));
+        }
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new));
+    }
+
+    private record FileBatch(PendingRequest<Void> request, String frame, CompletableFuture<Void> confirmation) {
+    }
+
+    /**
+     * Queues a CREATEFILES or DELETEFILES frame, sent once fewer than {@value MAX_FILE_BATCHES_IN_FLIGHT} of them wait
+     * for their confirmation, so registering a whole tree does not flood the connection and the other requests.
+     * A frame not confirmed within {@value FILE_BATCH_TIMEOUT_SECONDS} seconds stops holding back the next ones.
+     *
+     * @return a future completed with the confirmation of the frame
+     */
+    private CompletableFuture<Void> sendFileBatch(PendingRequest<Void> request, String frame) {
+        CompletableFuture<Void> confirmation = new CompletableFuture<>();
+        synchronized (queuedFileBatches) {
+            queuedFileBatches.add(new FileBatch(request, frame, confirmation));
+            sendQueuedFileBatches();
+        }
+        return confirmation;
+    }
+
+    /**
+     * Sends the queued frames while there is room for them. Called again by each confirmation, on the thread
+     * reading the responses, so it must never wait.
+     */
+    private void sendQueuedFileBatches() {
+        synchronized (queuedFileBatches) {
+            // Sent holding the lock, so the frames keep the order of the calls (a file registered then unregistered)
+            while (fileBatchesInFlight < MAX_FILE_BATCHES_IN_FLIGHT && !queuedFileBatches.isEmpty()) {
+                FileBatch batch = queuedFileBatches.poll();
+                fileBatchesInFlight++;
+                CompletableFuture<Void> response = sendRequest(batch.request(), batch.frame());
+                response.copy().completeOnTimeout(null, FILE_BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .whenComplete((ignored, error) -> {
+                            if (!response.isDone()) LOGGER.warning("A file batch is not being confirmed, sending the next ones anyway");
+                            synchronized (queuedFileBatches) {
+                                fileBatchesInFlight--;
+                                sendQueuedFileBatches();
+                            }
+                        });
+                response.whenComplete((ignored, error) -> {
+                    if (error != null) batch.confirmation().completeExceptionally(error);
+                    else batch.confirmation().complete(null);
+                });
+            }
+        }
+    }
+
+    /**
+     * Sends a request tagged with a new correlation id.
+     *
+     * @param request the request waiting for the responses
+     * @param lines   the request, may have more than one line (batch frames)
+     */
+    private <T> CompletableFuture<T> sendRequest(PendingRequest<T> request, String lines) {
+        int requestId = requestIds.incrementAndGet();
+        pendingRequests.put(requestId, request);
+        // Written at once, so other requests can not end up between the lines of a frame
+        writer.print(withRequestId(requestId, lines) + '\n');
+        writer.flush();
+        if (writer.checkError()) {
+            pendingRequests.remove(requestId);
+            request.fail(new IOException("Could not send request to the server"));
+        }
+        return request.future();
+    }
+
+    void handleRequestResponse(int requestId, ProtocolCommand responseType, String response) {
+        PendingRequest<?> request = pendingRequests.get(requestId);
+        if (request == null) {
+            LOGGER.warning("Response to unknown request " + requestId + ": " + response);
+            return;
+        }
+        try {
+            if (request.onResponse(responseType, response)) pendingRequests.remove(requestId);
+        } catch (RuntimeException e) {
+            pendingRequests.remove(requestId);
+            request.fail(e);
+        }
+    }
+
+    private void failPendingRequests(IOException cause) {
+        pendingRequests.values().forEach(request -> request.fail(cause));
+        pendingRequests.clear();
+    }
+
+    /**
+     * Starts a new search, only the first page of results is requested.
+     * The pages of the search it replaces that are still being received are dropped.
+     *
+     * @return a future completed with the first page, cancelled if another search starts before it is received
+     * @see #requestNextSearchPage()
+     */
+    public synchronized CompletableFuture<SearchPage> sendSearchRequest(String pattern) {
         searchFiles.clear();
         searchFileOwners.clear();
+        searchPattern = pattern;
+        nextSearchCursor = null;
+        return requestSearchPage(null);
+    }
+
+    /**
+     * Requests the next page of the current search.
+     *
+     * @return a future completed with the page, cancelled if another search starts before it is received,
+     * or <code>null</code> if there are no more results or a page is still being received
+     */
+    public synchronized CompletableFuture<SearchPage> requestNextSearchPage() {
+        if (searchPageInFlight || nextSearchCursor == null) return null;
+        return requestSearchPage(nextSearchCursor);
+    }
+
+    private CompletableFuture<SearchPage> requestSearchPage(String cursor) {
+        long generation = ++searchGeneration;
+        searchPageInFlight = true;
+        CompletableFuture<SearchPage> result = new CompletableFuture<>();
+        search(searchPattern, cursor, SEARCH_PAGE_SIZE).whenComplete((page, error) -> {
+            // Completed while holding the lock, so a search started after the check never sees this page
+            synchronized (this) {
+                if (generation != searchGeneration) {
+                    result.cancel(false);
+                    return;
+                }
+                searchPageInFlight = false;
+                if (error != null) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                nextSearchCursor = page.nextCursor();
+                for (FileInfo file : page.files()) {
+                    searchFiles.add(file);
+                    searchFileOwners.computeIfAbsent(file.name(), name -> new LinkedHashSet<>()).add(file.owner());
+                }
+                result.complete(page);
+            }
+        });
+        return result;
+    }
+
+    public synchronized boolean hasMoreSearchResults() {
+        return nextSearchCursor != null;
     }
     //---
 
@@ -156,49 +405,50 @@ public class Client implements Closeable, SearchEventListener {
      * @throws IllegalStateException If the FileTransferring is not initialized
      */
     public void downloadFileFromOwners(String fileName, Set<String> owners) {
-        if (fileTransferring == null) {
+        downloadFile(findSearchFile(fileName), owners);
+    }
+
+    /**
+     * Adds a file found with {@link #sendSearchRequest(String)} to the download queue, it is shared once downloaded.
+     *
+     * @param fileName The name of the file
+     * @param owners   The owners to download from
+     * @return the queued download
+     * @throws IllegalStateException If the FileTransferring is not initialized
+     */
+    public Download queueDownload(String fileName, Set<String> owners) {
+        if (downloadManager == null) {
             throw new IllegalStateException("You must have a shared folder to download files.");
         }
-        System.out.println("Downloading file " + fileName + " from owners: " + owners);
-        FileInfo fileInfo = searchFiles.stream()
+        return downloadManager.enqueue(findSearchFile(fileName), owners, Download.Priority.NORMAL);
+    }
+
+    private synchronized FileInfo findSearchFile(String fileName) {
+        return searchFiles.stream()
                 .filter(file -> file.name().equals(fileName))
                 .findFirst()
                 .orElseThrow(() -> new IllegalArgumentException("File not found"));
-        File downloadedFile = fileTransferring.downloadFromMultipleOwners(fileInfo, owners);
-        shareFile(downloadedFile);
-    }
-
-    // Utility methods
-    private void waitConnection() {
-        synchronized (connectionLock) {
-            while (!isConnected) {
-                try {
-                    connectionLock.wait();
-                } catch (InterruptedException e) {
-                    LOGGER.warning("Connection wait interrupted");
-                }
-            }
-        }
     }
 
-    private void waitDisconnection() {
-        synchronized (connectionLock) {
-            long endTime = System.currentTimeMillis() + 2000;
-            while (isConnected && System.currentTimeMillis() < endTime) {
-                try {
-                    connectionLock.wait(2000);
-                } catch (InterruptedException e) {
-                    LOGGER.warning("Disconnection wait interrupted");
-                }
-            }
+    /**
+     * Download a file from multiple owners, for files found with {@link #sendSearchRequest(String)}.
+     *
+     * @param fileInfo The file to download
+     * @param owners   The owners to download from
+     * @throws IllegalStateException If the FileTransferring is not initialized
+     */
+    public void downloadFile(FileInfo fileInfo, Set<String> owners) {
+        if (fileTransferring == null) {
+            throw new IllegalStateException("You must have a shared folder to download files.");
         }
+        System.out.println("Downloading file " + fileInfo.name() + " from owners: " + owners);
+        File downloadedFile = fileTransferring.downloadFromMultipleOwners(fileInfo, owners);
+        shareFile(downloadedFile);
     }
 
+    // Utility methods
     protected void setConnected(boolean connected) {
-        synchronized (connectionLock) {
-            isConnected = connected;
-            connectionLock.notifyAll();
-        }
+        isConnected = connected;
     }
 
     private void readResponses() {
@@ -222,13 +472,7 @@ public class Client implements Closeable, SearchEventListener {
         } catch (IOException e) {
             LOGGER.warning("Exception reading responses: " + e.getMessage());
         }
-    }
-
-    @Override
-    public void onFileReceived(FileInfo file) {
-        searchFiles.add(file);
-        searchFileOwners.putIfAbsent(file.name(), new HashSet<>());
-        searchFileOwners.get(file.name()).add(file.owner());
+        failPendingRequests(new IOException("Connection to the server closed"));
     }
 
     // Public Api Methods
@@ -238,6 +482,18 @@ public class Client implements Closeable, SearchEventListener {
             throw new IllegalArgumentException("Invalid folder");
         }
 
+        // Created before the tracker, so the leftovers of interrupted downloads are gone before the folder is listed
+        if (this.fileTransferring == null && this.fileTransferringThread == null) {
+            this.fileTransferring = new FileTransferring(this, folder.toPath());
+            this.fileTransferringThread = new Thread(fileTransferring);
+            this.fileTransferringThread.setDaemon(true);
+            this.fileTransferringThread.setName("FileTransferring Thread");
+            if (isConnected) fileTransferringThread.start();
+            this.downloadManager = new DownloadManager(fileTransferring);
+            this.downloadManager.addDownloadQueueListener(download -> {
+                if (download.getStatus() == Download.Status.COMPLETED) shareFile(download.getDownloadedFile());
+            });
+        }
         FileTracker newTracker = new FileTracker(this, folder.toPath());
         if (folderTracker != null) {
             folderTracker.deleteAllFiles();
@@ -246,19 +502,15 @@ public class Client implements Closeable, SearchEventListener {
         }
         folderTracker = newTracker;
 
-        if (this.fileTransferring == null && this.fileTransferringThread == null) {
-            this.fileTransferring = new FileTransferring(this, folder.toPath());
-            this.fileTransferringThread = new Thread(fileTransferring);
-            this.fileTransferringThread.setDaemon(true);
-            this.fileTransferringThread.setName("FileTransferring Thread");
-            if (isConnected) fileTransferringThread.start();
-        }
         // if is connected then the user already started the client, so we can send the files
         if (isConnected) newTracker.sendPendingFiles();
     }
 
-    public Set<String> getFileOwners(String fileName) {
-        return new HashSet<>(searchFileOwners.get(fileName));
+    /**
+     * @return the owners of a file found with {@link #sendSearchRequest(String)}, empty if it was not found
+     */
+    public synchronized Set<String> getFileOwners(String fileName) {
+        return new LinkedHashSet<>(searchFileOwners.getOrDefault(fileName, Set.of()));
     }
 
 
@@ -266,11 +518,25 @@ public class Client implements Closeable, SearchEventListener {
         return folderTracker;
     }
 
+    /**
+     * @return the name a file of the shared folder is shared with, its path relative to the folder
+     */
+    public String getSharedName(File file) {
+        return folderTracker == null ? file.getName() : folderTracker.getSharedName(file);
+    }
+
     public List<File> getTrackedFiles() {
         if (folderTracker == null) return new ArrayList<>();
         return getFileTracker().getTrackedFiles();
     }
 
+    /**
+     * @return the tracked files and their sharing state, {@link TrackedFiles.Snapshot#EMPTY} without a shared folder
+     */
+    public TrackedFiles.Snapshot getFilesSnapshot() {
+        return folderTracker == null ? TrackedFiles.Snapshot.EMPTY : folderTracker.getSnapshot();
+    }
+
     public List<String> getSharedFileNames() {
         if (folderTracker == null) return new ArrayList<>();
         return getFileTracker().getSharedFileNames();
@@ -314,6 +580,18 @@ public class Client implements Closeable, SearchEventListener {
         }
     }
 
+    public void confirmFilesSharing(List<String> fileNames) {
+        if (folderTracker != null) {
+            folderTracker.confirmFilesSharing(fileNames);
+        }
+    }
+
+    public void confirmUnsharedFiles(List<String> fileNames) {
+        if (folderTracker != null) {
+            folderTracker.confirmUnsharedFiles(fileNames);
+        }
+    }
+
     public File getFile(String fileName) {
         File file;
         if ((file = folderTracker.getFile(fileName)) != null) {
@@ -322,10 +600,26 @@ public class Client implements Closeable, SearchEventListener {
         return null;
     }
 
+    /**
+     * @return the hash tree of a shared file, or <code>null</code> if it is not known yet
+     */
+    public HashTree getHashTree(String fileName) {
+        return folderTracker == null ? null : folderTracker.getHashTree(fileName);
+    }
+
     public FileTransferring getFileTransferring() {
         return fileTransferring;
     }
 
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    public void addDownloadQueueListener(DownloadQueueListener listener) throws IllegalStateException {
+        if (downloadManager == null) throw new IllegalStateException("DownloadManager not initialized");
+        downloadManager.addDownloadQueueListener(listener);
+    }
+
     public void addDownloadProgressListener(DownloadProgressListener listener) throws IllegalStateException {
         if (fileTransferring == null) throw new IllegalStateException("FileTransferring not initialized");
         fileTransferring.addDownloadProgressListener(listener);
@@ -0,0 +1,77 @@
+package com.andrelucs.filesharingapp.communication.client;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A request sent with a correlation id that is waiting for its responses.<br/>
+ * The responses tagged with the same id are handed to {@link #onResponse(ProtocolCommand, String)}
+ * until it reports the request as complete.
+ *
+ * @param <T> the type of the result
+ */
+abstract class PendingRequest<T> {
+    protected final CompletableFuture<T> future = new CompletableFuture<>();
+
+    /**
+     * @param type     the type of the response
+     * @param response the response line, without the correlation id
+     * @return true if the response completed the request
+     */
+    abstract boolean onResponse(ProtocolCommand type, String response);
+
+    CompletableFuture<T> future() {
+        return future;
+    }
+
+    void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+
+    /**
+     * A request completed by a single confirmation response.
+     *
+     * @param onConfirm run in the response reading thread before the future is completed
+     */
+    static PendingRequest<Void> confirmation(ProtocolCommand expectedResponse, Runnable onConfirm) {
+        return new PendingRequest<>() {
+            @Override
+            boolean onResponse(ProtocolCommand type, String response) {
+                if (type != expectedResponse) return false;
+                onConfirm.run();
+                future.complete(null);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A search request, collecting the FILE and FILEGROUP responses until ENDSEARCH.
+     */
+    static PendingRequest<SearchPage> search() {
+        return new PendingRequest<>() {
+            private final List<FileInfo> files = new ArrayList<>();
+
+            @Override
+            boolean onResponse(ProtocolCommand type, String response) {
+                switch (type) {
+                    case FILE -> files.add(ServerResponseHandler.parseFile(response));
+                    case FILEGROUP -> files.addAll(ServerResponseHandler.parseFileGroup(response));
+                    case ENDSEARCH -> {
+                        String[] parts = response.split(" ");
+                        String nextCursor = parts[1].equals(ProtocolCommand.NO_SEARCH_CURSOR) ? null : parts[1];
+                        future.complete(new SearchPage(List.copyOf(files), nextCursor, Integer.parseInt(parts[2])));
+                        return true;
+                    }
+                    case null, default -> {
+                    }
+                }
+                return false;
+            }
+        };
+    }
+}
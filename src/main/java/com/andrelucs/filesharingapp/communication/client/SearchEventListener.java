@@ -3,7 +3,29 @@ package com.andrelucs.filesharingapp.communication.client;
 import com.andrelucs.filesharingapp.communication.FileInfo;
 
 import java.util.EventListener;
+import java.util.List;
 
 public interface SearchEventListener extends EventListener {
     void onFileReceived(FileInfo file);
+
+    /**
+     * Called when the server sends every owner of a file at once.<br/>
+     * By default each owner is handed to {@link #onFileReceived(FileInfo)}, listeners that do not need
+     * one call per owner should override it.
+     *
+     * @param file   the file, as offered by its first owner
+     * @param owners the owners of the file, in the server's order of preference
+     */
+    default void onFileGroupReceived(FileInfo file, List<String> owners) {
+        owners.forEach(owner -> onFileReceived(new FileInfo(file.name(), owner, file.size(), file.hash())));
+    }
+
+    /**
+     * Called after the last file of a search page was received.
+     *
+     * @param nextCursor   the cursor of the next page, <code>null</code> if there are no more results
+     * @param totalResults the total number of matching file names, -1 in the pages after the first
+     */
+    default void onSearchPageEnd(String nextCursor, int totalResults) {
+    }
 }
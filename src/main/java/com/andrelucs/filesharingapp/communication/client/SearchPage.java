@@ -0,0 +1,30 @@
+package com.andrelucs.filesharingapp.communication.client;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A page of search results returned by {@link Client#search(String, String, int)}.
+ *
+ * @param files        the files in the page, one entry for each owner, preferred owners first
+ * @param nextCursor   the cursor of the next page, <code>null</code> if this is the last one
+ * @param totalResults the total number of matching file names, only counted in the first page, -1 in the others
+ */
+public record SearchPage(List<FileInfo> files, String nextCursor, int totalResults) {
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+
+    /**
+     * @return the owners of the file in this page, in order of preference
+     */
+    public Set<String> owners(String fileName) {
+        Set<String> owners = new LinkedHashSet<>();
+        files.stream().filter(file -> file.name().equals(fileName)).forEach(file -> owners.add(file.owner()));
+        return owners;
+    }
+}
@@ -19,6 +19,18 @@ public class ServerResponseHandler {
 
     public void handleResponse(String response) {
         System.out.println("Response: " + response);
+        int requestId = ProtocolCommand.requestIdOf(response);
+        if (requestId >= 0) {
+            // Responses to a pipelined request only go to that request
+            String untaggedResponse = ProtocolCommand.stripRequestId(response);
+            var responseType = ProtocolCommand.fromString(untaggedResponse.split(" ", 2)[0]);
+            try {
+                client.handleRequestResponse(requestId, responseType, untaggedResponse);
+            } catch (RuntimeException e) {
+                System.out.println("Error handling response " + response + ": " + e.getMessage());
+            }
+            return;
+        }
         var parts = response.split(" ");
         var responseType = ProtocolCommand.fromString(parts[0]);
         String filename = null;
@@ -30,23 +42,69 @@ public class ServerResponseHandler {
             case CONFIRMLEAVE -> client.setConnected(false);
             case CONFIRMCREATEFILE -> client.confirmFileSharing(filename);
             case CONFIRMDELETEFILE -> client.confirmUnsharedFile(filename);
-            case FILE -> fileRequestHandler(parts);
+            case FILE -> fileRequestHandler(response);
+            case FILEGROUP -> fileGroupHandler(response);
+            case ENDSEARCH -> endSearchHandler(parts);
             case null, default -> System.out.println("Unknown response: " + response);
         }
     }
 
-    private void fileRequestHandler(String[] parts) {
+    private void fileRequestHandler(String response) {
         try {
-            String fileName = Arrays.asList(parts).subList(1, parts.length - 2).stream().reduce((a, b) -> a + " " + b).orElse("");
-            String fileOwner = parts[parts.length - 2];
-            long fileSize = Long.parseLong(parts[parts.length - 1]);
-            FileInfo file = new FileInfo(fileName, fileOwner, fileSize);
+            FileInfo file = parseFile(response);
             searchResultListeners.forEach(listener -> listener.onFileReceived(file));
         } catch (NumberFormatException e) {
             System.out.println("Error parsing file size: " + e.getMessage());
         }
     }
 
+    private void fileGroupHandler(String response) {
+        // FILEGROUP size owners name, the name is last so it may contain spaces
+        String[] parts = response.split(" ", 4);
+        try {
+            List<String> owners = List.of(parts[2].split(","));
+            FileInfo file = new FileInfo(parts[3], owners.getFirst(), FileInfo.sizeOf(parts[1]), FileInfo.hashOf(parts[1]));
+            searchResultListeners.forEach(listener -> listener.onFileGroupReceived(file, owners));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Error parsing file group: " + e.getMessage());
+        }
+    }
+
+    private void endSearchHandler(String[] parts) {
+        try {
+            String nextCursor = parts[1].equals(ProtocolCommand.NO_SEARCH_CURSOR) ? null : parts[1];
+            int totalResults = Integer.parseInt(parts[2]);
+            searchResultListeners.forEach(listener -> listener.onSearchPageEnd(nextCursor, totalResults));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Error parsing search end: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a "FILE name owner size" response.
+     *
+     * @throws NumberFormatException if the size is not a number
+     */
+    static FileInfo parseFile(String response) {
+        String[] parts = response.split(" ");
+        String fileName = Arrays.asList(parts).subList(1, parts.length - 2).stream().reduce((a, b) -> a + " " + b).orElse("");
+        String fileOwner = parts[parts.length - 2];
+        String sizeField = parts[parts.length - 1];
+        return new FileInfo(fileName, fileOwner, FileInfo.sizeOf(sizeField), FileInfo.hashOf(sizeField));
+    }
+
+    /**
+     * Parses a "FILEGROUP size owners name" response into one entry for each owner.
+     *
+     * @throws NumberFormatException if the size is not a number
+     */
+    static List<FileInfo> parseFileGroup(String response) {
+        String[] parts = response.split(" ", 4);
+        long fileSize = FileInfo.sizeOf(parts[1]);
+        String hash = FileInfo.hashOf(parts[1]);
+        return Arrays.stream(parts[2].split(",")).map(owner -> new FileInfo(parts[3], owner, fileSize, hash)).toList();
+    }
+
     public void addSearchResultListener(SearchEventListener listener) {
         searchResultListeners.add(listener);
     }
@@ -54,4 +112,4 @@ public class ServerResponseHandler {
     public void removeSearchResultListener(SearchEventListener listener) {
         searchResultListeners.remove(listener);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,192 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limits for the upload bandwidth, one for all uploads and one for each peer.<br/>
+ * The limits may be changed at any time and also apply to the uploads already running, from their next chunk.
+ * The rates actually achieved are measured whether there is a limit or not, from the bytes each write reports
+ * with {@link #recordSent(String, long, long)}, not from the ones acquired before it.
+ */
+public class BandwidthLimiter {
+    public static final long UNLIMITED = 0;
+    // A peer without traffic for this long is forgotten
+    // Also how long TransferStatistics keeps an idle peer, so both list the same peers
+    static final long PEER_EXPIRATION_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Bucket global = new Bucket(UNLIMITED);
+    private final Map<String, Bucket> peers = new ConcurrentHashMap<>();
+    private volatile long peerLimit = UNLIMITED;
+
+    /**
+     * Waits until the bytes may be sent to the peer without going over the limits.
+     *
+     * @param peer  the address of the peer
+     * @param bytes the number of bytes about to be sent
+     */
+    public void acquire(String peer, long bytes) throws InterruptedException {
+        long waitNanos = Math.max(global.reserve(bytes), peerBucket(peer).reserve(bytes));
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Counts the bytes a write sent to the peer. A write may send less than was acquired for it, the tokens of the
+     * bytes it did not send are given back, those bytes are acquired again before they are sent.
+     *
+     * @param acquired the number of bytes acquired before the write
+     * @param sent     the number of bytes the write sent
+     */
+    public void recordSent(String peer, long acquired, long sent) {
+        global.sent(acquired, sent);
+        peerBucket(peer).sent(acquired, sent);
+    }
+
+    private Bucket peerBucket(String peer) {
+        return peers.computeIfAbsent(peer, address -> new Bucket(peerLimit));
+    }
+
+    /**
+     * @return true if there is any limit, so the uploads should be sent in small chunks
+     */
+    public boolean isLimited() {
+        return global.getLimit() != UNLIMITED || peerLimit != UNLIMITED;
+    }
+
+    /**
+     * @param bytesPerSecond the limit for all uploads together, or {@link #UNLIMITED}
+     */
+    public void setGlobalLimit(long bytesPerSecond) {
+        global.setLimit(bytesPerSecond);
+    }
+
+    public long getGlobalLimit() {
+        return global.getLimit();
+    }
+
+    /**
+     * @param bytesPerSecond the limit for the uploads to each peer, or {@link #UNLIMITED}
+     */
+    public void setPeerLimit(long bytesPerSecond) {
+        peerLimit = bytesPerSecond;
+        peers.values().forEach(bucket -> bucket.setLimit(bytesPerSecond));
+    }
+
+    public long getPeerLimit() {
+        return peerLimit;
+    }
+
+    /**
+     * @return the bytes per second sent to all peers during the last second
+     */
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    /**
+     * @return the bytes per second sent to each peer during the last second
+     */
+    public Map<String, Long> getPeerRates() {
+        long now = System.nanoTime();
+        peers.entrySet().removeIf(entry -> now - entry.getValue().getLastUse() > PEER_EXPIRATION_NANOS);
+        Map<String, Long> rates = new HashMap<>();
+        peers.forEach((peer, bucket) -> rates.put(peer, bucket.getRate()));
+        return rates;
+    }
+
+    /**
+     * A token bucket that also measures the rate of the bytes going through it.
+     */
+    private static class Bucket {
+        // How many seconds of traffic may be sent at once after a pause
+        private static final double BURST_SECONDS = 0.25;
+        private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private long limit;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+        private long lastUse = System.nanoTime();
+
+        private long windowStart = System.nanoTime();
+        private long windowBytes = 0;
+        private long rate = 0;
+
+        private Bucket(long limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Takes the tokens for the bytes, going into debt if there are not enough.
+         *
+         * @return how long the caller must wait before sending the bytes, in nanoseconds
+         */
+        synchronized long reserve(long bytes) {
+            long now = System.nanoTime();
+            lastUse = now;
+            refill(now);
+            if (limit == UNLIMITED) return 0;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / limit);
+        }
+
+        /**
+         * Measures the bytes that were sent and gives back the tokens of the ones that were reserved but not sent.
+         */
+        synchronized void sent(long reserved, long sent) {
+            long now = System.nanoTime();
+            lastUse = now;
+            updateRate(now);
+            windowBytes += Math.max(0, sent);
+            if (limit != UNLIMITED && reserved > sent) {
+                refill(now);
+                tokens = Math.min(limit * BURST_SECONDS, tokens + reserved - Math.max(0, sent));
+            }
+        }
+
+        private void refill(long now) {
+            if (limit != UNLIMITED) {
+                tokens = Math.min(limit * BURST_SECONDS, tokens + (double) (now - lastRefill) * limit / TimeUnit.SECONDS.toNanos(1));
+            }
+            lastRefill = now;
+        }
+
+        private void updateRate(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                rate = windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        synchronized void setLimit(long limit) {
+            long now = System.nanoTime();
+            refill(now);
+            this.limit = Math.max(limit, UNLIMITED);
+            if (this.limit != UNLIMITED) {
+                tokens = Math.min(tokens, this.limit * BURST_SECONDS);
+            } else {
+                tokens = 0;
+            }
+        }
+
+        synchronized long getLimit() {
+            return limit;
+        }
+
+        synchronized long getRate() {
+            long now = System.nanoTime();
+            updateRate(now);
+            // No traffic during the whole last window
+            return now - lastUse > 2 * RATE_WINDOW_NANOS ? 0 : rate;
+        }
+
+        synchronized long getLastUse() {
+            return lastUse;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * A download in the queue of a {@link DownloadManager}.
+ */
+public class Download {
+    public enum Status {
+        QUEUED,
+        ACTIVE,
+        PAUSED,
+        COMPLETED,
+        FAILED
+    }
+
+    /**
+     * Queued downloads start by priority, then by their position in the queue.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final FileInfo fileInfo;
+    private final Set<String> owners;
+    private volatile Priority priority;
+    private volatile Status status = Status.QUEUED;
+    private volatile boolean pauseRequested = false;
+    private volatile File downloadedFile;
+    private volatile Throwable error;
+
+    Download(FileInfo fileInfo, Set<String> owners, Priority priority) {
+        this.fileInfo = fileInfo;
+        this.owners = Set.copyOf(owners);
+        this.priority = priority;
+    }
+
+    public FileInfo getFileInfo() {
+        return fileInfo;
+    }
+
+    public Set<String> getOwners() {
+        return owners;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * @return true if the download was asked to pause, but it is still finishing the pieces in progress
+     */
+    public boolean isPauseRequested() {
+        return pauseRequested;
+    }
+
+    void setPauseRequested(boolean pauseRequested) {
+        this.pauseRequested = pauseRequested;
+    }
+
+    /**
+     * @return the downloaded file, once the download is complete
+     */
+    public File getDownloadedFile() {
+        return downloadedFile;
+    }
+
+    void setDownloadedFile(File downloadedFile) {
+        this.downloadedFile = downloadedFile;
+    }
+
+    /**
+     * @return why the download failed, if it did
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    void setError(Throwable error) {
+        this.error = error;
+    }
+}
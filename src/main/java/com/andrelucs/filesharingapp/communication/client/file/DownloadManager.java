@@ -0,0 +1,220 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of downloads, running at most a few of them at the same time.<br/>
+ * Queued downloads start by priority and then by their position in the queue, both may be changed while they wait.
+ * Pausing an active download stops it after the pieces in progress, its progress is kept so resuming it only
+ * downloads the missing pieces.
+ */
+public class DownloadManager implements Closeable {
+    public static final int DEFAULT_MAX_ACTIVE_DOWNLOADS = 2;
+    private static final Logger logger = Logger.getLogger(DownloadManager.class.getName());
+
+    private final FileTransferring fileTransferring;
+    // In queue order
+    private final List<Download> downloads = new ArrayList<>();
+    private final List<DownloadQueueListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor;
+    private int maxActiveDownloads = DEFAULT_MAX_ACTIVE_DOWNLOADS;
+    private int activeDownloads = 0;
+
+    public DownloadManager(FileTransferring fileTransferring) {
+        this.fileTransferring = fileTransferring;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Download-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a download at the end of the queue, it starts as soon as there is room for it.
+     */
+    public Download enqueue(FileInfo fileInfo, Set<String> owners, Download.Priority priority) {
+        Download download = new Download(fileInfo, owners, priority);
+        synchronized (this) {
+            downloads.add(download);
+        }
+        notifyChanged(download);
+        startDownloads();
+        return download;
+    }
+
+    /**
+     * Pauses a queued or active download. An active download becomes paused once its pieces in progress are done.
+     */
+    public void pause(Download download) {
+        synchronized (this) {
+            switch (download.getStatus()) {
+                case QUEUED -> download.setStatus(Download.Status.PAUSED);
+                case ACTIVE -> download.setPauseRequested(true);
+                default -> {
+                    return;
+                }
+            }
+        }
+        notifyChanged(download);
+    }
+
+    /**
+     * Puts a paused or failed download back in the queue.
+     */
+    public void resume(Download download) {
+        synchronized (this) {
+            switch (download.getStatus()) {
+                case PAUSED, FAILED -> {
+                    download.setError(null);
+                    download.setStatus(Download.Status.QUEUED);
+                }
+                case ACTIVE -> download.setPauseRequested(false);
+                default -> {
+                    return;
+                }
+            }
+        }
+        notifyChanged(download);
+        startDownloads();
+    }
+
+    /**
+     * Changes the priority of a download that is not complete yet.
+     */
+    public void setPriority(Download download, Download.Priority priority) {
+        synchronized (this) {
+            if (download.getStatus() == Download.Status.COMPLETED || download.getPriority() == priority) return;
+            download.setPriority(priority);
+        }
+        notifyChanged(download);
+        startDownloads();
+    }
+
+    /**
+     * Moves a download that is not complete yet to another position of the queue.
+     */
+    public void moveTo(Download download, int position) {
+        synchronized (this) {
+            if (download.getStatus() == Download.Status.COMPLETED || !downloads.remove(download)) return;
+            downloads.add(Math.clamp(position, 0, downloads.size()), download);
+        }
+        notifyChanged(download);
+        startDownloads();
+    }
+
+    /**
+     * Changes how many downloads run at the same time, the active ones over the new limit are not stopped.
+     */
+    public void setMaxActiveDownloads(int maxActiveDownloads) {
+        synchronized (this) {
+            this.maxActiveDownloads = Math.max(1, maxActiveDownloads);
+        }
+        startDownloads();
+    }
+
+    public synchronized int getMaxActiveDownloads() {
+        return maxActiveDownloads;
+    }
+
+    /**
+     * Removes the completed and failed downloads from the queue.
+     */
+    public synchronized void clearFinished() {
+        downloads.removeIf(download -> download.getStatus() == Download.Status.COMPLETED
+                || download.getStatus() == Download.Status.FAILED);
+    }
+
+    /**
+     * @return the downloads, in queue order
+     */
+    public synchronized List<Download> getDownloads() {
+        return new ArrayList<>(downloads);
+    }
+
+    private void startDownloads() {
+        List<Download> started = new ArrayList<>();
+        synchronized (this) {
+            while (activeDownloads < maxActiveDownloads) {
+                // Stable, so downloads of the same priority keep their queue order
+                Download next = downloads.stream()
+                        .filter(download -> download.getStatus() == Download.Status.QUEUED)
+                        .min(Comparator.comparing(Download::getPriority))
+                        .orElse(null);
+                if (next == null) break;
+                next.setStatus(Download.Status.ACTIVE);
+                next.setPauseRequested(false);
+                activeDownloads++;
+                started.add(next);
+            }
+        }
+        for (Download download : started) {
+            notifyChanged(download);
+            executor.execute(() -> run(download));
+        }
+    }
+
+    private void run(Download download) {
+        Download.Status status;
+        try {
+            File file = fileTransferring.downloadFromMultipleOwners(download.getFileInfo(), download.getOwners(), download::isPauseRequested);
+            download.setDownloadedFile(file);
+            status = Download.Status.COMPLETED;
+        } catch (CancellationException e) {
+            status = Download.Status.PAUSED;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Download of " + download.getFileInfo().name() + " failed", e);
+            download.setError(e);
+            status = Download.Status.FAILED;
+        }
+        synchronized (this) {
+            // Resumed again before it had stopped
+            if (status == Download.Status.PAUSED && !download.isPauseRequested()) status = Download.Status.QUEUED;
+            download.setStatus(status);
+            download.setPauseRequested(false);
+            activeDownloads--;
+        }
+        notifyChanged(download);
+        startDownloads();
+    }
+
+    private void notifyChanged(Download download) {
+        listeners.forEach(listener -> listener.onDownloadChanged(download));
+    }
+
+    public void addDownloadQueueListener(DownloadQueueListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeDownloadQueueListener(DownloadQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Pauses the active downloads, so they can be resumed later from what was already downloaded.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            downloads.stream()
+                    .filter(download -> download.getStatus() == Download.Status.ACTIVE)
+                    .forEach(download -> download.setPauseRequested(true));
+            maxActiveDownloads = 0;
+        }
+        executor.shutdown();
+    }
+}
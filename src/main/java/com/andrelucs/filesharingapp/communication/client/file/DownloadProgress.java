@@ -0,0 +1,32 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.util.Map;
+
+/**
+ * What a download had done when it was last published by the {@link ProgressReporter}.
+ *
+ * @param downloadedBytes bytes of the file already written, the ones of a piece that failed its hash are not counted
+ * @param bytesPerSecond  recent download rate
+ * @param etaSeconds      estimated seconds left at the recent rate, -1 while it is not known
+ * @param owners          what was received from each owner, in the order they started
+ * @param finished        true in the last snapshot of the download, whether it completed, failed or stopped
+ */
+public record DownloadProgress(FileInfo file, long downloadedBytes, double bytesPerSecond, long etaSeconds,
+                               Map<String, OwnerProgress> owners, boolean finished) {
+
+    /**
+     * @param receivedBytes  bytes received from the owner in this download
+     * @param bytesPerSecond recent rate of the owner
+     */
+    public record OwnerProgress(long receivedBytes, double bytesPerSecond) {
+    }
+
+    /**
+     * @return the downloaded part of the file, from 0 to 100
+     */
+    public float percent() {
+        return file.size() == 0 ? 100 : (float) downloadedBytes / file.size() * 100;
+    }
+}
@@ -1,7 +1,8 @@
 package com.andrelucs.filesharingapp.communication.client.file;
 
-import com.andrelucs.filesharingapp.communication.FileInfo;
-
 public interface DownloadProgressListener {
-    void onProgressUpdate(FileInfo fileName, float progress);
+    /**
+     * Called from the thread of the {@link ProgressReporter}, a few times per second for each active download.
+     */
+    void onProgressUpdate(DownloadProgress progress);
 }
@@ -0,0 +1,8 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+public interface DownloadQueueListener {
+    /**
+     * Called when a download is added to the queue or its status, priority or position changes.
+     */
+    void onDownloadChanged(Download download);
+}
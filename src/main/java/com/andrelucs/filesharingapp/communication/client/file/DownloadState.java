@@ -0,0 +1,115 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Progress of a download, saved in a state file next to its partial file so an interrupted download
+ * continues from the pieces it already has.<br/>
+ * The state file holds the file name, its size, its hash, the piece size and the bitmap of the completed pieces.
+ */
+public class DownloadState {
+    private static final Logger logger = Logger.getLogger(DownloadState.class.getName());
+    private static final long SAVE_INTERVAL_MILLIS = 1000;
+
+    private final Path stateFile;
+    private final String fileName;
+    private final long fileSize;
+    private final String fileHash;
+    private final BitSet completedPieces;
+    private long lastSave = System.currentTimeMillis();
+
+    private DownloadState(Path stateFile, String fileName, long fileSize, String fileHash, BitSet completedPieces) {
+        this.stateFile = stateFile;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.fileHash = fileHash;
+        this.completedPieces = completedPieces;
+    }
+
+    /**
+     * Loads the state of a previous download of the file, if the state file is missing or belongs to
+     * another version of the file (other size or hash) the download starts from scratch.
+     *
+     * @param stateFile   the state file of the download
+     * @param partialFile the file where the pieces were written
+     */
+    public static DownloadState load(Path stateFile, Path partialFile, FileInfo fileInfo) {
+        if (Files.exists(stateFile) && Files.exists(partialFile)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+                String fileName = input.readUTF();
+                long fileSize = input.readLong();
+                String fileHash = input.readUTF();
+                int pieceSize = input.readInt();
+                int bitmapLength = input.readInt();
+                // Saved without its trailing empty bytes, so it may be shorter than a bit for each piece
+                if (bitmapLength < 0 || bitmapLength > (PieceScheduler.pieceCount(fileInfo.size()) + 7) / 8) {
+                    throw new IOException("Invalid piece bitmap length " + bitmapLength);
+                }
+                byte[] bitmap = new byte[bitmapLength];
+                input.readFully(bitmap);
+                if (fileName.equals(fileInfo.name()) && fileSize == fileInfo.size() && fileHash.equals(hashField(fileInfo.hash()))
+                        && pieceSize == PieceScheduler.PIECE_SIZE && Files.size(partialFile) == fileSize) {
+                    return new DownloadState(stateFile, fileName, fileSize, fileInfo.hash(), BitSet.valueOf(bitmap));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read the download state " + stateFile + ", starting over", e);
+            }
+        }
+        return new DownloadState(stateFile, fileInfo.name(), fileInfo.size(), fileInfo.hash(), new BitSet());
+    }
+
+    // Files without a known hash are saved with an empty one
+    private static String hashField(String fileHash) {
+        return fileHash == null ? "" : fileHash;
+    }
+
+    /**
+     * Marks a piece as downloaded.
+     *
+     * @return true if it has been long enough since the last save that the caller should save the state
+     */
+    public synchronized boolean markCompleted(int piece) {
+        completedPieces.set(piece);
+        long now = System.currentTimeMillis();
+        if (now - lastSave >= SAVE_INTERVAL_MILLIS) {
+            lastSave = now;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized BitSet completedPieces() {
+        return (BitSet) completedPieces.clone();
+    }
+
+    /**
+     * Writes the state to a temporary file and moves it over the previous one,
+     * so an exit in the middle of a save never leaves a broken state file.
+     */
+    public synchronized void save() throws IOException {
+        Path temporaryFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            byte[] bitmap = completedPieces.toByteArray();
+            output.writeUTF(fileName);
+            output.writeLong(fileSize);
+            output.writeUTF(hashField(fileHash));
+            output.writeInt(PieceScheduler.PIECE_SIZE);
+            output.writeInt(bitmap.length);
+            output.write(bitmap);
+        }
+        Files.move(temporaryFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.currentTimeMillis();
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(stateFile);
+    }
+}
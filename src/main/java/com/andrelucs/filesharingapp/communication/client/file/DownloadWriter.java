@@ -0,0 +1,91 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the ranges of a download straight into the target file, each one at its own offset.<br/>
+ * The file is preallocated with its final size, so the range workers write concurrently through the same
+ * {@link FileChannel} with positional writes, without temporary files to merge at the end.
+ */
+public class DownloadWriter implements Closeable {
+    // Files with a part mapped can not be moved there, the complete downloads must be
+    private static final boolean MAPPING_LOCKS_FILES = System.getProperty("os.name", "").startsWith("Windows");
+
+    protected final FileChannel channel;
+    protected final long size;
+
+    public DownloadWriter(Path target, long size) throws IOException {
+        this.size = size;
+        this.channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > size) {
+            channel.truncate(size);
+        } else if (channel.size() < size) {
+            // Writing the last byte extends the file to its final size
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /**
+     * Opens a writer for the target file.
+     *
+     * @param memoryMapped true to write through {@link MappedDownloadWriter memory-mapped windows} of the file,
+     *                     ignored on Windows where the windows would keep the file from being moved
+     */
+    public static DownloadWriter open(Path target, long size, boolean memoryMapped) throws IOException {
+        return memoryMapped && !MAPPING_LOCKS_FILES ? new MappedDownloadWriter(target, size) : new DownloadWriter(target, size);
+    }
+
+    /**
+     * Writes all the remaining bytes of the buffer at the given position of the file.
+     *
+     * @throws IOException if the data does not fit in the file
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        checkRange("Write", data, position);
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Reads bytes already written, from the given position until the buffer is full.
+     *
+     * @throws IOException if the range is outside the file
+     */
+    public void read(ByteBuffer data, long position) throws IOException {
+        checkRange("Read", data, position);
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) throw new EOFException("End of file at " + position);
+            position += read;
+        }
+    }
+
+    /**
+     * Makes sure the written bytes are on the storage device, before the pieces are recorded as complete.
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    protected void checkRange(String operation, ByteBuffer data, long position) throws IOException {
+        if (position < 0 || position > size - data.remaining()) {
+            throw new IOException(operation + " of " + data.remaining() + " bytes at " + position + " is outside the file");
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -5,54 +5,112 @@ import com.andrelucs.filesharingapp.communication.client.Client;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Tracks the files of a shared folder and of all its subfolders, and keeps the server up to date with them.<br/>
+ * Files are shared under their path relative to the shared folder, with '/' between the folder names.
+ * Every subfolder has its own watch key, a folder that appears is watched and read as soon as it is seen.
+ */
 public class FileTracker implements Closeable {
+    private static final Logger logger = Logger.getLogger(FileTracker.class.getName());
+    // How long a changed file must stay the same before the change is sent
+    private static final long SETTLE_MILLIS = 1_000;
+    private static final long SETTLE_CHECK_MILLIS = 250;
+    private static final long INDEX_SAVE_MILLIS = 5_000;
+    private static final String INDEX_FILE = "shared-files.index";
+    // Where the downloads and the index are kept, it is not shared
+    private static final String TEMPORARY_FOLDER = ".temp";
+    // Files found while reading the folder are shared in batches of this size, before the whole tree is read
+    private static final int RECONCILE_BATCH_SIZE = 10_000;
 
-    private final Map<String, File> files;
-    protected final List<String> sharedFiles;
+    // The tracked files and which of them the server confirmed, read by the interface while they change
+    private final TrackedFiles files = new TrackedFiles();
     private final Client client;
     private final Path sharedFolder;
 
-    private CountDownLatch deletionLatch;
+    private CompletableFuture<Void> deletion = CompletableFuture.completedFuture(null);
 
     private final WatchService watchService;
     private final ExecutorService watchServiceExecutor;
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
     private Function<Path, Void> fileChangeHandler = path -> null;
 
+    // The hash trees are computed in the background, the files are advertised again with their root once hashed
+    private final Map<String, HashTree> hashTrees = new ConcurrentHashMap<>();
+    private final HashingService hashingService = new HashingService(HashingService.DEFAULT_WORKERS, this::onHashed);
+    // Hashed files whose root was not sent yet, they are sent together every SETTLE_CHECK_MILLIS
+    private final Map<String, Long> hashedFileSizes = new LinkedHashMap<>();
+
+    /**
+     * Size and modification time of a file, <code>null</code> is used for a path that is not a regular file.
+     */
+    private record FileState(long size, long lastModified) {
+        static FileState of(Path path) {
+            File file = path.toFile();
+            return file.isFile() ? new FileState(file.length(), file.lastModified()) : null;
+        }
+    }
+
+    /**
+     * A path with watch events that were not applied yet, with its state when it last changed.
+     */
+    private record PendingChange(FileState state, long changedAt) {
+    }
+
+    // The watch events only mark the paths, their net change is sent once they stop changing
+    private final Map<Path, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+    // What was sent to the server for each shared file, a settled change that matches it is not sent again
+    private final Map<String, FileState> advertisedStates = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService settleExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FileTracker Settle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FolderIndex index;
+    // Changes found before the files were first sent to the server are only tracked, they go with the first batch
+    private boolean advertised = false;
+    private volatile boolean closed = false;
+
     public FileTracker(Client client, Path sharedFolder) throws IOException {
-        this.files = new HashMap<>();
-        this.sharedFiles = new ArrayList<>();
         this.client = client;
-        this.sharedFolder = sharedFolder;
+        this.sharedFolder = sharedFolder.toAbsolutePath().normalize();
         this.watchService = FileSystems.getDefault().newWatchService();
         this.watchServiceExecutor = Executors.newSingleThreadExecutor();
 
-        // Share all files in the shared folder
-
         if (!Files.isDirectory(sharedFolder)) {
             throw new IllegalArgumentException("The shared folder must be a directory");
         }
-        try (var filesToShare = Files.list(sharedFolder)) {
-            filesToShare.forEach(file -> shareFileLater(file.toFile()));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        sharedFolder.register(
-                watchService,
-                StandardWatchEventKinds.ENTRY_CREATE,
-                StandardWatchEventKinds.ENTRY_DELETE,
-                StandardWatchEventKinds.ENTRY_MODIFY
-        );
+        // Share the files of the last index right away, the folder is checked against it in the background
+        this.index = FolderIndex.load(this.sharedFolder.resolve(TEMPORARY_FOLDER).resolve(INDEX_FILE));
+        index.entries().forEach((fileName, entry) -> {
+            files.put(fileName, this.sharedFolder.resolve(fileName).toFile());
+            if (entry.hashTree() != null) hashTrees.put(fileName, entry.hashTree());
+        });
 
         watchServiceExecutor.submit(this::processWatchEvents);
+        // The folders are watched while they are read, so a change made while reading them is not missed
+        Thread scanThread = new Thread(this::reconcileIndex, "FileTracker Scan");
+        scanThread.setDaemon(true);
+        scanThread.start();
+        settleExecutor.scheduleWithFixedDelay(this::applySettledChanges, SETTLE_CHECK_MILLIS, SETTLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        settleExecutor.scheduleWithFixedDelay(this::advertiseHashes, SETTLE_CHECK_MILLIS, SETTLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        settleExecutor.scheduleWithFixedDelay(this::saveIndex, INDEX_SAVE_MILLIS, INDEX_SAVE_MILLIS, TimeUnit.MILLISECONDS);
 
     }
 
@@ -62,8 +120,12 @@ public class FileTracker implements Closeable {
      */
     public void shareFile(File file) {
 //        if (!shareFileLater(file)) return;
-        files.put(file.getName(), file);
-        client.sendCreateFileRequest(file.getName(), file.length());
+        String fileName = getSharedName(file);
+        files.put(fileName, file);
+        index.put(fileName, new FolderIndex.Entry(file.length(), file.lastModified(), null));
+        advertisedStates.put(fileName, new FileState(file.length(), file.lastModified()));
+        client.sendCreateFileRequest(fileName, file.length());
+        hashingService.submit(fileName, file, HashingService.Priority.RECENT);
     }
 
     /**
@@ -76,42 +138,135 @@ public class FileTracker implements Closeable {
         if (file.isDirectory()) return false;
         if (file.length() == 0) return false;
         System.out.println("Sharing file: " + file.getName() + file);
-        files.put(file.getName(), file);
+        String fileName = getSharedName(file);
+        files.put(fileName, file);
+        index.put(fileName, new FolderIndex.Entry(file.length(), file.lastModified(), null));
         return true;
     }
 
+    /**
+     * @return the name the file is shared with, its path relative to the shared folder with '/' between the folders
+     */
+    public String getSharedName(File file) {
+        return sharedName(file.toPath());
+    }
+
+    private String sharedName(Path path) {
+        return sharedFolder.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
     public void deleteAllFiles() {
-        int fileCount = files.size();
-        deletionLatch = new CountDownLatch(fileCount);
-        List<String> fileNames = new ArrayList<>(files.keySet());
-        fileNames.forEach(client::sendDeleteFileRequest);
+        List<String> fileNames = new ArrayList<>(files.files().keySet());
+        deletion = client.unregister(fileNames);
     }
 
     /**
      * Sends create file requests for all files that have not yet been shared. <br/>
      * For example files that were prepared for sharing using the shareFileLater method.
+     * The files are registered in batches instead of one request per file, with the sizes and hashes of the index.
+     * Only the files without a hash tree that is not being computed already are hashed.<br/>
+     * The batches are sent from the settle thread, like all the batches of the tracker, so the caller does not wait
+     * for a large folder to be registered and the batches reach the server in the order they were made.
      */
     public void sendPendingFiles() {
-        files.forEach((fileName, file) -> client.sendCreateFileRequest(fileName, file.length()));
+        onSettleThread(() -> {
+            Map<String, Long> fileSizes = new LinkedHashMap<>();
+            Map<String, String> roots = new HashMap<>();
+            Map<String, File> filesWithoutHash = new LinkedHashMap<>();
+            synchronized (this) {
+                advertised = true;
+                files.files().forEach((fileName, file) -> {
+                    FolderIndex.Entry entry = index.get(fileName);
+                    FileState state = entry == null ? new FileState(file.length(), file.lastModified()) : new FileState(entry.size(), entry.lastModified());
+                    advertisedStates.put(fileName, state);
+                    fileSizes.put(fileName, state.size());
+                    HashTree hashTree = hashTrees.get(fileName);
+                    if (hashTree != null) {
+                        roots.put(fileName, hashTree.root());
+                    } else if (!hashingService.isPending(fileName)) {
+                        filesWithoutHash.put(fileName, file);
+                    }
+                });
+                hashingService.submitAll(filesWithoutHash, HashingService.Priority.BACKLOG);
+            }
+            client.register(fileSizes, roots);
+        });
+    }
+
+    private void onSettleThread(Runnable task) {
+        try {
+            settleExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Keeps the hash tree computed by the {@link HashingService}, unless the file stopped being tracked or changed
+     * since. The tree is kept in the index, so the file is not hashed again on the next start if it did not change.
+     */
+    private synchronized void onHashed(String fileName, File file, long size, long lastModified, HashTree hashTree) {
+        FolderIndex.Entry entry = index.get(fileName);
+        if (!files.contains(fileName) || entry != null && !entry.matches(size, lastModified)) return;
+        hashTrees.put(fileName, hashTree);
+        index.put(fileName, new FolderIndex.Entry(size, lastModified, hashTree));
+        // Otherwise the root is sent with the first batch
+        if (advertised) hashedFileSizes.put(fileName, size);
+    }
+
+    /**
+     * Registers the files hashed since the last call again, with their root, in one batch.
+     */
+    private void advertiseHashes() {
+        Map<String, Long> fileSizes;
+        Map<String, String> roots = new HashMap<>();
+        synchronized (this) {
+            if (hashedFileSizes.isEmpty()) return;
+            fileSizes = new LinkedHashMap<>(hashedFileSizes);
+            hashedFileSizes.clear();
+            fileSizes.keySet().removeIf(fileName -> !hashTrees.containsKey(fileName));
+            fileSizes.keySet().forEach(fileName -> roots.put(fileName, hashTrees.get(fileName).root()));
+        }
+        if (!fileSizes.isEmpty()) client.register(fileSizes, roots);
+    }
+
+    /**
+     * @return the hash tree of the file, or <code>null</code> if it was not computed yet
+     */
+    public HashTree getHashTree(String fileName) {
+        return hashTrees.get(fileName);
     }
 
     public void confirmFileSharing(String fileName) {
-        sharedFiles.add(fileName);
+        files.setShared(fileName, true);
         fileChangeHandler.apply(sharedFolder.resolve(fileName));
     }
 
     public void confirmUnsharedFile(String fileName) {
-        sharedFiles.remove(fileName);
-        if (deletionLatch != null) {
-            deletionLatch.countDown();
-        }
+        files.setShared(fileName, false);
         fileChangeHandler.apply(sharedFolder.resolve(fileName));
     }
 
+    /**
+     * Confirms a whole batch of shared files, notifying the file change handler only once.
+     */
+    public void confirmFilesSharing(List<String> fileNames) {
+        files.setShared(fileNames, true);
+        fileChangeHandler.apply(sharedFolder);
+    }
+
+    /**
+     * Confirms a whole batch of unshared files, notifying the file change handler only once.
+     */
+    public void confirmUnsharedFiles(List<String> fileNames) {
+        files.setShared(fileNames, false);
+        fileChangeHandler.apply(sharedFolder);
+    }
+
     public void waitAllFilesDeletion() {
         try {
-            deletionLatch.await();
-        } catch (InterruptedException e) {
+            deletion.get();
+        } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
@@ -121,57 +276,332 @@ public class FileTracker implements Closeable {
     }
 
     public Boolean getSharedFile(String fileName) {
-        return sharedFiles.contains(fileName);
+        return files.isShared(fileName);
     }
 
     public List<File> getTrackedFiles() {
-        return new ArrayList<>(files.values());
+        return new ArrayList<>(getSnapshot().files().values());
+    }
+
+    public int getTrackedFileCount() {
+        return files.size();
     }
 
     public List<String> getSharedFileNames() {
-        return new ArrayList<>(sharedFiles);
+        return new ArrayList<>(getSnapshot().sharedNames());
+    }
+
+    /**
+     * @return the tracked files and their sharing state, only copied when they changed since the last call
+     * @see TrackedFiles#snapshot()
+     */
+    public TrackedFiles.Snapshot getSnapshot() {
+        return files.snapshot();
+    }
+
+    /**
+     * @return a number that changes whenever the tracked files or their sharing state change
+     */
+    public long getVersion() {
+        return files.version();
     }
 
     public void unShareFile(File file) {
-        sharedFiles.remove(file.getName());
-        client.sendDeleteFileRequest(file.getName());
+        String fileName = getSharedName(file);
+        files.setShared(fileName, false);
+        synchronized (this) {
+            hashingService.cancel(fileName);
+            hashedFileSizes.remove(fileName);
+        }
+        hashTrees.remove(fileName);
+        advertisedStates.remove(fileName);
+        client.sendDeleteFileRequest(fileName);
     }
 
     public void stopTrackingFile(File file) {
-        files.remove(file.getName());
+        String fileName = getSharedName(file);
+        files.remove(fileName);
+        index.remove(fileName);
         unShareFile(file);
     }
 
+    /**
+     * Only records which paths changed. Copying a file into the folder fires many events, it is shared once
+     * {@link #applySettledChanges()} sees it stop changing, with its final size.
+     */
     private void processWatchEvents() {
         try {
             while (true) {
                 WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                long now = System.currentTimeMillis();
                 for (WatchEvent<?> event : key.pollEvents()) {
-                    WatchEvent.Kind<?> kind = event.kind();
-                    Path filePath = sharedFolder.resolve((Path) event.context());
-
-                    if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                        shareFile(filePath.toFile());
-                    } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                        unShareFile(filePath.toFile());
-                    } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                        unShareFile(filePath.toFile());
-                        shareFile(filePath.toFile());
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Some events of this folder were lost, only this folder is read again
+                        rescanDirectory(directory, now);
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (isTemporaryFolder(path)) continue;
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        // Created or moved in with its files, they may be there before the folder is watched
+                        watchTree(path, now);
+                        continue;
                     }
-                    fileChangeHandler.apply(filePath);
+                    pendingChanges.put(path, new PendingChange(FileState.of(path), now));
+                    // The path may have been a folder, its files are gone with it
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) markTrackedFilesUnder(path, now);
+                }
+                if (!key.reset()) {
+                    // The folder was deleted or moved away
+                    watchedDirectories.remove(directory);
+                    markTrackedFilesUnder(directory, now);
                 }
-                key.reset();
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed by close()
+        }
+    }
+
+    private boolean isTemporaryFolder(Path path) {
+        return path.startsWith(sharedFolder.resolve(TEMPORARY_FOLDER));
+    }
+
+    /**
+     * Watches a folder if it is not watched yet.
+     *
+     * @return false if it could not be watched, usually because the system limit of watched folders was reached
+     */
+    private boolean watchDirectory(Path directory) {
+        if (watchedDirectories.contains(directory)) return true;
+        try {
+            directory.register(
+                    watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+            );
+            watchedDirectories.add(directory);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not watch " + directory + ", its changes are only seen on the next start", e);
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Watches a new folder and all its subfolders and marks all their files as changed.
+     */
+    private void watchTree(Path root, long now) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    if (isTemporaryFolder(directory)) return FileVisitResult.SKIP_SUBTREE;
+                    watchDirectory(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        FileState state = new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+                        pendingChanges.put(file, new PendingChange(state, now));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Deleted while the folder was read
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + root, e);
+        }
+    }
+
+    /**
+     * Marks the tracked files that were under a folder as changed, the ones that are gone are then removed.
+     */
+    private void markTrackedFilesUnder(Path directory, long now) {
+        String prefix = directory.equals(sharedFolder) ? "" : sharedName(directory) + '/';
+        files.filesUnder(prefix).values().forEach(file -> pendingChanges.put(file.toPath(), new PendingChange(FileState.of(file.toPath()), now)));
+    }
+
+    /**
+     * Reads a folder again after its events were lost: its files and the tracked files that were in it are marked
+     * as changed, its subfolders that are not watched yet are watched and read. The rest of the tree is not read.
+     */
+    private void rescanDirectory(Path directory, long now) {
+        logger.info("Events of " + directory + " were lost, reading it again");
+        String prefix = directory.equals(sharedFolder) ? "" : sharedName(directory) + '/';
+        files.filesUnder(prefix).entrySet().stream()
+                .filter(entry -> entry.getKey().indexOf('/', prefix.length()) < 0)
+                .forEach(entry -> pendingChanges.put(entry.getValue().toPath(), new PendingChange(FileState.of(entry.getValue().toPath()), now)));
+        try (var paths = Files.list(directory)) {
+            paths.filter(path -> !isTemporaryFolder(path)).forEach(path -> {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!watchedDirectories.contains(path)) watchTree(path, now);
+                } else {
+                    pendingChanges.put(path, new PendingChange(FileState.of(path), now));
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.WARNING, "Could not list " + directory, e);
         }
     }
 
+    /**
+     * Sends the net change of every path that has not changed for {@link #SETTLE_MILLIS}: the files that appeared
+     * or changed are registered in one batch, the ones that are gone are unregistered in another.
+     */
+    private void applySettledChanges() {
+        if (pendingChanges.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        Map<String, File> changedFiles = new LinkedHashMap<>();
+        List<String> removedFiles = new ArrayList<>();
+        pendingChanges.forEach((path, pending) -> {
+            FileState state = FileState.of(path);
+            if (!Objects.equals(state, pending.state())) {
+                // Still being written
+                pendingChanges.replace(path, pending, new PendingChange(state, now));
+                return;
+            }
+            if (now - pending.changedAt() < SETTLE_MILLIS || !pendingChanges.remove(path, pending)) return;
+            String fileName = sharedName(path);
+            if (state != null && state.size() > 0) {
+                if (!state.equals(advertisedStates.get(fileName))) changedFiles.put(fileName, path.toFile());
+            } else if (files.contains(fileName)) {
+                removedFiles.add(fileName);
+            }
+        });
+        applyChanges(changedFiles, removedFiles, HashingService.Priority.RECENT);
+    }
+
+    /**
+     * Checks the files of the index against the folder and all its subfolders, watching every folder before it is
+     * read. Only the files that are new or whose size or modification time changed since the index was saved are
+     * shared and hashed again, in batches of {@link #RECONCILE_BATCH_SIZE} so the first ones are shared before the
+     * whole tree is read. The tree is read on its own thread, the batches are applied on the settle thread.
+     */
+    private void reconcileIndex() {
+        Map<String, File> changedFiles = new LinkedHashMap<>();
+        Set<String> folderFiles = new HashSet<>();
+        int[] changedCount = {0};
+        try {
+            Files.walkFileTree(sharedFolder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    if (closed) return FileVisitResult.TERMINATE;
+                    if (isTemporaryFolder(directory)) return FileVisitResult.SKIP_SUBTREE;
+                    watchDirectory(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile() || attributes.size() == 0) return FileVisitResult.CONTINUE;
+                    String fileName = sharedName(path);
+                    folderFiles.add(fileName);
+                    FolderIndex.Entry entry = index.get(fileName);
+                    if (entry == null || !entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                        changedFiles.put(fileName, path.toFile());
+                    }
+                    if (changedFiles.size() >= RECONCILE_BATCH_SIZE) {
+                        changedCount[0] += changedFiles.size();
+                        Map<String, File> batch = new LinkedHashMap<>(changedFiles);
+                        onSettleThread(() -> applyChanges(batch, List.of(), HashingService.Priority.BACKLOG));
+                        changedFiles.clear();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    // Deleted while the folder was read
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + sharedFolder, e);
+            return;
+        }
+        if (closed) return;
+        List<String> missingFiles = index.entries().keySet().stream().filter(fileName -> !folderFiles.contains(fileName)).toList();
+        changedCount[0] += changedFiles.size();
+        logger.info("Shared folder checked against its index: " + folderFiles.size() + " files in "
+                + watchedDirectories.size() + " folders, " + changedCount[0] + " new or changed, " + missingFiles.size() + " missing");
+        onSettleThread(() -> {
+            // A file that was added after its folder was read is in the index but was not seen
+            List<String> removedFiles = missingFiles.stream().filter(fileName -> {
+                FileState state = FileState.of(sharedFolder.resolve(fileName));
+                return state == null || state.size() == 0;
+            }).toList();
+            applyChanges(changedFiles, removedFiles, HashingService.Priority.BACKLOG);
+        });
+    }
+
+    /**
+     * Registers the changed files in one batch and unregisters the removed ones in another, once the files were sent
+     * to the server, and updates the index. Only called on the settle thread, the batches are sent outside the lock
+     * so the hashing workers do not wait for the server.
+     *
+     * @param priority the priority the changed files are hashed with
+     */
+    private void applyChanges(Map<String, File> changedFiles, List<String> removedFiles, HashingService.Priority priority) {
+        if (changedFiles.isEmpty() && removedFiles.isEmpty()) return;
+
+        List<String> unregisteredFiles = new ArrayList<>();
+        Map<String, Long> fileSizes = new LinkedHashMap<>();
+        synchronized (this) {
+            for (String fileName : removedFiles) {
+                files.remove(fileName);
+                hashingService.cancel(fileName);
+                hashedFileSizes.remove(fileName);
+                hashTrees.remove(fileName);
+                advertisedStates.remove(fileName);
+                index.remove(fileName);
+                if (advertised) unregisteredFiles.add(fileName);
+            }
+            changedFiles.forEach((fileName, file) -> {
+                // The old hashes do not match the new content, the file is hashed again
+                hashTrees.remove(fileName);
+                files.put(fileName, file);
+                FileState state = new FileState(file.length(), file.lastModified());
+                index.put(fileName, new FolderIndex.Entry(state.size(), state.lastModified(), null));
+                if (!advertised) return;
+                advertisedStates.put(fileName, state);
+                fileSizes.put(fileName, state.size());
+            });
+            hashingService.submitAll(changedFiles, priority);
+        }
+        if (!unregisteredFiles.isEmpty()) client.unregister(unregisteredFiles);
+        if (!fileSizes.isEmpty()) client.register(fileSizes);
+        fileChangeHandler.apply(sharedFolder);
+    }
+
+    private void saveIndex() {
+        try {
+            index.saveIfChanged();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save the index of " + sharedFolder, e);
+        }
+    }
 
     @Override
     public void close() throws IOException {
+        closed = true;
         watchService.close();
         watchServiceExecutor.shutdown();
+        settleExecutor.shutdownNow();
+        hashingService.close();
+        saveIndex();
     }
 
     public void setFileChangeHandler(Function<Path, Void> fileChangeHandler) {
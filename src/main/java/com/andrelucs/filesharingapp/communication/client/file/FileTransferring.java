@@ -6,45 +6,128 @@ import com.andrelucs.filesharingapp.communication.client.Client;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 import java.util.logging.*;
+import java.util.regex.Pattern;
 
 public class FileTransferring implements Runnable, Closeable {
     private static final int FILE_TRANSFER_PORT = 1235;
     private static final int BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_OWNER_FAILURES = 2;
+    private static final int IDLE_CONNECTION_TIMEOUT_MILLIS = 60_000;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int SHAPED_CHUNK_SIZE = 64 * 1024;
+    // Without a limit the sends are still split, so a limit set during an upload applies from its next chunk
+    private static final int UNSHAPED_CHUNK_SIZE = 8 * 1024 * 1024;
+    // A range gets at least this long, plus the time it takes at the slowest rate still worth waiting for
+    private static final long MIN_RANGE_TIMEOUT_MILLIS = 10_000;
+    private static final long MIN_RANGE_BYTES_PER_SECOND = 16 * 1024;
+    // Smaller files are not worth mapping, their reads and writes are few
+    private static final long MEMORY_MAPPED_MIN_SIZE = 256L * 1024 * 1024;
+    private static final String PARTIAL_FILE_EXTENSION = ".part";
+    private static final String STATE_FILE_EXTENSION = ".state";
+    // File.createTempFile(name, start + "-" + end + uuid), how older versions stored each downloaded range
+    private static final Pattern LEGACY_FRAGMENT = Pattern.compile(".+\\d+-\\d+\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}");
     private static final Logger logger = Logger.getLogger(FileTransferring.class.getName());
     private final ServerSocket serverSocket;
     private final Client client;
     private final Path downloadFolder;
 
-    private final List<String> filesBeingUploaded = new ArrayList<>();
-    private final List<String> filesBeingDownloaded = new ArrayList<>();
-    private final Map<String, Float> downloadProgress = new HashMap<>();
+    // Ranges of each file being sent, a download sends many of them at once
+    private final Map<String, Integer> filesBeingUploaded = new ConcurrentHashMap<>();
+    private final Set<String> filesBeingDownloaded = ConcurrentHashMap.newKeySet();
     private final Object tempFolderLock = new Object();
-    private final List<FileTraficListener> traficListeners = new ArrayList<>();
+    private final List<FileTraficListener> traficListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean zeroCopy = true;
+    private volatile boolean memoryMapped = false;
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool(FILE_TRANSFER_PORT);
+    private volatile UploadExecutor uploadExecutor;
+    private final IdleConnectionWatcher idleConnections = new IdleConnectionWatcher(IDLE_CONNECTION_TIMEOUT_MILLIS);
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private final PeerHealth peerHealth = new PeerHealth();
+    private final ProgressReporter progressReporter = new ProgressReporter();
+    private final TransferStatistics statistics = new TransferStatistics();
+    // A thread for each owner of the active downloads, they block on the network for most of their time
+    private final ExecutorService ownerWorkers = newOwnerWorkers();
 
     public FileTransferring(Client client, Path downloadFolder) throws IOException {
-        this.serverSocket = new ServerSocket(FILE_TRANSFER_PORT);
+        this(client, downloadFolder, UploadMode.BOUNDED_POOL);
+    }
+
+    public FileTransferring(Client client, Path downloadFolder, UploadMode uploadMode) throws IOException {
+        // Opened as a channel, so the accepted sockets have a SocketChannel for the zero-copy transfers
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        // A long backlog, so bursts of range requests wait to be accepted instead of being reset
+        serverChannel.bind(new InetSocketAddress(FILE_TRANSFER_PORT), ACCEPT_BACKLOG);
+        this.serverSocket = serverChannel.socket();
         this.client = client;
         this.downloadFolder = downloadFolder;
+        this.uploadExecutor = new UploadExecutor(uploadMode);
+        removeOrphanedFiles();
+    }
+
+    /**
+     * Deletes what interrupted downloads left behind and can not be resumed: the range fragments that older
+     * versions created in the download folder, and partial files in the temporary folder without their state
+     * file (or the other way around).
+     */
+    private void removeOrphanedFiles() {
+        try (var files = Files.list(downloadFolder)) {
+            for (Path file : files.filter(file -> LEGACY_FRAGMENT.matcher(file.getFileName().toString()).matches()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error removing old download fragments", e);
+        }
+        Path temporaryFolder = downloadFolder.resolve(".temp");
+        if (!Files.isDirectory(temporaryFolder)) return;
+        try (var files = Files.list(temporaryFolder)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                boolean orphan;
+                if (name.endsWith(PARTIAL_FILE_EXTENSION)) {
+                    orphan = !Files.exists(file.resolveSibling(name.substring(0, name.length() - PARTIAL_FILE_EXTENSION.length()) + STATE_FILE_EXTENSION));
+                } else if (name.endsWith(STATE_FILE_EXTENSION)) {
+                    orphan = !Files.exists(file.resolveSibling(name.substring(0, name.length() - STATE_FILE_EXTENSION.length()) + PARTIAL_FILE_EXTENSION));
+                } else {
+                    // Interrupted state saves
+                    orphan = name.endsWith(STATE_FILE_EXTENSION + ".tmp");
+                }
+                if (orphan) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error removing orphaned partial downloads", e);
+        }
     }
 
     @Override
     public void run() {
         while (!serverSocket.isClosed()) {
             try {
-                Socket socket = serverSocket.accept();
-                new Thread(() -> serveFile(socket)).start();
+                serve(serverSocket.accept());
             } catch (IOException e) {
-                if (e instanceof SocketException && e.getMessage().equals("Socket closed")) {
+                if (serverSocket.isClosed()) {
                     break;
                 } else {
                     logger.log(Level.SEVERE, "Error accepting connection", e);
@@ -53,143 +136,606 @@ public class FileTransferring implements Runnable, Closeable {
         }
     }
 
+    /**
+     * Serves a connection on an upload thread, or refuses it if there are too many uploads.
+     */
+    private void serve(Socket socket) {
+        if (!uploadExecutor.execute(() -> serveFile(socket))) {
+            logger.warning("Too many uploads, refusing connection from " + socket.getInetAddress());
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Answers the requests of a peer. A GET is the last request of its connection, the data ends with it.
+     * GETRANGE and HASHES responses say how long they are, so the peer may keep the connection for more requests.
+     * Between requests the connection waits in the {@link IdleConnectionWatcher}, not on the upload thread,
+     * and is served again once its next request arrives.
+     */
     private void serveFile(Socket socket) {
-        try (
-                socket;
-                DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            String getRequest = reader.readLine();
-            while (getRequest == null || ProtocolCommand.fromString(getRequest.split(" ")[0]) != ProtocolCommand.GET) {
-                getRequest = reader.readLine();
+        boolean idle = false;
+        try {
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Only reached in the middle of a request, or for sockets that can not be watched
+            socket.setSoTimeout(IDLE_CONNECTION_TIMEOUT_MILLIS);
+            String request;
+            while ((request = reader.readLine()) != null) {
+                switch (ProtocolCommand.fromString(request.split(" ")[0])) {
+                    case GET -> {
+                        serveRange(socket, dataOutputStream, request, false);
+                        return;
+                    }
+                    case GETRANGE -> serveRange(socket, dataOutputStream, request, true);
+                    case HASHES -> serveHashes(request.substring(request.indexOf(' ') + 1), dataOutputStream);
+                    case null, default -> {
+                        // Not a transfer request, ignored
+                    }
+                }
+                // A request already buffered by the reader would be lost with it, it is answered right away
+                if (!reader.ready() && idleConnections.watch(socket.getChannel(), channel -> serve(channel.socket()))) {
+                    idle = true;
+                    return;
+                }
             }
-            String[] parts = getRequest.split(" ");
+        } catch (SocketTimeoutException e) {
+            logger.fine("Closing idle connection from " + socket.getInetAddress());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error serving file", e);
+        } finally {
+            if (!idle) closeQuietly(socket);
+        }
+    }
 
-            String fileName = getRequest.trim().substring(getRequest.indexOf(" ") + 1, getRequest.lastIndexOf(" "));
-            File requestedFile = client.getFile(fileName);
-            if (requestedFile == null || !requestedFile.exists() || !requestedFile.canRead()) {
-                return;
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing connection from " + socket.getInetAddress(), e);
+        }
+    }
+
+    /**
+     * Sends the range of a GET or GETRANGE request.
+     *
+     * @param framed true to send the length of the range before it (GETRANGE)
+     * @throws IOException if the connection failed or, for a GETRANGE, the range could not be sent as announced
+     */
+    private void serveRange(Socket socket, DataOutputStream dataOutputStream, String getRequest, boolean framed) throws IOException {
+        String[] parts = getRequest.split(" ");
+
+        String fileName = getRequest.trim().substring(getRequest.indexOf(" ") + 1, getRequest.lastIndexOf(" "));
+        File requestedFile = client.getFile(fileName);
+        if (requestedFile == null || !requestedFile.exists() || !requestedFile.canRead()) {
+            if (framed) dataOutputStream.writeLong(-1);
+            return;
+        }
+        long[] range = parseRange(parts[parts.length - 1], requestedFile.length());
+        if (range == null) {
+            logger.warning("Invalid range in request: " + getRequest);
+            if (framed) dataOutputStream.writeLong(-1);
+            return;
+        }
+        long startByte = range[0];
+        long endByte = range[1];
+        long contentLength = endByte - startByte;
+        if (framed) {
+            // The announced length must be sent in full, or the peer reads the next response from the wrong place
+            contentLength = Math.max(0, Math.min(endByte, requestedFile.length()) - startByte);
+            dataOutputStream.writeLong(contentLength);
+        }
+
+        // A download asks for each piece, it is announced and counted as a share only once, with its first piece
+        boolean firstRange = startByte == 0;
+        filesBeingUploaded.merge(fileName, 1, Integer::sum);
+        if (firstRange) {
+            traficListeners.forEach(listener -> listener.onFileAction(FileAction.UPLOAD, new FileInfo(fileName, socket.getInetAddress().toString(), requestedFile.length())));
+        }
+
+        String peer = socket.getInetAddress().getHostAddress();
+        TransferStatistics.PeerCounters peerCounters = statistics.peer(peer);
+        LongConsumer onSent = bytes -> statistics.addUploaded(peerCounters, fileName, bytes);
+        long sent;
+        statistics.uploadStarted();
+        try {
+            if (memoryMapped && requestedFile.length() >= MEMORY_MAPPED_MIN_SIZE && socket.getChannel() != null) {
+                sent = transferMapped(requestedFile, socket.getChannel(), peer, startByte, contentLength, onSent);
+            } else if (zeroCopy && socket.getChannel() != null) {
+                sent = transferZeroCopy(requestedFile, socket.getChannel(), peer, startByte, contentLength, onSent);
+            } else {
+                sent = transferWithBuffer(requestedFile, dataOutputStream, peer, startByte, contentLength, onSent);
             }
-            String[] range = parts[parts.length-1].split("-");
-            long startByte = Integer.parseInt(range[0]);
-            long endByte = (range.length > 1) ? Integer.parseInt(range[1]) : requestedFile.length();
-            long contentLength = endByte - startByte;
-
-            filesBeingUploaded.add(requestedFile.getName());
-
-            // Send the file -> closes the input stream -> closes the socket
-            try (FileInputStream fileInputStream = new FileInputStream(requestedFile)) {
-                File finalRequestedFile = requestedFile;
-                traficListeners.forEach(listener -> listener.onFileAction(FileAction.UPLOAD, new FileInfo(finalRequestedFile.getName(), socket.getInetAddress().toString(), finalRequestedFile.length())));
-                int bytes;
-                long totalBytes = 0;
-                byte[] buffer = new byte[BUFFER_SIZE];
-                fileInputStream.skip(startByte);
-
-                // While not reached end of file or not reached the requested byte range
-                while ((bytes = fileInputStream.read(buffer)) != -1) {
-                    bytes = (int) Math.min(bytes, contentLength - totalBytes);
-                    totalBytes += bytes;
-                    dataOutputStream.write(buffer, 0, bytes);
-                    dataOutputStream.flush();
-
-                    if (totalBytes >= contentLength) {
-                        break;
-                    }
+        } finally {
+            statistics.uploadFinished();
+            filesBeingUploaded.computeIfPresent(fileName, (name, ranges) -> ranges > 1 ? ranges - 1 : null);
+            if (firstRange) FileShareTracker.getInstance().incrementShareCount(fileName);
+        }
+        if (framed && sent < contentLength) {
+            throw new IOException("Sent " + sent + " of the " + contentLength + " bytes announced for " + fileName);
+        }
+    }
+
+    /**
+     * Parses the <code>start-end</code> range of a request, the end is optional and exclusive.
+     *
+     * @return the start and end bytes, or <code>null</code> if the range is not valid
+     */
+    private static long[] parseRange(String range, long fileLength) {
+        String[] bytes = range.split("-", -1);
+        try {
+            long startByte = Long.parseLong(bytes[0]);
+            long endByte = bytes.length > 1 && !bytes[1].isEmpty() ? Long.parseLong(bytes[1]) : fileLength;
+            if (startByte < 0 || endByte < startByte) return null;
+            return new long[]{startByte, endByte};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers a HASHES request with the piece hashes of the file, or -1 if they were not computed yet.
+     */
+    private void serveHashes(String fileName, DataOutputStream dataOutputStream) throws IOException {
+        HashTree hashTree = client.getHashTree(fileName);
+        if (hashTree == null) {
+            dataOutputStream.writeInt(-1);
+        } else {
+            hashTree.writeTo(dataOutputStream);
+        }
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Sends a range of the file copying it through a heap buffer.
+     *
+     * @param onSent called with the number of bytes of each write
+     * @return the number of bytes sent
+     */
+    private long transferWithBuffer(File file, DataOutputStream dataOutputStream, String peer, long startByte, long contentLength, LongConsumer onSent) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int bytes;
+            long totalBytes = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+            // While not reached end of file or not reached the requested byte range
+            while ((bytes = fileChannel.read(byteBuffer.clear(), startByte + totalBytes)) != -1) {
+                bytes = (int) Math.min(bytes, contentLength - totalBytes);
+                totalBytes += bytes;
+                throttle(peer, bytes);
+                dataOutputStream.write(buffer, 0, bytes);
+                dataOutputStream.flush();
+                bandwidthLimiter.recordSent(peer, bytes, bytes);
+                onSent.accept(bytes);
+
+                if (totalBytes >= contentLength) {
+                    break;
                 }
-            } finally {
-                filesBeingUploaded.remove(requestedFile.getName());
-                FileShareTracker.getInstance().incrementShareCount(requestedFile.getName());
             }
+            return totalBytes;
+        }
+    }
 
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Error serving file", e);
+    /**
+     * Sends a range of the file straight from the file system to the socket with {@link FileChannel#transferTo},
+     * without copying the bytes through the heap.<br/>
+     * When the bandwidth is limited the range is sent in chunks of {@value #SHAPED_CHUNK_SIZE} bytes,
+     * otherwise of {@value #UNSHAPED_CHUNK_SIZE} bytes. Only the bytes each call sent count for the limits.
+     *
+     * @param onSent called with the number of bytes of each transfer
+     * @return the number of bytes sent
+     */
+    private long transferZeroCopy(File file, SocketChannel target, String peer, long startByte, long contentLength, LongConsumer onSent) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long endByte = Math.min(startByte + contentLength, fileChannel.size());
+            long position = startByte;
+            while (position < endByte) {
+                long count = Math.min(endByte - position, chunkSize());
+                throttle(peer, count);
+                long sent = fileChannel.transferTo(position, count, target);
+                if (sent == 0 && position < fileChannel.size()) {
+                    // On a virtual thread the socket is non-blocking underneath, transferTo returns 0 once the
+                    // socket buffer is full instead of waiting for room, a write does wait
+                    sent = writeChunk(fileChannel, target, position, count);
+                }
+                bandwidthLimiter.recordSent(peer, count, sent);
+                if (sent <= 0) break;
+                position += sent;
+                onSent.accept(sent);
+            }
+            return position - startByte;
+        }
+    }
+
+    /**
+     * Copies up to {@value #BUFFER_SIZE} bytes of the file to the socket through a heap buffer.
+     *
+     * @return the number of bytes sent, -1 at the end of the file
+     */
+    private static int writeChunk(FileChannel fileChannel, SocketChannel target, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, BUFFER_SIZE));
+        int bytes = fileChannel.read(buffer, position);
+        buffer.flip();
+        while (buffer.hasRemaining()) target.write(buffer);
+        return bytes;
+    }
+
+    /**
+     * Sends a range of the file from memory-mapped windows of {@link MappedDownloadWriter#WINDOW_SIZE} bytes,
+     * so only the part being sent is mapped however large the file is.
+     *
+     * @param onSent called with the number of bytes of each write
+     * @return the number of bytes sent
+     */
+    private long transferMapped(File file, SocketChannel target, String peer, long startByte, long contentLength, LongConsumer onSent) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long endByte = Math.min(startByte + contentLength, fileChannel.size());
+            long position = startByte;
+            while (position < endByte) {
+                MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MappedDownloadWriter.WINDOW_SIZE, endByte - position));
+                while (window.hasRemaining()) {
+                    int count = (int) Math.min(window.remaining(), chunkSize());
+                    throttle(peer, count);
+                    int sent = target.write(window.slice(window.position(), count));
+                    bandwidthLimiter.recordSent(peer, count, sent);
+                    window.position(window.position() + sent);
+                    position += sent;
+                    onSent.accept(sent);
+                }
+            }
+            return position - startByte;
+        }
+    }
+
+    /**
+     * @return the most bytes to send to the socket with one call
+     */
+    private long chunkSize() {
+        return bandwidthLimiter.isLimited() ? SHAPED_CHUNK_SIZE : UNSHAPED_CHUNK_SIZE;
+    }
+
+    /**
+     * Waits until the bandwidth limits allow sending the bytes to the peer.
+     * What was actually sent is then given to {@link BandwidthLimiter#recordSent(String, long, long)}.
+     */
+    private void throttle(String peer, long bytes) throws InterruptedIOException {
+        try {
+            bandwidthLimiter.acquire(peer, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
         }
     }
 
     /**
-     * Downloads a file from multiple owners and combines them into a single file.
+     * Downloads a file from multiple owners and combines them into a single file.<br/>
+     * The file is split in pieces of {@link PieceScheduler#PIECE_SIZE} bytes and every owner keeps taking the
+     * next missing piece until none is left, so faster owners download more of the file. The piece of an owner
+     * that fails goes back to the others with the bytes already received, and the worker of an owner that keeps
+     * failing moves on to another owner of the file, from the ones known by the {@link Client}. The download only
+     * fails once no owner is left.<br/>
+     * Each piece is written straight at its offset of a preallocated file in the temporary folder,
+     * which is moved into the download folder once complete.
      *
      * @param fileInfo the file to be downloaded
      * @param owners   the owners from which the file will be downloaded
      * @return the downloaded file
      */
-    public File downloadFromMultipleOwners(@NotNull FileInfo fileInfo, @NotNull Set<String> owners/*, Function<Float,Void> progressTracker*/) { // TODO progress tracker
-        filesBeingDownloaded.add(fileInfo.name());
+    public File downloadFromMultipleOwners(@NotNull FileInfo fileInfo, @NotNull Set<String> owners) {
+        return downloadFromMultipleOwners(fileInfo, owners, () -> false);
+    }
+
+    /**
+     * Same as {@link #downloadFromMultipleOwners(FileInfo, Set)}, but the download can be stopped: once
+     * <code>stopRequested</code> is true, the owners finish the pieces they are downloading and take no more.
+     * The partial file and its state are kept, so downloading the file again continues from where it stopped.
+     *
+     * @param stopRequested checked before every piece
+     * @throws CancellationException if the download stopped before it was complete
+     */
+    public File downloadFromMultipleOwners(@NotNull FileInfo fileInfo, @NotNull Set<String> owners, @NotNull BooleanSupplier stopRequested) {
+        Path downloadPath = downloadPath(fileInfo.name());
+        // Both downloads would write the same partial file
+        if (!filesBeingDownloaded.add(fileInfo.name())) {
+            throw new IllegalStateException(fileInfo.name() + " is already being downloaded");
+        }
+        try {
+            return download(fileInfo, owners, stopRequested, downloadPath);
+        } finally {
+            filesBeingDownloaded.remove(fileInfo.name());
+        }
+    }
+
+    /**
+     * Downloads a file that is marked as being downloaded.
+     *
+     * @see #downloadFromMultipleOwners(FileInfo, Set, BooleanSupplier)
+     */
+    private File download(FileInfo fileInfo, Set<String> owners, BooleanSupplier stopRequested, Path downloadPath) {
         traficListeners.forEach(listener -> listener.onFileAction(FileAction.DOWNLOAD, fileInfo));
-        var uniqueFileName = (Files.exists(downloadFolder.resolve(fileInfo.name())) ? UUID.randomUUID().toString().substring(0, 5) : "") + fileInfo.name();
-        var newFile = downloadFolder.resolve(uniqueFileName).toFile();
-        List<CompletableFuture<File>> futureList = new ArrayList<>();
-        List<String> ownerList = new ArrayList<>(owners);
-        final long bytesPerOwner = fileInfo.size() / ownerList.size();
-        long remainingBytes = fileInfo.size() % ownerList.size();
-        for (int i = 0; i < ownerList.size(); i++) {
-            String owner = (String) ownerList.toArray()[i];
-            long startByte = i * bytesPerOwner;
-            long endByte = (i + 1) * bytesPerOwner + (i == ownerList.size() - 1 ? remainingBytes : 0);
-            futureList.add(CompletableFuture.supplyAsync(() -> {
-                try {
-                    return downloadFileBytes(fileInfo.name(), owner, startByte, endByte, (totalBytes) -> {
-                        downloadProgress.put(fileInfo.name(), (float) totalBytes / fileInfo.size() * 100);
-                        traficListeners.forEach(listener -> listener.onFileAction(FileAction.DOWNLOAD_PROGRESS, new FileInfo(fileInfo.name(), owner, totalBytes)));
-                        return null;
-                    });
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        Path partialFile;
+        Path stateFile;
+        try {
+            String temporaryName = temporaryName(fileInfo.name());
+            partialFile = temporaryFolder().resolve(temporaryName + PARTIAL_FILE_EXTENSION);
+            stateFile = temporaryFolder().resolve(temporaryName + STATE_FILE_EXTENSION);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // Without the piece hashes, the whole file is checked against the advertised root once complete
+        HashTree hashTree = fileInfo.hash() == null ? null : fetchHashTree(fileInfo, owners);
+        // Continues from the pieces of a previous attempt, if there is one for this same file
+        DownloadState state = DownloadState.load(stateFile, partialFile, fileInfo);
+        BitSet completedPieces = state.completedPieces();
+        List<CompletableFuture<Void>> futureList = new ArrayList<>();
+        PieceScheduler scheduler = new PieceScheduler(fileInfo.size(), owners.size(), completedPieces);
+        // Every owner that had a worker, so a replacement is never an owner that already failed in this download
+        Set<String> usedOwners = Collections.synchronizedSet(new HashSet<>(owners));
+        ProgressReporter.Tracker progress = progressReporter.start(fileInfo, completedPieces.stream()
+                .mapToLong(piece -> scheduler.pieceEnd(piece) - scheduler.pieceStart(piece))
+                .sum());
+        statistics.downloadStarted();
+        try (DownloadWriter downloadWriter = DownloadWriter.open(partialFile, fileInfo.size(), memoryMapped && fileInfo.size() >= MEMORY_MAPPED_MIN_SIZE)) {
+            // Saved right away, a partial file without its state is an orphan
+            state.save();
+            try {
+                for (String owner : owners) {
+                    futureList.add(CompletableFuture.runAsync(() -> downloadPieces(fileInfo, owner, usedOwners, scheduler, hashTree, state, downloadWriter, progress, stopRequested), ownerWorkers));
                 }
-            }));
+                CompletableFuture.allOf(futureList.toArray(CompletableFuture[]::new)).join();
+            } finally {
+                // Keeps the pieces that were downloaded, so the next attempt does not fetch them again
+                downloadWriter.force();
+                state.save();
+            }
+            if (!scheduler.isComplete() && stopRequested.getAsBoolean()) {
+                throw new CancellationException("Download of " + fileInfo.name() + " stopped");
+            }
+            if (!scheduler.isComplete()) {
+                throw new IOException("Every owner of " + fileInfo.name() + " failed before the download was complete, tried " + usedOwners);
+            }
+            if (fileInfo.hash() != null && hashTree == null && !HashTree.of(partialFile).root().equalsIgnoreCase(fileInfo.hash())) {
+                // There is no way to know which pieces are wrong, the next attempt starts over
+                state.delete();
+                throw new IOException(fileInfo.name() + " does not match its advertised hash");
+            }
+        } catch (IOException | CompletionException e) {
+            logger.log(Level.SEVERE, "Error downloading file from multiple owners", e);
+            if (!Files.exists(stateFile)) {
+                // Nothing of it can be resumed
+                partialFile.toFile().delete();
+            }
+            progressReporter.finish(progress);
+            statistics.downloadFinished();
+            throw new RuntimeException(e);
+        } catch (CancellationException e) {
+            // The partial file and its state stay in the temporary folder, to be resumed
+            progressReporter.finish(progress);
+            statistics.downloadFinished();
+            throw e;
+        }
+        if (Files.exists(downloadPath)) {
+            downloadPath = downloadPath.resolveSibling(UUID.randomUUID().toString().substring(0, 5) + downloadPath.getFileName());
+        }
+        var newFile = downloadPath.toFile();
+        try {
+            Files.createDirectories(downloadPath.getParent());
+            Files.move(partialFile, downloadPath);
+            state.delete();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            progressReporter.finish(progress);
+            statistics.downloadFinished();
         }
 
-        CompletableFuture.allOf(futureList.toArray(CompletableFuture[]::new)).join();
-        if (futureList.size() == 1) {
+        traficListeners.forEach(listener -> listener.onFileAction(FileAction.DOWNLOAD_COMPLETE, fileInfo));
+        return newFile;
+    }
+
+    /**
+     * Asks the owners for the piece hashes of the file, until one answers with hashes that lead to the advertised root.
+     * The other owners the {@link Client} knows of are asked too, after the ones chosen for the download.
+     *
+     * @return the hash tree, or <code>null</code> if no owner has it
+     */
+    private HashTree fetchHashTree(FileInfo fileInfo, Set<String> owners) {
+        int pieceCount = PieceScheduler.pieceCount(fileInfo.size());
+        Set<String> candidates = new LinkedHashSet<>(owners);
+        if (client != null) candidates.addAll(client.getFileOwners(fileInfo.name()));
+        for (String owner : candidates) {
+            if (!peerHealth.isAvailable(owner) && !owners.contains(owner)) continue;
+            PeerConnection connection = null;
+            boolean reusable = false;
             try {
-                File tempFile = futureList.getFirst().get();
-                Files.move(tempFile.toPath(), newFile.toPath());
-            } catch (InterruptedException | ExecutionException | IOException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            try (FileOutputStream fileOutputStream = new FileOutputStream(newFile)) {
-                for (CompletableFuture<File> futureTempFile : futureList) {
-                    try {
-                        File tempFile = futureTempFile.get();
-                        try (FileInputStream fileInputStream = new FileInputStream(tempFile)) {
-                            int bytes;
-                            byte[] buffer = new byte[BUFFER_SIZE];
-                            while ((bytes = fileInputStream.read(buffer)) != -1) {
-                                fileOutputStream.write(buffer, 0, bytes);
-                            }
-                        }
-                        tempFile.delete();
-                    } catch (ExecutionException | InterruptedException e) {
-                        logger.log(Level.SEVERE, "Error downloading file from multiple owners", e);
-                        throw new RuntimeException(e);
-                    }
+                connection = connectionPool.borrow(owner);
+                HashTree hashTree = connection.requestHashes(fileInfo.name(), pieceCount);
+                reusable = true;
+                peerHealth.recordSuccess(owner);
+                if (hashTree != null && hashTree.pieceCount() == pieceCount && hashTree.root().equalsIgnoreCase(fileInfo.hash())) {
+                    return hashTree;
                 }
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error writing combined file", e);
+                peerHealth.recordFailure(owner);
+                logger.log(Level.WARNING, "Could not get the piece hashes of " + fileInfo.name() + " from " + owner, e);
+            } finally {
+                if (connection != null) connectionPool.release(connection, reusable);
             }
         }
+        logger.warning("No owner sent the piece hashes of " + fileInfo.name() + ", it will only be checked once complete");
+        return null;
+    }
 
-        filesBeingDownloaded.remove(fileInfo.name());
-        downloadProgress.remove(fileInfo.name());
-        traficListeners.forEach(listener -> listener.onFileAction(FileAction.DOWNLOAD_COMPLETE, fileInfo));
-        return newFile;
+    /**
+     * Keeps downloading pieces until there are none left or the download is stopped. When the owner fails
+     * {@link #MAX_OWNER_FAILURES} pieces in a row the worker moves on to another owner of the file, and stops
+     * if there is none left.<br/>
+     * A piece that fails is given back to the scheduler with the bytes received so far, unless it does not match
+     * its hash, then it is downloaded again from its start.
+     *
+     * @param usedOwners the owners that had a worker in this download, the new owner of this worker is added to it
+     * @param hashTree   the hashes the pieces are checked against, <code>null</code> to not check them
+     */
+    private void downloadPieces(FileInfo fileInfo, String firstOwner, Set<String> usedOwners, PieceScheduler scheduler, HashTree hashTree, DownloadState state, DownloadWriter writer, ProgressReporter.Tracker progress, BooleanSupplier stopRequested) {
+        String owner = firstOwner;
+        int failures = 0;
+        MessageDigest digest = hashTree == null ? null : HashTree.newDigest();
+        try {
+            int piece;
+            while (!stopRequested.getAsBoolean() && (piece = scheduler.takePiece()) >= 0) {
+                // What a previous worker already wrote of this piece is not downloaded again
+                long receivedBefore = scheduler.receivedBytes(piece);
+                long startByte = scheduler.pieceStart(piece) + receivedBefore;
+                long endByte = scheduler.pieceEnd(piece);
+                LongAdder ownerCounter = progress.owner(owner);
+                TransferStatistics.PeerCounters peerCounters = statistics.peer(owner);
+                long pieceStartNanos = System.nanoTime();
+                long[] pieceBytes = {0};
+                boolean corrupted = false;
+                try {
+                    if (digest != null) {
+                        digest.reset();
+                        updateDigest(digest, writer, scheduler.pieceStart(piece), receivedBefore);
+                    }
+                    long received = getBytes(fileInfo.name(), owner, startByte, endByte, writer, digest, bytes -> {
+                        // Only counters, the progress is published by the reporter thread
+                        pieceBytes[0] += bytes;
+                        ownerCounter.add(bytes);
+                        progress.addDownloaded(bytes);
+                        statistics.addDownloaded(peerCounters, bytes);
+                    });
+                    if (received < endByte - startByte) {
+                        throw new IOException("Received " + received + " of " + (endByte - startByte) + " bytes of piece " + piece);
+                    }
+                    if (digest != null && !hashTree.verifyPiece(piece, digest.digest())) {
+                        corrupted = true;
+                        throw new IOException("Piece " + piece + " of " + fileInfo.name() + " does not match its hash");
+                    }
+                    scheduler.complete(piece);
+                    if (state.markCompleted(piece)) {
+                        saveState(state, writer);
+                    }
+                    peerHealth.recordSuccess(owner);
+                    statistics.pieceCompleted(peerCounters, received, System.nanoTime() - pieceStartNanos);
+                    failures = 0;
+                } catch (IOException e) {
+                    if (corrupted) {
+                        // Any of the owners of the piece may have sent the wrong bytes, all of them are downloaded again
+                        progress.addDownloaded(-(receivedBefore + pieceBytes[0]));
+                        scheduler.release(piece);
+                    } else {
+                        // The bytes received are kept, another owner continues from them
+                        scheduler.release(piece, receivedBefore + pieceBytes[0]);
+                    }
+                    peerHealth.recordFailure(owner);
+                    statistics.pieceFailed(peerCounters);
+                    if (++failures >= MAX_OWNER_FAILURES) {
+                        logger.log(Level.WARNING, "Giving up on owner " + owner + " of " + fileInfo.name(), e);
+                        connectionPool.closeIdle(owner);
+                        owner = replacementOwner(fileInfo, usedOwners);
+                        if (owner == null) break;
+                        logger.info("Downloading the rest of " + fileInfo.name() + " from " + owner);
+                        failures = 0;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.workerStopped();
+        }
     }
 
     /**
-     * Download a set of bytes of a given file from the specified owner
+     * Chooses an owner of the file that did not have a worker in this download yet, from the owners the
+     * {@link Client} knows of, the best one by {@link #rankOwners(Collection)}.
      *
-     * @param fileName  the name of the file to be downloaded
-     * @param owner     the owner of the file
-     * @param startByte the start byte
-     * @param endByte   the end byte
-     * @return the downloaded file
-     * @throws IOException if an I/O error occurs
+     * @return the new owner, already added to <code>usedOwners</code>, or <code>null</code> if there is none
      */
-    private @NotNull File downloadFileBytes(String fileName, String owner, long startByte, long endByte, Function<Long, Void> progressTracker) throws IOException {
+    private String replacementOwner(FileInfo fileInfo, Set<String> usedOwners) {
+        Set<String> knownOwners = client == null ? Set.of() : client.getFileOwners(fileInfo.name());
+        synchronized (usedOwners) {
+            String replacement = rankOwners(knownOwners).stream()
+                    .filter(owner -> !usedOwners.contains(owner))
+                    .findFirst()
+                    .orElse(null);
+            if (replacement != null) usedOwners.add(replacement);
+            return replacement;
+        }
+    }
 
-        // Creates temp folder if not exists
+    /**
+     * Orders owners from the most to the least promising: the ones that are not failing first, then the fastest
+     * by the rate of their last pieces, then the ones nothing was downloaded from yet, and the ones that failed
+     * the most last.
+     */
+    public List<String> rankOwners(Collection<String> owners) {
+        return owners.stream()
+                .sorted(Comparator.comparing((String owner) -> !peerHealth.isAvailable(owner))
+                        .thenComparingDouble(owner -> -statistics.getPieceRate(owner))
+                        .thenComparingInt(peerHealth::getFailures))
+                .toList();
+    }
+
+    /**
+     * Feeds the digest with bytes of the file that were already written, the start of a piece that another
+     * owner had downloaded.
+     */
+    private void updateDigest(MessageDigest digest, DownloadWriter writer, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            writer.read(buffer, position);
+            buffer.flip();
+            position += buffer.remaining();
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * Saves the downloaded pieces in the state file, after making sure their bytes are written.
+     * A failed save is only logged, the download goes on and the next save records the pieces.
+     */
+    private void saveState(DownloadState state, DownloadWriter writer) {
+        try {
+            writer.force();
+            state.save();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save the download state", e);
+        }
+    }
+
+    /**
+     * @return where the file is saved, at the path relative to the download folder it has in the folder of its owners
+     * @throws IllegalArgumentException if the name leads out of the download folder or into its temporary folder
+     */
+    private Path downloadPath(String fileName) {
+        Path folder = downloadFolder.toAbsolutePath().normalize();
+        Path path;
+        try {
+            path = folder.resolve(fileName).normalize();
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName, e);
+        }
+        if (!path.startsWith(folder) || path.equals(folder) || path.startsWith(folder.resolve(".temp"))) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName);
+        }
+        return path;
+    }
+
+    /**
+     * Files of subfolders are kept at the top of the temporary folder, like the others, under their name with
+     * the separators escaped. The escape character is escaped first, so two names never share a temporary name.
+     */
+    static String temporaryName(String fileName) {
+        return fileName.replace("%", "%25").replace("/", "%2F");
+    }
+
+    /**
+     * Creates the temporary folder inside the download folder if it does not exist.
+     */
+    private Path temporaryFolder() throws IOException {
         Path temporaryFolder = downloadFolder.resolve(".temp");
         synchronized (tempFolderLock){
             if (!Files.exists(temporaryFolder)) {
@@ -197,61 +743,139 @@ public class FileTransferring implements Runnable, Closeable {
                 temporaryFolder.toFile().deleteOnExit();
             }
         }
-        File file = getBytes(fileName, owner, startByte, endByte, progressTracker);
-        if (file.length() == 0) {
-            file.delete();
-            file = getBytes(fileName, owner, startByte, endByte, progressTracker);
-            if (file.length() == 0) {
-                logger.log(Level.SEVERE, "Error downloading file bytes for both encoded and uncoded name: " + fileName);
-                throw new IOException("Error downloading file bytes for encoded name: " + fileName);
-            }
-        }
-        return file;
+        return temporaryFolder;
     }
 
-    private @NotNull File getBytes(String fileName, String owner, long startByte, long endByte, Function<Long, Void> progressTracker) throws IOException {
-        File tempFile = File.createTempFile(fileName, startByte + "-" + endByte + UUID.randomUUID(), downloadFolder.toFile());
-        tempFile.deleteOnExit();
-
-        try (
-                Socket socket = new Socket(owner, FILE_TRANSFER_PORT);
-                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-                DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
-                FileOutputStream fileOutputStream = new FileOutputStream(tempFile)
-        ) {
-            writer.println(ProtocolCommand.GET.format(fileName, startByte, endByte));
-            writer.flush();
+    /**
+     * Download a set of bytes of a given file from the specified owner
+     *
+     * @param fileName  the name of the file to be downloaded
+     * @param owner     the owner of the file
+     * @param startByte the start byte
+     * @param endByte   the end byte
+     * @param downloadWriter where the bytes are written, at their position in the file
+     * @param digest         updated with the received bytes, may be <code>null</code>
+     * @param onReceived     called with the number of bytes of each read, once they are written
+     * @return the number of bytes received
+     * @throws SocketTimeoutException if the range takes longer than it would at {@link #MIN_RANGE_BYTES_PER_SECOND}
+     * @throws IOException if an I/O error occurs
+     */
+    private long getBytes(String fileName, String owner, long startByte, long endByte, DownloadWriter downloadWriter, MessageDigest digest, LongConsumer onReceived) throws IOException {
+        PeerConnection connection = connectionPool.borrow(owner);
+        // Only a connection whose response was read to the end can be used for the next request
+        boolean reusable = false;
+        try {
+            long timeoutMillis = MIN_RANGE_TIMEOUT_MILLIS + (endByte - startByte) * 1000 / MIN_RANGE_BYTES_PER_SECOND;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            // A stalled owner is given up on after the time of the whole range, not only of a single read
+            connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+            long contentLength = connection.requestRange(fileName, startByte, endByte);
+            if (contentLength < 0) {
+                reusable = true;
+                throw new IOException(owner + " does not have " + fileName);
+            }
+            if (contentLength > endByte - startByte) {
+                throw new IOException(owner + " announced " + contentLength + " bytes for a range of " + (endByte - startByte));
+            }
 
+            DataInputStream dataInputStream = connection.input();
             int bytes;
             byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
             long totalBytes = 0;
 
-            while ((bytes = dataInputStream.read(buffer)) != -1) {
-                bytes = (int) Math.min(bytes, endByte - startByte - totalBytes);
+            while (totalBytes < contentLength) {
+                bytes = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, contentLength - totalBytes));
+                if (bytes == -1) {
+                    throw new EOFException("Connection to " + owner + " closed after " + totalBytes + " of " + contentLength + " bytes");
+                }
+                if (digest != null) digest.update(buffer, 0, bytes);
+                byteBuffer.clear().limit(bytes);
+                downloadWriter.write(byteBuffer, startByte + totalBytes);
                 totalBytes += bytes;
-                progressTracker.apply(totalBytes);
-                fileOutputStream.write(buffer, 0, bytes);
-
-                if (totalBytes >= endByte - startByte) {
-                    break;
+                onReceived.accept(bytes);
+                if (totalBytes < contentLength && System.nanoTime() - deadline > 0) {
+                    throw new SocketTimeoutException("Range of " + fileName + " from " + owner + " timed out after " + totalBytes + " of " + contentLength + " bytes");
                 }
             }
-            fileOutputStream.flush();
-            return tempFile;
-
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Error downloading file bytes", e);
-            throw new RuntimeException(e);
+            reusable = true;
+            return totalBytes;
+        } finally {
+            connectionPool.release(connection, reusable);
         }
     }
 
     @Override
     public void close() throws IOException {
         serverSocket.close();
+        connectionPool.close();
+        uploadExecutor.close();
+        idleConnections.close();
+        ownerWorkers.shutdown();
+        progressReporter.close();
+    }
+
+    private static ExecutorService newOwnerWorkers() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Download-Owner-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Chooses between sending files with {@link FileChannel#transferTo} (the default) or copying them
+     * through a heap buffer.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Chooses whether the files of at least {@value #MEMORY_MAPPED_MIN_SIZE} bytes are sent and downloaded through
+     * memory-mapped windows, instead of the mode chosen with {@link #setZeroCopy(boolean)} and positional writes.
+     * On Windows the downloads keep the positional writes, see {@link MappedDownloadWriter}.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Changes how the next upload connections are run, the ones already running are left to finish.
+     */
+    public void setUploadMode(UploadMode uploadMode) {
+        UploadExecutor previous = uploadExecutor;
+        if (previous.getMode() == uploadMode) return;
+        uploadExecutor = new UploadExecutor(uploadMode);
+        previous.shutdown();
+    }
+
+    /**
+     * @return the upload bandwidth limits, which may be changed while uploading
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    public TransferStatistics getStatistics() {
+        return statistics;
+    }
+
+    public PeerHealth getPeerHealth() {
+        return peerHealth;
+    }
+
+    public PeerConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public UploadExecutor getUploadExecutor() {
+        return uploadExecutor;
     }
 
     public boolean isBeingUploaded(File file) {
-        return filesBeingUploaded.contains(file.getName());
+        return filesBeingUploaded.containsKey(client.getSharedName(file));
     }
 
     public void addFileTraficListener(FileTraficListener listener) {
@@ -259,10 +883,10 @@ public class FileTransferring implements Runnable, Closeable {
     }
 
     public void addDownloadProgressListener(DownloadProgressListener listener) {
-        traficListeners.add((action, fileInfo) -> {
-            if (action == FileAction.DOWNLOAD_PROGRESS) {
-                listener.onProgressUpdate(fileInfo, downloadProgress.get(fileInfo.name()));
-            }
-        });
+        progressReporter.addListener(listener);
+    }
+
+    public void removeDownloadProgressListener(DownloadProgressListener listener) {
+        progressReporter.removeListener(listener);
     }
 }
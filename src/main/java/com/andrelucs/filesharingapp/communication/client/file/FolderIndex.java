@@ -0,0 +1,118 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What is known of the files of a shared folder, saved in the folder so the next start does not read them again.<br/>
+ * Each entry has the size and modification time the file had when it was last checked and its hash tree, if it was
+ * computed. On start the files are shared from the index and checked against the folder in the background, only the
+ * ones whose size or modification time changed are hashed again.<br/>
+ * The index file holds a version, the piece size the trees were computed with and the entries. An index with another
+ * version or piece size is ignored and the folder is read from scratch.
+ */
+public class FolderIndex {
+    private static final Logger logger = Logger.getLogger(FolderIndex.class.getName());
+    private static final int VERSION = 1;
+
+    /**
+     * @param hashTree the hash tree of the file when it had this size and modification time,
+     *                 <code>null</code> if it was not computed yet
+     */
+    public record Entry(long size, long lastModified, HashTree hashTree) {
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries;
+    private volatile boolean changed = false;
+
+    private FolderIndex(Path indexFile, Map<String, Entry> entries) {
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Loads the index saved in the file, an empty index if it is missing or can not be read.
+     */
+    public static FolderIndex load(Path indexFile) {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.exists(indexFile)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                if (input.readInt() == VERSION && input.readInt() == PieceScheduler.PIECE_SIZE) {
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String fileName = input.readUTF();
+                        long size = input.readLong();
+                        long lastModified = input.readLong();
+                        HashTree hashTree = input.readBoolean() ? HashTree.readFrom(input, PieceScheduler.pieceCount(size)) : null;
+                        entries.put(fileName, new Entry(size, lastModified, hashTree));
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read the folder index " + indexFile + ", reading the folder again", e);
+                entries.clear();
+            }
+        }
+        return new FolderIndex(indexFile, entries);
+    }
+
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * @return the entries by file name, changes to the index after the call may or may not be seen
+     */
+    public Map<String, Entry> entries() {
+        return entries;
+    }
+
+    public void put(String fileName, Entry entry) {
+        entries.put(fileName, entry);
+        changed = true;
+    }
+
+    public void remove(String fileName) {
+        if (entries.remove(fileName) != null) changed = true;
+    }
+
+    /**
+     * Saves the index if it changed since it was loaded or last saved.<br/>
+     * Like the download states it is written to a temporary file moved over the previous one,
+     * so an exit in the middle of a save never leaves a broken index.
+     */
+    public synchronized void saveIfChanged() throws IOException {
+        if (!changed) return;
+        // Changes made while saving are saved the next time
+        changed = false;
+        Files.createDirectories(indexFile.getParent());
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            Map<String, Entry> snapshot = Map.copyOf(entries);
+            output.writeInt(VERSION);
+            output.writeInt(PieceScheduler.PIECE_SIZE);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().size());
+                output.writeLong(entry.getValue().lastModified());
+                HashTree hashTree = entry.getValue().hashTree();
+                output.writeBoolean(hashTree != null);
+                if (hashTree != null) hashTree.writeTo(output);
+            }
+        } catch (IOException e) {
+            changed = true;
+            throw e;
+        }
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
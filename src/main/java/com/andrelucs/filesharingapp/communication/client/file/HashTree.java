@@ -0,0 +1,148 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * SHA-256 hashes of the pieces of a file, combined in a Merkle tree.<br/>
+ * Only the root is advertised to the server, a downloader gets the piece hashes from an owner, checks that they
+ * lead to the advertised root and then checks every piece against its own hash as soon as it is downloaded.
+ * The pieces are the same {@link PieceScheduler#PIECE_SIZE} pieces the downloads are split in.
+ */
+public class HashTree {
+    public static final int HASH_LENGTH = 32;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Prefix of the inner nodes, so a piece hash can not be taken for an inner node
+    private static final byte INNER_NODE = 1;
+
+    private final List<byte[]> pieceHashes;
+    private final byte[] root;
+
+    private HashTree(List<byte[]> pieceHashes) {
+        this.pieceHashes = pieceHashes;
+        this.root = computeRoot(pieceHashes);
+    }
+
+    /**
+     * Reads the whole file to hash its pieces.
+     */
+    public static HashTree of(Path file) throws IOException {
+        return of(file, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    /**
+     * Reads the whole file to hash its pieces, through the given buffer.
+     *
+     * @param buffer the buffer the file is read into, a direct one avoids copying the file through the heap
+     */
+    public static HashTree of(Path file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int pieceCount = PieceScheduler.pieceCount(size);
+            List<byte[]> pieceHashes = new ArrayList<>(pieceCount);
+            MessageDigest digest = newDigest();
+            for (int piece = 0; piece < pieceCount; piece++) {
+                long position = (long) piece * PieceScheduler.PIECE_SIZE;
+                long end = Math.min(size, position + PieceScheduler.PIECE_SIZE);
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) throw new IOException(file + " was truncated while being hashed");
+                    position += read;
+                    digest.update(buffer.flip());
+                }
+                pieceHashes.add(digest.digest());
+            }
+            return new HashTree(pieceHashes);
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] computeRoot(List<byte[]> pieceHashes) {
+        MessageDigest digest = newDigest();
+        if (pieceHashes.isEmpty()) return digest.digest();
+        List<byte[]> level = pieceHashes;
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    // The last node of an odd level goes up unchanged
+                    parents.add(level.get(i));
+                    continue;
+                }
+                digest.update(INNER_NODE);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            level = parents;
+        }
+        return level.getFirst();
+    }
+
+    /**
+     * @return the root of the tree as a hex string, the form advertised to the server
+     */
+    public String root() {
+        return HexFormat.of().formatHex(root);
+    }
+
+    public int pieceCount() {
+        return pieceHashes.size();
+    }
+
+    /**
+     * @param hash the SHA-256 hash of the downloaded piece
+     */
+    public boolean verifyPiece(int piece, byte[] hash) {
+        return MessageDigest.isEqual(pieceHashes.get(piece), hash);
+    }
+
+    /**
+     * Writes the piece hashes in the format of the HASHES response, without flushing the stream.
+     */
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(pieceHashes.size());
+        for (byte[] pieceHash : pieceHashes) {
+            output.write(pieceHash);
+        }
+    }
+
+    /**
+     * Reads the piece hashes of a HASHES response.
+     *
+     * @param maxPieces the number of pieces the file should have, larger responses are rejected
+     * @return the tree, or <code>null</code> if the owner does not have the hashes
+     */
+    public static HashTree readFrom(DataInputStream input, int maxPieces) throws IOException {
+        int pieceCount = input.readInt();
+        if (pieceCount < 0) return null;
+        if (pieceCount > maxPieces) throw new IOException("Too many piece hashes: " + pieceCount);
+        List<byte[]> pieceHashes = new ArrayList<>(pieceCount);
+        for (int piece = 0; piece < pieceCount; piece++) {
+            byte[] pieceHash = new byte[HASH_LENGTH];
+            input.readFully(pieceHash);
+            pieceHashes.add(pieceHash);
+        }
+        return new HashTree(pieceHashes);
+    }
+}
@@ -0,0 +1,143 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes the hash trees of shared files on a few worker threads, away from the threads that track the folder.<br/>
+ * Files waiting to be hashed are taken by priority, then newest first, so a file that was just added is hashed
+ * before the rest of a large folder. Submitting a file again replaces its waiting job, a file is only reported
+ * once for its last submission and only if it did not change while it was read.<br/>
+ * Files are identified by their shared name.
+ */
+public class HashingService implements Closeable {
+    // One core is left for the transfers and the interface
+    public static final int DEFAULT_WORKERS = Math.clamp(Runtime.getRuntime().availableProcessors() - 1, 1, 4);
+    private static final Logger logger = Logger.getLogger(HashingService.class.getName());
+
+    public enum Priority {
+        // Files that were just added or changed
+        RECENT,
+        // Files found when the folder is read
+        BACKLOG
+    }
+
+    public interface HashListener {
+        /**
+         * Called on a worker thread when a file is hashed.
+         *
+         * @param fileName     the shared name the file was submitted with
+         * @param size         the size of the file when it was hashed
+         * @param lastModified the modification time of the file when it was hashed
+         */
+        void onHashed(String fileName, File file, long size, long lastModified, HashTree hashTree);
+    }
+
+    private record Job(String fileName, File file, Priority priority, long sequence) {
+    }
+
+    private static final Comparator<Job> JOB_ORDER = Comparator.comparing(Job::priority)
+            .thenComparing(Comparator.comparingLong(Job::sequence).reversed());
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(64, JOB_ORDER);
+    // The last job of each file, older jobs still in the queue are skipped
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Thread> workers = new ArrayList<>();
+    private final HashListener listener;
+
+    public HashingService(int workerCount, HashListener listener) {
+        this.listener = listener;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "Hashing-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public void submit(String fileName, File file, Priority priority) {
+        Job job = new Job(fileName, file, priority, sequence.incrementAndGet());
+        jobs.put(fileName, job);
+        queue.add(job);
+    }
+
+    /**
+     * @param files the files to hash, by shared name
+     */
+    public void submitAll(Map<String, File> files, Priority priority) {
+        files.forEach((fileName, file) -> submit(fileName, file, priority));
+    }
+
+    /**
+     * Forgets the file, a hash already being computed is not reported.
+     */
+    public void cancel(String fileName) {
+        jobs.remove(fileName);
+    }
+
+    /**
+     * @return true while the file waits or is being hashed
+     */
+    public boolean isPending(String fileName) {
+        return jobs.containsKey(fileName);
+    }
+
+    public int getPendingCount() {
+        return jobs.size();
+    }
+
+    private void work() {
+        // Reused for every file, the pieces are read straight into native memory
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PieceScheduler.PIECE_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (jobs.get(job.fileName()) == job) hash(job, buffer);
+        }
+    }
+
+    private void hash(Job job, ByteBuffer buffer) {
+        File file = job.file();
+        try {
+            if (!file.isFile()) return;
+            long lastModified = file.lastModified();
+            long size = file.length();
+            HashTree hashTree = HashTree.of(file.toPath(), buffer);
+            // Hashed again once the change settles
+            if (file.lastModified() != lastModified || file.length() != size) return;
+            if (jobs.get(job.fileName()) != job) return;
+            listener.onHashed(job.fileName(), file, size, lastModified, hashTree);
+        } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) logger.log(Level.WARNING, "Could not hash " + file, e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Hash listener failed for " + file, e);
+        } finally {
+            // Removed after the listener, so the file is pending until its hash is known
+            jobs.remove(job.fileName(), job);
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.forEach(Thread::interrupt);
+        queue.clear();
+        jobs.clear();
+    }
+}
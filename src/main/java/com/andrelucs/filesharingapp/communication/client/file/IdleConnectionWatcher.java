@@ -0,0 +1,157 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the next request of the upload connections kept open between requests, on a single thread.<br/>
+ * A connection is handed over with {@link #watch(SocketChannel, Consumer)} once it has no request to answer,
+ * so it does not hold an upload thread while the peer is not using it. When the next request arrives the
+ * channel is made blocking again and given back to be served, a connection idle for longer than the timeout
+ * is closed.
+ */
+class IdleConnectionWatcher implements Closeable {
+    private static final Logger logger = Logger.getLogger(IdleConnectionWatcher.class.getName());
+    // How often the idle connections are checked for the timeout
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private record Watched(SocketChannel channel, Consumer<SocketChannel> onRequest, long idleSince) {
+    }
+
+    private final long idleTimeoutMillis;
+    private final Selector selector;
+    private final Queue<Watched> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    IdleConnectionWatcher(long idleTimeoutMillis) throws IOException {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.selector = Selector.open();
+        Thread thread = new Thread(this::run, "Upload Idle Connections");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the next request of a connection without a thread.
+     *
+     * @param onRequest called on the watcher thread with the channel, blocking again, once a request arrived;
+     *                  it must not block, it only hands the connection to the thread that serves it
+     * @return false if the connection can not be watched, the caller keeps it
+     */
+    boolean watch(SocketChannel channel, Consumer<SocketChannel> onRequest) {
+        if (closed || channel == null) return false;
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            return false;
+        }
+        // Registered by the watcher thread, registering from another thread would block while it selects
+        pending.add(new Watched(channel, onRequest, System.currentTimeMillis()));
+        selector.wakeup();
+        return true;
+    }
+
+    private void run() {
+        long lastCheck = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                selector.select(CHECK_INTERVAL_MILLIS);
+                registerPending();
+                List<Watched> readable = new ArrayList<>();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    key.cancel();
+                    readable.add((Watched) key.attachment());
+                }
+                selector.selectedKeys().clear();
+                if (System.currentTimeMillis() - lastCheck >= CHECK_INTERVAL_MILLIS) {
+                    lastCheck = System.currentTimeMillis();
+                    closeExpired(lastCheck);
+                }
+                if (readable.isEmpty()) continue;
+                // A channel can only be made blocking once the selector dropped its cancelled key
+                selector.selectNow();
+                selector.selectedKeys().clear();
+                readable.forEach(this::handOver);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error waiting for idle upload connections", e);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error handing over an upload connection", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void registerPending() {
+        Watched watched;
+        while ((watched = pending.poll()) != null) {
+            try {
+                watched.channel().register(selector, SelectionKey.OP_READ, watched);
+            } catch (IOException e) {
+                closeQuietly(watched.channel());
+            }
+        }
+    }
+
+    private void handOver(Watched watched) {
+        try {
+            watched.channel().configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(watched.channel());
+            return;
+        }
+        watched.onRequest().accept(watched.channel());
+    }
+
+    private void closeExpired(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Watched watched = (Watched) key.attachment();
+            if (key.isValid() && now - watched.idleSince() >= idleTimeoutMillis) {
+                logger.fine("Closing idle connection from " + watched.channel().socket().getInetAddress());
+                key.cancel();
+                closeQuietly(watched.channel());
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(((Watched) key.attachment()).channel());
+        }
+        Watched watched;
+        while ((watched = pending.poll()) != null) {
+            closeQuietly(watched.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing the idle connection selector", e);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing idle connection", e);
+        }
+    }
+
+    /**
+     * Closes the idle connections, the ones being served are left to their threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,99 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link DownloadWriter} that copies the ranges into memory-mapped windows of the file instead of writing them
+ * with a system call each.<br/>
+ * The file is mapped {@value #WINDOW_SIZE} bytes at a time, as the pieces reach each window, and only the last
+ * {@value #MAX_MAPPED_WINDOWS} windows used stay mapped, so the address space used does not grow with the file.
+ * A window is forced to the storage device when it is dropped, since syncing the file does not write the pages of
+ * a mapping on every platform, and {@link #force()} forces the windows still kept.<br/>
+ * Java has no way to unmap a window, the dropped ones stay mapped until they are garbage collected. Windows does
+ * not move or delete a file while a part of it is mapped, so {@link DownloadWriter#open(Path, long, boolean)} does
+ * not use this writer there: the complete download could not be moved out of the temporary folder.
+ */
+public class MappedDownloadWriter extends DownloadWriter {
+    public static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 16;
+
+    // By last use, guarded by itself
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<>(MAX_MAPPED_WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            if (size() <= MAX_MAPPED_WINDOWS) return false;
+            // Pieces are only recorded as complete after a force, which no longer reaches this window
+            eldest.getValue().force();
+            return true;
+        }
+    };
+
+    public MappedDownloadWriter(Path target, long size) throws IOException {
+        super(target, size);
+    }
+
+    private MappedByteBuffer window(long index) throws IOException {
+        synchronized (windows) {
+            MappedByteBuffer window = windows.get(index);
+            if (window == null) {
+                long start = index * WINDOW_SIZE;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+                windows.put(index, window);
+            }
+            return window;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer data, long position) throws IOException {
+        checkRange("Write", data, position);
+        while (data.hasRemaining()) {
+            long index = position / WINDOW_SIZE;
+            MappedByteBuffer window = window(index);
+            int offset = (int) (position - index * WINDOW_SIZE);
+            int length = Math.min(data.remaining(), window.capacity() - offset);
+            // Absolute puts, the workers write their pieces into the same window at the same time
+            window.put(offset, data, data.position(), length);
+            data.position(data.position() + length);
+            position += length;
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer data, long position) throws IOException {
+        checkRange("Read", data, position);
+        while (data.hasRemaining()) {
+            long index = position / WINDOW_SIZE;
+            MappedByteBuffer window = window(index);
+            int offset = (int) (position - index * WINDOW_SIZE);
+            int length = Math.min(data.remaining(), window.capacity() - offset);
+            data.put(data.position(), window, offset, length);
+            data.position(data.position() + length);
+            position += length;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        synchronized (windows) {
+            windows.values().forEach(MappedByteBuffer::force);
+        }
+        super.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (windows) {
+            windows.values().forEach(MappedByteBuffer::force);
+            // Unmapped once collected, until then the file can only be moved on the platforms that allow it
+            windows.clear();
+        }
+        super.close();
+    }
+}
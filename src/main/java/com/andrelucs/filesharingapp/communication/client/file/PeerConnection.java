@@ -0,0 +1,83 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection to the transfer port of an owner, kept open for many requests.<br/>
+ * Borrowed from a {@link PeerConnectionPool} by one piece worker at a time.
+ */
+public class PeerConnection implements Closeable {
+    private final String owner;
+    private final Socket socket;
+    private final PrintWriter writer;
+    private final DataInputStream input;
+    private long lastUsed = System.currentTimeMillis();
+
+    PeerConnection(String owner, int port, int timeoutMillis) throws IOException {
+        this.owner = owner;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(owner, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Asks for a range of the file, the bytes are then read from {@link #input()}.
+     *
+     * @param endByte the end byte, exclusive
+     * @return the number of bytes the owner is sending, -1 if it does not have the file
+     */
+    public long requestRange(String fileName, long startByte, long endByte) throws IOException {
+        writer.println(ProtocolCommand.GETRANGE.format(fileName, startByte, endByte));
+        return input.readLong();
+    }
+
+    /**
+     * Asks for the piece hashes of the file.
+     *
+     * @return the hash tree, or <code>null</code> if the owner does not have it
+     */
+    public HashTree requestHashes(String fileName, int maxPieces) throws IOException {
+        writer.println(ProtocolCommand.HASHES.format(fileName));
+        return HashTree.readFrom(input, maxPieces);
+    }
+
+    public DataInputStream input() {
+        return input;
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    /**
+     * Changes how long a read waits for the owner, for the next request.
+     */
+    void setReadTimeout(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
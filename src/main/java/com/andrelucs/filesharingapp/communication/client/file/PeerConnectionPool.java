@@ -0,0 +1,149 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the connections to the owners open between requests, so the pieces of a download do not pay
+ * a new TCP connection (and its slow start) each.<br/>
+ * A connection is borrowed by one worker at a time and given back once its response was fully read,
+ * a connection that failed in the middle of a response is closed instead, it can not be reused.<br/>
+ * The connections in use to each owner are limited for all the downloads together, so running several
+ * downloads from the same owner does not open more connections to it than it is willing to serve.
+ */
+public class PeerConnectionPool implements Closeable {
+    private static final Logger logger = Logger.getLogger(PeerConnectionPool.class.getName());
+    private static final int MAX_IDLE_PER_OWNER = 4;
+    // Shorter than the time the owners keep an idle connection open
+    private static final long MAX_IDLE_MILLIS = 30_000;
+    private static final int TIMEOUT_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_OWNER = 4;
+
+    private final int port;
+    private final Map<String, Deque<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+    // Connections borrowed from each owner, guarded by itself
+    private final Map<String, Integer> borrowedConnections = new HashMap<>();
+    private int maxConnectionsPerOwner = DEFAULT_MAX_CONNECTIONS_PER_OWNER;
+    private volatile boolean closed = false;
+
+    public PeerConnectionPool(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Waits until fewer than {@link #getMaxConnectionsPerOwner()} connections to the owner are borrowed.
+     *
+     * @return an idle connection to the owner, or a new one if there is none
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public PeerConnection borrow(String owner) throws IOException {
+        if (closed) throw new IOException("The connection pool is closed");
+        acquirePermit(owner);
+        try {
+            Deque<PeerConnection> idle = idleConnections.get(owner);
+            PeerConnection connection;
+            while (idle != null && (connection = idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - connection.lastUsed() < MAX_IDLE_MILLIS) {
+                    return connection;
+                }
+                closeQuietly(connection);
+            }
+            return new PeerConnection(owner, port, TIMEOUT_MILLIS);
+        } catch (IOException | RuntimeException e) {
+            releasePermit(owner);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back.
+     *
+     * @param reusable false if the connection failed or its response was not fully read, so it is closed
+     */
+    public void release(PeerConnection connection, boolean reusable) {
+        releasePermit(connection.owner());
+        if (!reusable || closed) {
+            closeQuietly(connection);
+            return;
+        }
+        connection.touch();
+        Deque<PeerConnection> idle = idleConnections.computeIfAbsent(connection.owner(), owner -> new ConcurrentLinkedDeque<>());
+        // Most recently used first, so the extra connections of a busy moment are the ones that expire
+        idle.addFirst(connection);
+        while (idle.size() > MAX_IDLE_PER_OWNER) {
+            PeerConnection extra = idle.pollLast();
+            if (extra != null) closeQuietly(extra);
+        }
+    }
+
+    private void acquirePermit(String owner) throws InterruptedIOException {
+        synchronized (borrowedConnections) {
+            try {
+                while (borrowedConnections.getOrDefault(owner, 0) >= maxConnectionsPerOwner) {
+                    borrowedConnections.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + owner);
+            }
+            borrowedConnections.merge(owner, 1, Integer::sum);
+        }
+    }
+
+    private void releasePermit(String owner) {
+        synchronized (borrowedConnections) {
+            // Removed once none is borrowed, so owners that are gone do not stay in the map
+            borrowedConnections.computeIfPresent(owner, (key, count) -> count > 1 ? count - 1 : null);
+            borrowedConnections.notifyAll();
+        }
+    }
+
+    /**
+     * Changes how many connections to the same owner can be borrowed at the same time.
+     */
+    public void setMaxConnectionsPerOwner(int maxConnectionsPerOwner) {
+        synchronized (borrowedConnections) {
+            this.maxConnectionsPerOwner = Math.max(1, maxConnectionsPerOwner);
+            borrowedConnections.notifyAll();
+        }
+    }
+
+    public int getMaxConnectionsPerOwner() {
+        synchronized (borrowedConnections) {
+            return maxConnectionsPerOwner;
+        }
+    }
+
+    /**
+     * Closes the idle connections to an owner, when it is known to be gone.
+     */
+    public void closeIdle(String owner) {
+        Deque<PeerConnection> idle = idleConnections.remove(owner);
+        if (idle != null) idle.forEach(this::closeQuietly);
+    }
+
+    private void closeQuietly(PeerConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing connection to " + connection.owner(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (String owner : new ArrayList<>(idleConnections.keySet())) {
+            closeIdle(owner);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which owners failed recently, for all the downloads together.<br/>
+ * An owner that keeps failing is left alone for a while, longer after each failure, so the downloads that need
+ * another owner pick one that is more likely to answer. A single successful request makes it healthy again.
+ */
+public class PeerHealth {
+    private static final long INITIAL_BACKOFF_MILLIS = 5_000;
+    private static final long MAX_BACKOFF_MILLIS = 120_000;
+
+    private record Failures(int count, long unavailableUntil) {
+    }
+
+    private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+
+    public void recordSuccess(String owner) {
+        failures.remove(owner);
+    }
+
+    public void recordFailure(String owner) {
+        failures.compute(owner, (key, previous) -> {
+            int count = previous == null ? 1 : previous.count() + 1;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(count - 1, 16));
+            return new Failures(count, System.currentTimeMillis() + backoff);
+        });
+    }
+
+    /**
+     * @return false while the owner is being left alone after failing
+     */
+    public boolean isAvailable(String owner) {
+        Failures ownerFailures = failures.get(owner);
+        return ownerFailures == null || System.currentTimeMillis() >= ownerFailures.unavailableUntil();
+    }
+
+    /**
+     * @return the failures in a row of the owner, 0 if it is healthy
+     */
+    public int getFailures(String owner) {
+        Failures ownerFailures = failures.get(owner);
+        return ownerFailures == null ? 0 : ownerFailures.count();
+    }
+}
@@ -0,0 +1,171 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits a download in fixed size pieces that the owner workers take one at a time.<br/>
+ * Each worker asks for the next piece as soon as it finishes the previous one, so faster owners naturally
+ * download more pieces. A piece that could not be downloaded goes back to the queue for the other workers,
+ * along with how many of its bytes were received, so the next worker only downloads the rest of it.
+ */
+public class PieceScheduler {
+    public static final int PIECE_SIZE = 1024 * 1024;
+
+    private final long fileSize;
+    private final int pieceCount;
+    private final Deque<Integer> pendingPieces = new ArrayDeque<>();
+    // Bytes received of the pieces given back before they were complete
+    private final Map<Integer, Long> receivedBytes = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int completedPieces = 0;
+    private int activeWorkers;
+
+    /**
+     * @param fileSize the size of the file being downloaded
+     * @param workers  the number of workers that will take pieces
+     */
+    public PieceScheduler(long fileSize, int workers) {
+        this(fileSize, workers, new BitSet());
+    }
+
+    /**
+     * @param fileSize        the size of the file being downloaded
+     * @param workers         the number of workers that will take pieces
+     * @param completedPieces the pieces that are already downloaded, from a previous attempt
+     */
+    public PieceScheduler(long fileSize, int workers, BitSet completedPieces) {
+        this.fileSize = fileSize;
+        this.pieceCount = pieceCount(fileSize);
+        this.activeWorkers = workers;
+        for (int piece = 0; piece < pieceCount; piece++) {
+            if (completedPieces.get(piece)) {
+                this.completedPieces++;
+            } else {
+                pendingPieces.add(piece);
+            }
+        }
+    }
+
+    public static int pieceCount(long fileSize) {
+        return (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+    }
+
+    /**
+     * Takes the next piece to download. If there is none left but other workers are still downloading,
+     * waits in case one of them gives its piece back.
+     *
+     * @return the piece index, or -1 when there is nothing left to do for this worker
+     */
+    public int takePiece() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pendingPieces.isEmpty() && !isFinished()) {
+                changed.await();
+            }
+            Integer piece = pendingPieces.poll();
+            return piece == null ? -1 : piece;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void complete(int piece) {
+        lock.lock();
+        try {
+            receivedBytes.remove(piece);
+            completedPieces++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a piece that was not downloaded, it is the next one to be taken and downloaded from its start.
+     */
+    public void release(int piece) {
+        release(piece, 0);
+    }
+
+    /**
+     * Gives back a piece that was partially downloaded, it is the next one to be taken.
+     *
+     * @param received how many bytes from the start of the piece are already written
+     */
+    public void release(int piece, long received) {
+        lock.lock();
+        try {
+            if (received > 0) {
+                receivedBytes.put(piece, Math.min(received, pieceEnd(piece) - pieceStart(piece)));
+            } else {
+                receivedBytes.remove(piece);
+            }
+            pendingPieces.addFirst(piece);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many bytes from the start of a taken piece were already written by a previous worker
+     */
+    public long receivedBytes(int piece) {
+        lock.lock();
+        try {
+            return receivedBytes.getOrDefault(piece, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called by every worker when it stops taking pieces, when the last one stops
+     * the download can not make progress anymore.
+     */
+    public void workerStopped() {
+        lock.lock();
+        try {
+            activeWorkers--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called holding the lock
+    private boolean isFinished() {
+        return completedPieces == pieceCount || activeWorkers == 0;
+    }
+
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return completedPieces == pieceCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int pieceCount() {
+        return pieceCount;
+    }
+
+    public long pieceStart(int piece) {
+        return (long) piece * PIECE_SIZE;
+    }
+
+    /**
+     * @return the end byte (exclusive) of the piece, the last piece may be shorter
+     */
+    public long pieceEnd(int piece) {
+        return Math.min(fileSize, pieceStart(piece) + PIECE_SIZE);
+    }
+}
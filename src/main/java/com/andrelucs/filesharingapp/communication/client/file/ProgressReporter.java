@@ -0,0 +1,154 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the progress of the downloads at a fixed rate.<br/>
+ * The download workers only add to the counters of a {@link Tracker}, which never blocks and never calls a listener.
+ * A single thread reads the counters every {@link #PUBLISH_INTERVAL_MILLIS} and sends one {@link DownloadProgress}
+ * per download to the listeners, so they see a few updates per second however many bytes arrive.
+ */
+public class ProgressReporter implements Closeable {
+    public static final long PUBLISH_INTERVAL_MILLIS = 200;
+    // Weight of the last interval in the rates, the others fade out over about a second
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final Logger logger = Logger.getLogger(ProgressReporter.class.getName());
+
+    private final Map<String, Tracker> trackers = new ConcurrentHashMap<>();
+    private final List<DownloadProgressListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Progress Publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> publishing;
+
+    /**
+     * The counters of one download, updated by its workers.
+     */
+    public static class Tracker {
+        private final FileInfo file;
+        private final LongAdder downloadedBytes = new LongAdder();
+        private final Map<String, LongAdder> ownerBytes = new ConcurrentHashMap<>();
+        // Only used by the publisher thread
+        private final Map<String, Double> ownerRates = new LinkedHashMap<>();
+        private final Map<String, Long> lastOwnerBytes = new LinkedHashMap<>();
+        private long lastDownloadedBytes;
+        private long lastPublishNanos = System.nanoTime();
+        private double rate;
+
+        private Tracker(FileInfo file, long alreadyDownloaded) {
+            this.file = file;
+            this.downloadedBytes.add(alreadyDownloaded);
+            this.lastDownloadedBytes = alreadyDownloaded;
+        }
+
+        /**
+         * @return the counter of the bytes received from an owner, to be kept by its worker
+         */
+        public LongAdder owner(String owner) {
+            return ownerBytes.computeIfAbsent(owner, key -> new LongAdder());
+        }
+
+        /**
+         * Counts bytes written to the file, negative for bytes that have to be downloaded again.
+         */
+        public void addDownloaded(long bytes) {
+            downloadedBytes.add(bytes);
+        }
+
+        private DownloadProgress snapshot(boolean finished) {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-3, (now - lastPublishNanos) / 1e9);
+            lastPublishNanos = now;
+
+            long downloaded = downloadedBytes.sum();
+            rate = smooth(rate, Math.max(0, downloaded - lastDownloadedBytes) / seconds);
+            lastDownloadedBytes = downloaded;
+
+            Map<String, DownloadProgress.OwnerProgress> owners = new LinkedHashMap<>();
+            ownerBytes.forEach((owner, counter) -> {
+                long received = counter.sum();
+                double ownerRate = smooth(ownerRates.getOrDefault(owner, 0d), (received - lastOwnerBytes.getOrDefault(owner, 0L)) / seconds);
+                ownerRates.put(owner, ownerRate);
+                lastOwnerBytes.put(owner, received);
+                owners.put(owner, new DownloadProgress.OwnerProgress(received, ownerRate));
+            });
+
+            long remaining = Math.max(0, file.size() - downloaded);
+            long eta = remaining == 0 ? 0 : rate < 1 ? -1 : (long) Math.ceil(remaining / rate);
+            return new DownloadProgress(file, downloaded, rate, eta, owners, finished);
+        }
+
+        private static double smooth(double previous, double sample) {
+            return previous == 0 ? sample : previous + RATE_SMOOTHING * (sample - previous);
+        }
+    }
+
+    /**
+     * Starts reporting a download.
+     *
+     * @param alreadyDownloaded bytes of the file that were downloaded by a previous attempt
+     */
+    public synchronized Tracker start(FileInfo file, long alreadyDownloaded) {
+        Tracker tracker = new Tracker(file, alreadyDownloaded);
+        trackers.put(file.name(), tracker);
+        if (publishing == null && !publisher.isShutdown()) {
+            publishing = publisher.scheduleAtFixedRate(this::publish, PUBLISH_INTERVAL_MILLIS, PUBLISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return tracker;
+    }
+
+    /**
+     * Stops reporting a download, its last snapshot is published right away.
+     */
+    public synchronized void finish(Tracker tracker) {
+        if (!trackers.remove(tracker.file.name(), tracker) || publisher.isShutdown()) return;
+        publisher.execute(() -> notifyListeners(tracker.snapshot(true)));
+    }
+
+    private void publish() {
+        synchronized (this) {
+            if (trackers.isEmpty()) {
+                // Started again by the next download
+                publishing.cancel(false);
+                publishing = null;
+                return;
+            }
+        }
+        trackers.values().forEach(tracker -> notifyListeners(tracker.snapshot(false)));
+    }
+
+    private void notifyListeners(DownloadProgress progress) {
+        for (DownloadProgressListener listener : listeners) {
+            try {
+                listener.onProgressUpdate(progress);
+            } catch (RuntimeException e) {
+                // Must not cancel the publishing task
+                logger.log(Level.WARNING, "Progress listener failed", e);
+            }
+        }
+    }
+
+    public void addListener(DownloadProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DownloadProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void close() {
+        publisher.shutdownNow();
+    }
+}
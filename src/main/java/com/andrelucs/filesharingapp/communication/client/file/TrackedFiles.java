@@ -0,0 +1,116 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The files a {@link FileTracker} tracks and which of them the server confirmed as shared, by shared name.<br/>
+ * It is changed by the watch, settle and response reading threads and read by the interface at the same time, so
+ * every operation is thread safe and none of them copies the whole store. Every change gives the store a new
+ * version, {@link #snapshot()} only copies the files when the version changed since the last snapshot, and a
+ * poller that remembers the version of what it shows can skip its work while it is the same.
+ */
+public class TrackedFiles {
+    // Shared by all the stores, so the version of a new store is never the one of the store it replaces
+    private static final AtomicLong versions = new AtomicLong();
+
+    /**
+     * What the store held at a version. It never changes, it may be kept and shared between threads.
+     *
+     * @param files       the tracked files, sorted by shared name
+     * @param sharedNames the names of the files confirmed as shared
+     */
+    public record Snapshot(long version, SortedMap<String, File> files, Set<String> sharedNames) {
+        public static final Snapshot EMPTY = new Snapshot(0, Collections.emptySortedMap(), Set.of());
+
+        public boolean isShared(String fileName) {
+            return sharedNames.contains(fileName);
+        }
+    }
+
+    // Sorted by shared name, so the files of a folder are next to each other
+    private final ConcurrentSkipListMap<String, File> files = new ConcurrentSkipListMap<>();
+    private final Set<String> sharedNames = ConcurrentHashMap.newKeySet();
+    private volatile long version = versions.incrementAndGet();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private void changed() {
+        version = versions.incrementAndGet();
+    }
+
+    public void put(String fileName, File file) {
+        files.put(fileName, file);
+        changed();
+    }
+
+    public void remove(String fileName) {
+        if (files.remove(fileName) != null) changed();
+    }
+
+    public File get(String fileName) {
+        return files.get(fileName);
+    }
+
+    public boolean contains(String fileName) {
+        return files.containsKey(fileName);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * @return the tracked files, a live view that changes with the store
+     */
+    public NavigableMap<String, File> files() {
+        return Collections.unmodifiableNavigableMap(files);
+    }
+
+    /**
+     * @param prefix the shared name of a folder followed by '/', or empty for the whole store
+     * @return the tracked files whose name starts with the prefix, a live view that changes with the store
+     */
+    public NavigableMap<String, File> filesUnder(String prefix) {
+        if (prefix.isEmpty()) return files();
+        // '0' comes right after '/', so this is every name that starts with the prefix
+        return Collections.unmodifiableNavigableMap(files.subMap(prefix, prefix.substring(0, prefix.length() - 1) + '0'));
+    }
+
+    public void setShared(String fileName, boolean shared) {
+        if (shared ? sharedNames.add(fileName) : sharedNames.remove(fileName)) changed();
+    }
+
+    public void setShared(Collection<String> fileNames, boolean shared) {
+        if (shared ? sharedNames.addAll(fileNames) : sharedNames.removeAll(new HashSet<>(fileNames))) changed();
+    }
+
+    public boolean isShared(String fileName) {
+        return sharedNames.contains(fileName);
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * @return the content of the store, copied only if it changed since the last snapshot
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version;
+        if (current.version() == currentVersion) return current;
+        synchronized (this) {
+            current = snapshot;
+            currentVersion = version;
+            if (current.version() == currentVersion) return current;
+            // Read after the version, a change made while copying is at most seen early, never missed.
+            // Cloned, a TreeMap built from the live map trusts a size that may change while it is copied
+            current = new Snapshot(currentVersion, Collections.unmodifiableSortedMap(files.clone()), Set.copyOf(sharedNames));
+            snapshot = current;
+            return current;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what is transferred, in total, per peer and per shared file, and keeps the recent rates in sliding windows.<br/>
+ * The transfer threads only add to lock-free counters, the totals and rates are computed when a {@link Snapshot}
+ * is taken. The rates are approximate, a few bytes counted at the moment a window bucket is reused may be lost.<br/>
+ * A peer idle for longer than {@link BandwidthLimiter#PEER_EXPIRATION_NANOS} is dropped when a snapshot is taken,
+ * like the rates of the {@link BandwidthLimiter}, its counters start over if it comes back.
+ */
+public class TransferStatistics {
+    public static final long WINDOW_MILLIS = 5_000;
+    private static final int WINDOW_BUCKETS = 20;
+    private static final long BUCKET_MILLIS = WINDOW_MILLIS / WINDOW_BUCKETS;
+    // Weight of the last piece in the throughput of a peer
+    private static final double PIECE_RATE_SMOOTHING = 0.25;
+
+    /**
+     * Bytes per {@link #BUCKET_MILLIS}, for the last {@link #WINDOW_MILLIS}.
+     */
+    static class SlidingWindow {
+        private final AtomicLongArray bytes = new AtomicLongArray(WINDOW_BUCKETS);
+        // The bucket number each slot is counting, a slot with an older one is reset before counting again
+        private final AtomicLongArray buckets = new AtomicLongArray(WINDOW_BUCKETS);
+        private final long createdMillis = System.currentTimeMillis();
+
+        void add(long count) {
+            long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+            int slot = (int) (bucket % WINDOW_BUCKETS);
+            long slotBucket = buckets.get(slot);
+            if (slotBucket != bucket && buckets.compareAndSet(slot, slotBucket, bucket)) {
+                bytes.set(slot, 0);
+            }
+            bytes.addAndGet(slot, count);
+        }
+
+        /**
+         * @return bytes per second over the window, the current bucket counted for the time it has run
+         */
+        double rate() {
+            long now = System.currentTimeMillis();
+            long bucket = now / BUCKET_MILLIS;
+            long total = 0;
+            for (int slot = 0; slot < WINDOW_BUCKETS; slot++) {
+                if (bucket - buckets.get(slot) < WINDOW_BUCKETS) total += bytes.get(slot);
+            }
+            // A window younger than its length is not divided by the time before it existed
+            long elapsedMillis = Math.min((WINDOW_BUCKETS - 1) * BUCKET_MILLIS + now % BUCKET_MILLIS, now - createdMillis);
+            return total * 1000.0 / Math.max(1, elapsedMillis);
+        }
+    }
+
+    /**
+     * The counters of one peer, an owner we download from or a peer we upload to.
+     */
+    public static class PeerCounters {
+        private final LongAdder downloadedBytes = new LongAdder();
+        private final LongAdder uploadedBytes = new LongAdder();
+        private final LongAdder completedPieces = new LongAdder();
+        private final LongAdder failedPieces = new LongAdder();
+        private final SlidingWindow downloadWindow = new SlidingWindow();
+        private final SlidingWindow uploadWindow = new SlidingWindow();
+        private volatile double pieceRate = 0;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private PeerCounters() {
+        }
+    }
+
+    /**
+     * @param downloadedBytes bytes received from the peer since it was last idle
+     * @param uploadedBytes   bytes sent to the peer since it was last idle
+     * @param downloadRate    bytes per second received from the peer, over the last {@link #WINDOW_MILLIS}
+     * @param uploadRate      bytes per second sent to the peer, over the last {@link #WINDOW_MILLIS}
+     * @param pieceRate       smoothed rate of the last pieces downloaded from the peer, 0 if there was none yet
+     * @param completedPieces pieces downloaded from the peer
+     * @param failedPieces    pieces that failed while downloading from the peer
+     * @param lastActive      last time something was transferred with the peer, in epoch millis
+     */
+    public record PeerSnapshot(long downloadedBytes, long uploadedBytes, double downloadRate, double uploadRate,
+                               double pieceRate, long completedPieces, long failedPieces, long lastActive) {
+    }
+
+    /**
+     * @param servedBytes bytes sent of each shared file since the start
+     */
+    public record Snapshot(long downloadedBytes, long uploadedBytes, double downloadRate, double uploadRate,
+                           int activeDownloads, int activeUploads, Map<String, PeerSnapshot> peers,
+                           Map<String, Long> servedBytes) {
+    }
+
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final SlidingWindow downloadWindow = new SlidingWindow();
+    private final SlidingWindow uploadWindow = new SlidingWindow();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final Map<String, PeerCounters> peers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> servedBytes = new ConcurrentHashMap<>();
+
+    /**
+     * @return the counters of a peer, to be kept while transferring with it
+     */
+    public PeerCounters peer(String peer) {
+        return peers.computeIfAbsent(peer, key -> new PeerCounters());
+    }
+
+    public void addDownloaded(PeerCounters peer, long bytes) {
+        downloadedBytes.add(bytes);
+        downloadWindow.add(bytes);
+        peer.downloadedBytes.add(bytes);
+        peer.downloadWindow.add(bytes);
+        peer.lastActive = System.currentTimeMillis();
+    }
+
+    public void addUploaded(PeerCounters peer, String fileName, long bytes) {
+        uploadedBytes.add(bytes);
+        uploadWindow.add(bytes);
+        peer.uploadedBytes.add(bytes);
+        peer.uploadWindow.add(bytes);
+        peer.lastActive = System.currentTimeMillis();
+        servedBytes.computeIfAbsent(fileName, key -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Records a piece downloaded from the peer, its rate is what the owners are ranked by.
+     */
+    public void pieceCompleted(PeerCounters peer, long bytes, long nanos) {
+        peer.completedPieces.increment();
+        peer.lastActive = System.currentTimeMillis();
+        double rate = bytes * 1e9 / Math.max(1, nanos);
+        double previous = peer.pieceRate;
+        peer.pieceRate = previous == 0 ? rate : previous + PIECE_RATE_SMOOTHING * (rate - previous);
+    }
+
+    public void pieceFailed(PeerCounters peer) {
+        peer.failedPieces.increment();
+        peer.lastActive = System.currentTimeMillis();
+    }
+
+    public void downloadStarted() {
+        activeDownloads.incrementAndGet();
+    }
+
+    public void downloadFinished() {
+        activeDownloads.decrementAndGet();
+    }
+
+    public void uploadStarted() {
+        activeUploads.incrementAndGet();
+    }
+
+    public void uploadFinished() {
+        activeUploads.decrementAndGet();
+    }
+
+    /**
+     * @return the smoothed piece rate of the peer, 0 if nothing was downloaded from it yet
+     */
+    public double getPieceRate(String peer) {
+        PeerCounters counters = peers.get(peer);
+        return counters == null ? 0 : counters.pieceRate;
+    }
+
+    public PeerSnapshot peerSnapshot(String peer) {
+        PeerCounters counters = peers.get(peer);
+        return counters == null ? null : snapshot(counters);
+    }
+
+    private static PeerSnapshot snapshot(PeerCounters counters) {
+        return new PeerSnapshot(counters.downloadedBytes.sum(), counters.uploadedBytes.sum(),
+                counters.downloadWindow.rate(), counters.uploadWindow.rate(), counters.pieceRate,
+                counters.completedPieces.sum(), counters.failedPieces.sum(), counters.lastActive);
+    }
+
+    /**
+     * Drops the peers nothing was transferred with for longer than {@link BandwidthLimiter#PEER_EXPIRATION_NANOS}.
+     */
+    void expireIdlePeers(long nowMillis) {
+        long expiredBefore = nowMillis - TimeUnit.NANOSECONDS.toMillis(BandwidthLimiter.PEER_EXPIRATION_NANOS);
+        peers.values().removeIf(counters -> counters.lastActive < expiredBefore);
+    }
+
+    public Snapshot snapshot() {
+        expireIdlePeers(System.currentTimeMillis());
+        Map<String, PeerSnapshot> peerSnapshots = new TreeMap<>();
+        peers.forEach((peer, counters) -> peerSnapshots.put(peer, snapshot(counters)));
+        Map<String, Long> served = new TreeMap<>();
+        servedBytes.forEach((file, bytes) -> served.put(file, bytes.sum()));
+        return new Snapshot(downloadedBytes.sum(), uploadedBytes.sum(), downloadWindow.rate(), uploadWindow.rate(),
+                activeDownloads.get(), activeUploads.get(), Collections.unmodifiableMap(peerSnapshots),
+                Collections.unmodifiableMap(served));
+    }
+}
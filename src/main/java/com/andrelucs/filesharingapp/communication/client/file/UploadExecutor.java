@@ -0,0 +1,96 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the upload connections according to an {@link UploadMode}, counting how many are running,
+ * waiting and were refused.
+ */
+public class UploadExecutor implements Closeable {
+    public static final int MAX_UPLOAD_THREADS = 64;
+    public static final int MAX_QUEUED_UPLOADS = 4096;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    private final UploadMode mode;
+    private final ExecutorService executor;
+    private final BlockingQueue<Runnable> queue;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final LongAdder rejectedUploads = new LongAdder();
+
+    public UploadExecutor(UploadMode mode) {
+        this.mode = mode;
+        if (mode == UploadMode.VIRTUAL_THREADS) {
+            this.queue = null;
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Upload-", 0).factory());
+        } else {
+            this.queue = new ArrayBlockingQueue<>(MAX_QUEUED_UPLOADS);
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_UPLOAD_THREADS, MAX_UPLOAD_THREADS,
+                    IDLE_THREAD_SECONDS, TimeUnit.SECONDS, queue,
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "Upload-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // The threads are only kept while there are uploads
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        }
+    }
+
+    /**
+     * Runs the upload, or refuses it if the pool and its queue are full.
+     *
+     * @return false if the upload was refused, the caller must then close its connection
+     */
+    public boolean execute(Runnable upload) {
+        try {
+            executor.execute(() -> {
+                activeUploads.incrementAndGet();
+                try {
+                    upload.run();
+                } finally {
+                    activeUploads.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedUploads.increment();
+            return false;
+        }
+    }
+
+    public UploadMode getMode() {
+        return mode;
+    }
+
+    public int getActiveUploads() {
+        return activeUploads.get();
+    }
+
+    /**
+     * @return the number of connections waiting for a thread, always 0 with virtual threads
+     */
+    public int getQueuedUploads() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getRejectedUploads() {
+        return rejectedUploads.sum();
+    }
+
+    /**
+     * Stops taking new uploads, the running ones are left to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,16 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+/**
+ * How {@link FileTransferring} runs the connections of the peers downloading from this client.
+ */
+public enum UploadMode {
+    /**
+     * A fixed number of platform threads, the connections over that limit wait in a bounded queue
+     * and are refused once it is full.
+     */
+    BOUNDED_POOL,
+    /**
+     * A new virtual thread for each connection, without limit.
+     */
+    VIRTUAL_THREADS
+}
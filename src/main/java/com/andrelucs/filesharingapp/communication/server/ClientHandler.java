@@ -1,15 +1,11 @@
 package com.andrelucs.filesharingapp.communication.server;
 
-import com.andrelucs.filesharingapp.communication.FileInfo;
-import com.andrelucs.filesharingapp.communication.ProtocolCommand;
-
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 import static com.andrelucs.filesharingapp.communication.ProtocolCommand.*;
 
@@ -18,6 +14,7 @@ public class ClientHandler implements Runnable {
     private final Server server;
     private BufferedReader reader;
     private PrintWriter writer;
+    private RequestHandler requestHandler;
 
     public ClientHandler(Socket clientSocket, Server server) {
         this.clientSocket = clientSocket;
@@ -25,6 +22,7 @@ public class ClientHandler implements Runnable {
         try {
             reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
             writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            requestHandler = new RequestHandler(server, clientIp(), writer::println);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -35,8 +33,7 @@ public class ClientHandler implements Runnable {
         String request;
         try {
             while ((request = reader.readLine()) != null) {
-                System.out.println("Request received: " + request);
-                var requestType = handleRequest(request);
+                var requestType = requestHandler.handleRequest(request);
                 if (requestType == LEAVE) break;
             }
         } catch (Exception e) {
@@ -46,61 +43,6 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    /**
-     * Handles the client request and sends the appropriate response.
-     *
-     * @param request The client request.
-     * @return The protocol command that was handled.
-     */
-    private ProtocolCommand handleRequest(String request) {
-        String[] parts = request.split(" ", 2);
-        String[] args = parts.length > 1 ? parts[1].split(" ") : new String[0];
-        var requestType = ProtocolCommand.fromString(parts[0]);
-        switch (requestType) {
-            case JOIN -> joinRequest();
-            case CREATEFILE -> createFileRequest(args);
-            case DELETEFILE -> deleteFileRequest(args);
-            case SEARCH -> fileSearchRequest(args);
-            case LEAVE -> leaveRequest();
-            default -> System.out.println("Unknown request: " + request);
-        }
-        return requestType;
-    }
-
-    private void joinRequest() {
-        System.out.println("Confirming join request...");
-        writer.println(CONFIRMJOIN.format());
-    }
-
-    private void createFileRequest(String[] args) {
-        // The file name is the first part of the args array, and the file size is the last part
-        // Making sure that if the filename has spaces, it is correctly parsed
-        String fileName = Arrays.stream(args).filter(arg -> !arg.equals(args[args.length - 1])).reduce((a, b) -> a + " " + b).orElse("");
-        Long fileSize = Long.parseLong(args[args.length - 1]);
-        server.addToFileList(new FileInfo(fileName, clientIp(), fileSize));
-        System.out.println("File created: " + fileName);
-        writer.println(CONFIRMCREATEFILE.format(fileName));
-    }
-
-    private void deleteFileRequest(String[] args) {
-        String fileName = args[0];
-        server.removeFromFileList(clientIp(), fileName);
-        System.out.println("File deleted: " + fileName);
-        writer.println(CONFIRMDELETEFILE.format(fileName));
-    }
-
-    private void fileSearchRequest(String[] args) {
-        String fileName = Arrays.stream(args).reduce((a, b) -> a + b).orElse("");
-        var files = server.searchFile(fileName);
-        String ip = clientIp();
-        System.out.println(files);
-        files.stream().forEach(fileInfo -> writer.println(FILE.format(fileInfo.name(), fileInfo.owner(), fileInfo.size())));
-    }
-
-    private void leaveRequest() {
-        writer.println(CONFIRMLEAVE.format());
-    }
-
     public String clientIp() {
         return clientSocket.getInetAddress().getHostAddress();
     }
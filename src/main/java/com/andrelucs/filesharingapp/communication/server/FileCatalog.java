@@ -0,0 +1,236 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Thread-safe catalog of the files shared by the connected clients.<br/>
+ * Files are indexed by name (name -> owners) and by owner (owner -> names), so adding or removing the files
+ * of a client only touches the entries of that client instead of the whole catalog.
+ * The names are kept sorted, so the search pages are read in order instead of sorting the matches for each page.
+ * Reads take the read lock, so a search always sees the catalog between two complete updates.<br/>
+ * Owners of a file are listed by preference: the ones sharing files for longer come first, as they are
+ * the most likely to stay connected during a download.
+ */
+public class FileCatalog {
+    private final NavigableMap<String, Map<String, FileInfo>> ownersByName = new TreeMap<>();
+    private final Map<String, Set<String>> namesByOwner = new HashMap<>();
+    private final TrigramIndex nameIndex = new TrigramIndex();
+    private final Map<String, Long> ownerSince = new HashMap<>();
+    private long ownerSequence = 0;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds a file to the catalog, replacing the previous entry of the same owner and name.
+     */
+    public void add(FileInfo fileInfo) {
+        lock.writeLock().lock();
+        try {
+            addUnlocked(fileInfo);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds many files under a single lock acquisition.
+     */
+    public void addAll(Collection<FileInfo> files) {
+        lock.writeLock().lock();
+        try {
+            files.forEach(this::addUnlocked);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Must be called holding the write lock
+    private void addUnlocked(FileInfo fileInfo) {
+        ownersByName.computeIfAbsent(fileInfo.name(), name -> {
+            nameIndex.add(name);
+            return new HashMap<>();
+        }).put(fileInfo.owner(), fileInfo);
+        namesByOwner.computeIfAbsent(fileInfo.owner(), owner -> {
+            ownerSince.put(owner, ownerSequence++);
+            return new HashSet<>();
+        }).add(fileInfo.name());
+    }
+
+    public void remove(String owner, String fileName) {
+        removeAll(owner, List.of(fileName));
+    }
+
+    /**
+     * Removes many files of the same owner under a single lock acquisition.
+     */
+    public void removeAll(String owner, Collection<String> fileNames) {
+        lock.writeLock().lock();
+        try {
+            Set<String> names = namesByOwner.get(owner);
+            if (names == null) return;
+            for (String fileName : fileNames) {
+                if (names.remove(fileName)) removeOwnerOfName(owner, fileName);
+            }
+            if (names.isEmpty()) {
+                namesByOwner.remove(owner);
+                ownerSince.remove(owner);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every file of the given owner.
+     */
+    public void removeOwner(String owner) {
+        lock.writeLock().lock();
+        try {
+            Set<String> names = namesByOwner.remove(owner);
+            if (names == null) return;
+            ownerSince.remove(owner);
+            names.forEach(fileName -> removeOwnerOfName(owner, fileName));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Must be called holding the write lock
+    private void removeOwnerOfName(String owner, String fileName) {
+        Map<String, FileInfo> owners = ownersByName.get(fileName);
+        if (owners == null) return;
+        owners.remove(owner);
+        if (owners.isEmpty()) {
+            ownersByName.remove(fileName);
+            nameIndex.remove(fileName);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the files whose name matches the pattern, one entry for each owner.<br/>
+     * The trigram index narrows down the names to check, the pattern is only run against those candidates.
+     */
+    public List<FileInfo> search(Pattern pattern) {
+        List<FileInfo> files = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            matchingNames(pattern).forEach(name -> files.addAll(ownersByName.get(name).values()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return files;
+    }
+
+    /**
+     * Returns one page of the files whose name matches the pattern.<br/>
+     * Pages are made of distinct file names sorted alphabetically, with every owner of each name
+     * in order of preference. A page starts right after the last name of the previous one, so files added or
+     * removed between two pages do not shift the following pages.<br/>
+     * The matches are never all sorted: without candidates from the trigram index the sorted names are read
+     * from the cursor until the page is full, otherwise the candidates are checked keeping only the first names.
+     *
+     * @param after the last name of the previous page, <code>null</code> for the first page
+     * @param limit the maximum number of names in the page, at least 1
+     */
+    public SearchResult search(Pattern pattern, String after, int limit) {
+        int pageSize = Math.max(limit, 1);
+        List<FileInfo> files = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // One name more than the page, to know if there is a next one
+            List<String> names = new ArrayList<>(pageSize + 1);
+            Matcher matcher = pattern.matcher("");
+            Collection<String> candidates = nameIndex.candidates(pattern.pattern());
+            int totalMatches = candidates == null
+                    ? matchSortedNames(matcher, after, pageSize + 1, names)
+                    : matchCandidates(matcher, candidates, after, pageSize + 1, names);
+            List<String> page = names.subList(0, Math.min(pageSize, names.size()));
+            for (String name : page) {
+                List<FileInfo> owners = new ArrayList<>(ownersByName.get(name).values());
+                owners.sort(Comparator.comparingLong(file -> ownerSince.getOrDefault(file.owner(), Long.MAX_VALUE)));
+                files.addAll(owners);
+            }
+            String nextAfter = names.size() > pageSize ? page.getLast() : null;
+            return new SearchResult(files, nextAfter, after == null ? totalMatches : -1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the sorted names after the cursor, keeping the first ones that match. The first page reads all the
+     * names to count the matches, the next ones stop once they are full.
+     *
+     * Must be called holding the read lock.
+     *
+     * @return the number of names matching, only counted for the first page
+     */
+    private int matchSortedNames(Matcher matcher, String after, int count, List<String> names) {
+        Collection<String> sortedNames = after == null ? ownersByName.keySet() : ownersByName.tailMap(after, false).keySet();
+        int matches = 0;
+        for (String name : sortedNames) {
+            if (!matcher.reset(name).find()) continue;
+            matches++;
+            if (names.size() < count) {
+                names.add(name);
+            } else if (after != null) {
+                break;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Checks every candidate, keeping the first names after the cursor in a heap of <code>count</code> names.
+     *
+     * Must be called holding the read lock.
+     *
+     * @return the number of candidates matching
+     */
+    private static int matchCandidates(Matcher matcher, Collection<String> candidates, String after, int count, List<String> names) {
+        // The last of the names kept is on top, it is the one replaced by a name before it
+        PriorityQueue<String> first = new PriorityQueue<>(count, Comparator.reverseOrder());
+        int matches = 0;
+        for (String name : candidates) {
+            if (!matcher.reset(name).find()) continue;
+            matches++;
+            if (after != null && name.compareTo(after) <= 0) continue;
+            if (first.size() < count) {
+                first.add(name);
+            } else if (name.compareTo(first.peek()) < 0) {
+                first.poll();
+                first.add(name);
+            }
+        }
+        names.addAll(first);
+        names.sort(null);
+        return matches;
+    }
+
+    // Must be called holding the read lock
+    private List<String> matchingNames(Pattern pattern) {
+        List<String> names = new ArrayList<>();
+        Matcher matcher = pattern.matcher("");
+        Collection<String> candidates = nameIndex.candidates(pattern.pattern());
+        if (candidates == null) candidates = ownersByName.keySet();
+        for (String name : candidates) {
+            if (matcher.reset(name).find()) names.add(name);
+        }
+        return names;
+    }
+}
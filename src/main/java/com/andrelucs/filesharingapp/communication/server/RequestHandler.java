@@ -0,0 +1,239 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
+import static com.andrelucs.filesharingapp.communication.ProtocolCommand.*;
+
+/**
+ * Parses the protocol requests of a single client connection and writes the responses.<br/>
+ * It does not know how the connection is implemented, so the same handler is used by the blocking
+ * {@link ClientHandler} and by the non-blocking {@link SelectorConnection}.
+ */
+public class RequestHandler {
+    /**
+     * Maximum number of file names answered to a SEARCH request without paging.
+     */
+    public static final int MAX_SEARCH_RESULTS = 500;
+    /**
+     * Maximum number of file names a SEARCHPAGE or SEARCHGROUPS request may ask for.
+     */
+    public static final int MAX_SEARCH_PAGE_SIZE = 1000;
+    /**
+     * Maximum number of FILE lines of a name in a SEARCH or SEARCHPAGE answer, its preferred owners.
+     * A FILEGROUP line lists every owner, so it is not limited.
+     */
+    public static final int MAX_OWNERS_PER_FILE = 20;
+    /**
+     * Maximum number of entries in a CREATEFILES or DELETEFILES frame.
+     */
+    public static final int MAX_BATCH_SIZE = 10000;
+
+    private final Server server;
+    private final String clientIp;
+    private final Consumer<String> responseWriter;
+    // Correlation id prefix of the request being handled, echoed in its responses
+    private String responsePrefix = "";
+
+    // State of the batch frame being received
+    private ProtocolCommand batchCommand;
+    private int batchRemaining = 0;
+    private int batchApplied = 0;
+    private String batchResponsePrefix = "";
+    private final List<String> batchEntries = new ArrayList<>();
+
+    public RequestHandler(Server server, String clientIp, Consumer<String> responseWriter) {
+        this.server = server;
+        this.clientIp = clientIp;
+        this.responseWriter = responseWriter;
+    }
+
+    /**
+     * Handles the client request and sends the appropriate response.<br/>
+     * While a CREATEFILES or DELETEFILES frame is being received, the lines are taken as its entries, empty ones
+     * included, since the frame counts lines. Outside a frame empty lines are ignored.
+     *
+     * @param request The client request.
+     * @return The protocol command that was handled, or <code>null</code> for the entries of a batch and empty lines.
+     */
+    public ProtocolCommand handleRequest(String request) {
+        if (batchRemaining > 0) {
+            addBatchEntry(request);
+            return null;
+        }
+        if (request.isEmpty()) return null;
+        System.out.println("Request received: " + request);
+        int requestId = ProtocolCommand.requestIdOf(request);
+        responsePrefix = requestId < 0 ? "" : ProtocolCommand.withRequestId(requestId, "");
+        request = ProtocolCommand.stripRequestId(request);
+        String[] parts = request.split(" ", 2);
+        String[] args = parts.length > 1 ? parts[1].split(" ") : new String[0];
+        var requestType = ProtocolCommand.fromString(parts[0]);
+        switch (requestType) {
+            case JOIN -> joinRequest();
+            case CREATEFILE -> createFileRequest(args);
+            case DELETEFILE -> deleteFileRequest(args);
+            case CREATEFILES, DELETEFILES -> startBatch(requestType, args);
+            case SEARCH -> fileSearchRequest(args);
+            case SEARCHPAGE -> fileSearchPageRequest(parts.length > 1 ? parts[1] : "", false);
+            case SEARCHGROUPS -> fileSearchPageRequest(parts.length > 1 ? parts[1] : "", true);
+            case LEAVE -> leaveRequest();
+            case null, default -> System.out.println("Unknown request: " + request);
+        }
+        return requestType;
+    }
+
+    private void respond(String response) {
+        responseWriter.accept(responsePrefix + response);
+    }
+
+    private void joinRequest() {
+        System.out.println("Confirming join request...");
+        respond(CONFIRMJOIN.format());
+    }
+
+    private void createFileRequest(String[] args) {
+        // The file name is the first part of the args array, and the file size is the last part
+        // Making sure that if the filename has spaces, it is correctly parsed
+        String fileName = Arrays.stream(args).filter(arg -> !arg.equals(args[args.length - 1])).reduce((a, b) -> a + " " + b).orElse("");
+        String sizeField = args[args.length - 1];
+        server.addToFileList(new FileInfo(fileName, clientIp, FileInfo.sizeOf(sizeField), FileInfo.hashOf(sizeField)));
+        System.out.println("File created: " + fileName);
+        respond(CONFIRMCREATEFILE.format(fileName));
+    }
+
+    private void deleteFileRequest(String[] args) {
+        String fileName = args[0];
+        server.removeFromFileList(clientIp, fileName);
+        System.out.println("File deleted: " + fileName);
+        respond(CONFIRMDELETEFILE.format(fileName));
+    }
+
+    private void startBatch(ProtocolCommand command, String[] args) {
+        int count;
+        try {
+            count = Integer.parseInt(args[0]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid batch size for " + command);
+            return;
+        }
+        batchCommand = command;
+        batchResponsePrefix = responsePrefix;
+        batchRemaining = Math.max(count, 0);
+        batchEntries.clear();
+        if (batchRemaining == 0) finishBatch();
+    }
+
+    private void addBatchEntry(String entry) {
+        batchEntries.add(entry);
+        batchRemaining--;
+        // Large frames are applied in chunks, so the catalog lock is not held for too long
+        if (batchEntries.size() >= MAX_BATCH_SIZE || batchRemaining == 0) applyBatchEntries();
+        if (batchRemaining == 0) finishBatch();
+    }
+
+    private void applyBatchEntries() {
+        if (batchCommand == CREATEFILES) {
+            List<FileInfo> files = new ArrayList<>(batchEntries.size());
+            for (String entry : batchEntries) {
+                // Each entry is "size name" or "size:hash name", the name is last so it may contain spaces
+                String[] fields = entry.split(" ", 2);
+                try {
+                    files.add(new FileInfo(fields[1], clientIp, FileInfo.sizeOf(fields[0]), FileInfo.hashOf(fields[0])));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Invalid file entry: " + entry);
+                }
+            }
+            server.addToFileList(files);
+            batchApplied += files.size();
+        } else {
+            server.removeFromFileList(clientIp, batchEntries);
+            batchApplied += batchEntries.size();
+        }
+        batchEntries.clear();
+    }
+
+    private void finishBatch() {
+        System.out.println(batchCommand + ": " + batchApplied + " files from " + clientIp);
+        String response = batchCommand == CREATEFILES ? CONFIRMCREATEFILES.format(batchApplied) : CONFIRMDELETEFILES.format(batchApplied);
+        responseWriter.accept(batchResponsePrefix + response);
+        batchCommand = null;
+        batchApplied = 0;
+    }
+
+    private void fileSearchRequest(String[] args) {
+        String fileName = Arrays.stream(args).reduce((a, b) -> a + b).orElse("");
+        try {
+            sendSearchResult(server.searchFile(fileName, null, MAX_SEARCH_RESULTS));
+        } catch (PatternSyntaxException e) {
+            System.out.println("Invalid search pattern: " + fileName);
+            respond(ENDSEARCH.format(NO_SEARCH_CURSOR, 0));
+        }
+    }
+
+    private void fileSearchPageRequest(String args, boolean grouped) {
+        // Cursor and limit come first, so the pattern is the rest of the line and keeps its spaces
+        String[] pageArgs = args.split(" ", 3);
+        try {
+            String after = nameAfterSearchCursor(pageArgs[0]);
+            int limit = Math.min(Integer.parseInt(pageArgs[1]), MAX_SEARCH_PAGE_SIZE);
+            String pattern = pageArgs.length > 2 ? pageArgs[2] : "";
+            SearchResult result = server.searchFile(pattern, after, limit);
+            if (grouped) sendGroupedSearchResult(result);
+            else sendSearchResult(result);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            // Also a pattern or a number that does not parse
+            System.out.println("Invalid search page request: " + args);
+            respond(ENDSEARCH.format(NO_SEARCH_CURSOR, 0));
+        }
+    }
+
+    /**
+     * Sends a FILE line for each of the first {@value MAX_OWNERS_PER_FILE} owners of each file name, so a page of
+     * popular files is not a line for every peer sharing them.
+     */
+    private void sendSearchResult(SearchResult result) {
+        System.out.println(result.files());
+        String name = null;
+        int owners = 0;
+        // The owners of a name are next to each other, preferred ones first
+        for (FileInfo fileInfo : result.files()) {
+            if (!fileInfo.name().equals(name)) {
+                name = fileInfo.name();
+                owners = 0;
+            }
+            if (owners++ < MAX_OWNERS_PER_FILE) {
+                respond(FILE.format(fileInfo.name(), fileInfo.owner(), fileInfo.sizeField()));
+            }
+        }
+        respond(ENDSEARCH.format(searchCursor(result.nextAfter()), result.totalMatches()));
+    }
+
+    /**
+     * Sends one FILEGROUP line for each file name and size (and hash, when known),
+     * keeping the order of preference of the owners.
+     */
+    private void sendGroupedSearchResult(SearchResult result) {
+        Map<String, Map<String, List<String>>> groups = new LinkedHashMap<>();
+        for (FileInfo fileInfo : result.files()) {
+            groups.computeIfAbsent(fileInfo.name(), name -> new LinkedHashMap<>())
+                    .computeIfAbsent(fileInfo.sizeField(), sizeField -> new ArrayList<>())
+                    .add(fileInfo.owner());
+        }
+        groups.forEach((name, sizeFields) -> sizeFields.forEach((sizeField, owners) ->
+                respond(FILEGROUP.format(sizeField, String.join(",", owners), name))));
+        respond(ENDSEARCH.format(searchCursor(result.nextAfter()), result.totalMatches()));
+    }
+
+    private void leaveRequest() {
+        respond(CONFIRMLEAVE.format());
+    }
+}
@@ -0,0 +1,15 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+
+import java.util.List;
+
+/**
+ * A page of search results.
+ *
+ * @param files        the files in the page, one entry for each owner
+ * @param nextAfter    the last name of this page, which the next page starts after, <code>null</code> if this is the last one
+ * @param totalMatches the number of distinct file names matching the search, only counted for the first page, -1 for the others
+ */
+public record SearchResult(List<FileInfo> files, String nextAfter, int totalMatches) {
+}
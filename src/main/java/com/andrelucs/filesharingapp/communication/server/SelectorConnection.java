@@ -0,0 +1,125 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Non-blocking counterpart of {@link ClientHandler}.<br/>
+ * Bytes read from the channel are split into protocol lines using a per-connection buffer, and the responses
+ * are queued until the channel is writable. All methods are called from the owning {@link SelectorEventLoop} thread.
+ */
+class SelectorConnection {
+    private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_LINE_LENGTH = 1024 * 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Server server;
+    private final RequestHandler requestHandler;
+    private final String clientIp;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private boolean closeAfterWrite = false;
+
+    SelectorConnection(SocketChannel channel, SelectionKey key, Server server) {
+        this.channel = channel;
+        this.key = key;
+        this.server = server;
+        this.clientIp = channel.socket().getInetAddress().getHostAddress();
+        this.requestHandler = new RequestHandler(server, clientIp, this::write);
+    }
+
+    void onReadable() throws IOException {
+        int bytes = channel.read(readBuffer);
+        if (bytes == -1) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        byte[] array = readBuffer.array();
+        int lineStart = readBuffer.position();
+        for (int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+            if (array[i] != '\n') continue;
+            lineBuffer.write(array, lineStart, i - lineStart);
+            lineStart = i + 1;
+            handleLine();
+            if (closeAfterWrite || !channel.isOpen()) {
+                readBuffer.clear();
+                return;
+            }
+        }
+        lineBuffer.write(array, lineStart, readBuffer.limit() - lineStart);
+        readBuffer.clear();
+        if (lineBuffer.size() > MAX_LINE_LENGTH) {
+            System.out.println("Request too long from " + clientIp + ", closing connection");
+            close();
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private void handleLine() {
+        String request = lineBuffer.toString(StandardCharsets.UTF_8);
+        lineBuffer.reset();
+        if (request.endsWith("\r")) request = request.substring(0, request.length() - 1);
+        if (requestHandler.handleRequest(request) == ProtocolCommand.LEAVE) {
+            closeAfterWrite = true;
+            // The confirmation was already flushed, nothing else would close the connection
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    private void write(String response) {
+        pendingWrites.add(ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8)));
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void flush() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer buffer = pendingWrites.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // The socket buffer is full, wait until the selector reports the channel as writable
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+        if (closeAfterWrite) {
+            close();
+        } else if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void close() {
+        if (!channel.isOpen()) return;
+        System.out.println("Client disconnected: " + clientIp);
+        key.cancel();
+        try {
+            server.removeClient(channel.socket());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
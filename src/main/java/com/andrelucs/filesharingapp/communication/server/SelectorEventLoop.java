@@ -0,0 +1,110 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread serving many non-blocking client connections through a {@link Selector}.<br/>
+ * Channels accepted by the {@link Server} are handed over with {@link #register(SocketChannel)}.
+ */
+class SelectorEventLoop implements Runnable, Closeable {
+    private final Server server;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    SelectorEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Queues an accepted channel to be registered by the loop thread, registering from another
+     * thread would block while the selector is waiting.
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            } catch (IOException e) {
+                System.err.println("Error in selector loop: " + e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        closeAll();
+    }
+
+    private void handleKey(SelectionKey key) {
+        SelectorConnection connection = (SelectorConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) connection.onReadable();
+            if (key.isValid() && key.isWritable()) connection.onWritable();
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new SelectorConnection(channel, key, server));
+            } catch (IOException e) {
+                System.err.println("Could not register client: " + e.getMessage());
+                try {
+                    server.removeClient(channel.socket());
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((SelectorConnection) key.attachment()).close();
+        }
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                server.removeClient(channel.socket());
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the loop, the connections are closed by the loop thread itself.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
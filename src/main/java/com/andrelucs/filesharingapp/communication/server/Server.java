@@ -3,34 +3,66 @@ package com.andrelucs.filesharingapp.communication.server;
 import com.andrelucs.filesharingapp.communication.FileInfo;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
 public class Server {
+    private static final int SELECTOR_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
 
     private final ServerSocket serverSocket;
     protected final List<Socket> clientConnections = new CopyOnWriteArrayList<>();
     private final Thread acceptClientsThread;
+    private final ServerMode mode;
+    private final List<SelectorEventLoop> eventLoops = new ArrayList<>();
+    private final List<Thread> eventLoopThreads = new ArrayList<>();
 
-    private final List<FileInfo> clientFiles = new ArrayList<>();
+    private final FileCatalog fileCatalog = new FileCatalog();
 
     public Server() throws IOException {
         this(1234);
     }
 
     public Server(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        acceptClientsThread = new Thread(this::acceptClients);
+        this(port, ServerMode.THREAD_PER_CLIENT);
+    }
+
+    public Server(int port, ServerMode mode) throws IOException {
+        this.mode = mode;
+        if (mode == ServerMode.SELECTOR) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverChannel.socket();
+            for (int i = 0; i < SELECTOR_THREADS; i++) {
+                SelectorEventLoop eventLoop = new SelectorEventLoop(this);
+                Thread eventLoopThread = new Thread(eventLoop);
+                eventLoopThread.setName("Selector Loop " + i);
+                eventLoops.add(eventLoop);
+                eventLoopThreads.add(eventLoopThread);
+            }
+            acceptClientsThread = new Thread(this::acceptChannels);
+        } else {
+            serverSocket = new ServerSocket(port);
+            acceptClientsThread = new Thread(this::acceptClients);
+        }
+        acceptClientsThread.setName("Accept Clients");
     }
 
     public void start() {
+        eventLoopThreads.forEach(Thread::start);
         acceptClientsThread.start();
     }
 
+    public ServerMode getMode() {
+        return mode;
+    }
+
     private void acceptClients() {
         while (!serverSocket.isClosed()) {
             try {
@@ -46,11 +78,31 @@ public class Server {
         }
     }
 
+    /**
+     * Accepts the clients as non-blocking channels and distributes them between the event loops.
+     */
+    private void acceptChannels() {
+        ServerSocketChannel serverChannel = serverSocket.getChannel();
+        int nextLoop = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                removeClosedConnections();
+                clientConnections.add(clientChannel.socket());
+                eventLoops.get(nextLoop).register(clientChannel);
+                nextLoop = (nextLoop + 1) % eventLoops.size();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) break;
+                System.err.println("Error accepting client: " + e.getMessage());
+            }
+        }
+    }
+
     public void removeClient(Socket clientSocket) throws IOException {
         clientSocket.close();
         clientConnections.remove(clientSocket);
         String ip = clientSocket.getInetAddress().getHostAddress();
-        clientFiles.removeIf(file -> file.owner().equals(ip));
+        fileCatalog.removeOwner(ip);
     }
 
     private void removeClosedConnections() {
@@ -58,38 +110,62 @@ public class Server {
     }
 
     public void addToFileList(FileInfo fileInfo) {
-        clientFiles.add(fileInfo);
+        fileCatalog.add(fileInfo);
     }
 
     public void addToFileList(String fileName, String ownerIp, Long fileSize) {
-        clientFiles.add(new FileInfo(fileName, ownerIp, fileSize));
+        fileCatalog.add(new FileInfo(fileName, ownerIp, fileSize));
+    }
+
+    public void addToFileList(List<FileInfo> files) {
+        fileCatalog.addAll(files);
     }
 
     public void removeFromFileList(String ip, String fileName) {
-        clientFiles.removeIf(file -> file.owner().equals(ip) && file.name().equals(fileName));
+        fileCatalog.remove(ip, fileName);
+    }
+
+    public void removeFromFileList(String ip, List<String> fileNames) {
+        fileCatalog.removeAll(ip, fileNames);
+    }
+
+    public FileCatalog getFileCatalog() {
+        return fileCatalog;
     }
 
     public void stop() {
         try {
             serverSocket.close();
             acceptClientsThread.join();
+            for (SelectorEventLoop eventLoop : eventLoops) {
+                eventLoop.close();
+            }
+            for (Thread eventLoopThread : eventLoopThreads) {
+                eventLoopThread.join();
+            }
         } catch (Exception e) {
             System.err.println("Error in server: " + e.getMessage());
         }
     }
 
     public List<FileInfo> searchFile(String filePattern) {
-        List<FileInfo> files = new ArrayList<>();
         Pattern pattern = Pattern.compile(filePattern, Pattern.CASE_INSENSITIVE);
+        return fileCatalog.search(pattern);
+    }
 
-        clientFiles.stream().filter(file -> pattern.matcher(file.name()).find()).forEach(files::add);
-
-        return files;
+    /**
+     * @param after the last name of the previous page, <code>null</code> for the first page
+     */
+    public SearchResult searchFile(String filePattern, String after, int limit) {
+        Pattern pattern = Pattern.compile(filePattern, Pattern.CASE_INSENSITIVE);
+        return fileCatalog.search(pattern, after, limit);
     }
 
     public static void main(String[] args) {
         try {
-            Server server = new Server();
+            ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0].toUpperCase()) : ServerMode.THREAD_PER_CLIENT;
+            Server server = new Server(1234, mode);
+            System.out.println("Starting server in " + mode + " mode");
             server.start();
 
             // Closes server after 10 minutes
@@ -0,0 +1,15 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+/**
+ * How the {@link Server} handles the connected clients.
+ */
+public enum ServerMode {
+    /**
+     * Each client gets its own thread running a blocking {@link ClientHandler}.
+     */
+    THREAD_PER_CLIENT,
+    /**
+     * Clients are multiplexed over a few {@link SelectorEventLoop} threads using non-blocking channels.
+     */
+    SELECTOR
+}
@@ -0,0 +1,158 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from the trigrams (3 character substrings) of the file names to the names containing them.<br/>
+ * A search pattern is reduced to the literal parts every match must contain, and only the names present in the
+ * posting lists of all their trigrams are returned as candidates. The candidates still have to be checked against
+ * the pattern, the index only discards names that can not match.<br/>
+ * Not thread-safe, {@link FileCatalog} only uses it while holding its lock.
+ */
+class TrigramIndex {
+    /**
+     * Marks the start of the name, so prefix queries (<code>^abc</code>) are answered by the index too.
+     */
+    private static final char START = '\u0002';
+    private static final int GRAM_SIZE = 3;
+    // Predefined classes and boundaries, which take no argument and match at most one character
+    private static final String SIMPLE_CLASS_ESCAPES = "dDwWsSbB";
+
+    private final Map<String, Set<String>> postings = new HashMap<>();
+
+    void add(String name) {
+        for (String trigram : trigrams(START + normalize(name))) {
+            postings.computeIfAbsent(trigram, t -> new HashSet<>()).add(name);
+        }
+    }
+
+    void remove(String name) {
+        for (String trigram : trigrams(START + normalize(name))) {
+            Set<String> names = postings.get(trigram);
+            if (names == null) continue;
+            names.remove(name);
+            if (names.isEmpty()) postings.remove(trigram);
+        }
+    }
+
+    /**
+     * Returns the names that may match the given case-insensitive pattern.
+     *
+     * @param regex the search pattern
+     * @return the candidate names or <code>null</code> if the index can not narrow the search,
+     * in which case every name must be checked.
+     */
+    Set<String> candidates(String regex) {
+        List<String> segments = literalSegments(regex);
+        if (segments == null) return null;
+        Set<String> queryTrigrams = new HashSet<>();
+        segments.forEach(segment -> queryTrigrams.addAll(trigrams(segment)));
+        if (queryTrigrams.isEmpty()) return null;
+
+        List<Set<String>> postingLists = new ArrayList<>(queryTrigrams.size());
+        for (String trigram : queryTrigrams) {
+            Set<String> names = postings.get(trigram);
+            if (names == null) return Set.of();
+            postingLists.add(names);
+        }
+        // Intersect starting from the shortest list, so the work is bounded by the rarest trigram
+        postingLists.sort(Comparator.comparingInt(Set::size));
+        Set<String> result = new HashSet<>();
+        List<Set<String>> others = postingLists.subList(1, postingLists.size());
+        for (String name : postingLists.getFirst()) {
+            if (others.stream().allMatch(names -> names.contains(name))) result.add(name);
+        }
+        return result;
+    }
+
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= text.length(); i++) {
+            trigrams.add(text.substring(i, i + GRAM_SIZE));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Lower cases char by char, unlike {@link String#toLowerCase()} the result has the same length
+     * and does not depend on the surrounding characters.
+     */
+    private static String normalize(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Extracts the literal parts of a regular expression that must appear in every match.
+     *
+     * @return the normalized literal segments, or <code>null</code> if the expression uses constructs
+     * (groups, classes, alternations...) that are not analysed.
+     */
+    static List<String> literalSegments(String regex) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int i = 0;
+        if (regex.startsWith("^")) {
+            current.append(START);
+            i = 1;
+        }
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 >= regex.length()) return null;
+                    char next = regex.charAt(++i);
+                    if (SIMPLE_CLASS_ESCAPES.indexOf(next) >= 0) {
+                        endSegment(segments, current);
+                    } else if (Character.isLetterOrDigit(next)) {
+                        // Escapes with arguments (\x41, \u00e9, \0101, \p{L}...), back references, quotes
+                        // and the other classes are not analysed
+                        return null;
+                    } else {
+                        // Escaped punctuation, the character itself
+                        current.append(Character.toLowerCase(next));
+                    }
+                }
+                case '.', '+' -> endSegment(segments, current);
+                case '*', '?' -> {
+                    // The previous character is optional
+                    dropLast(current);
+                    endSegment(segments, current);
+                }
+                case '{' -> {
+                    dropLast(current);
+                    endSegment(segments, current);
+                    i = regex.indexOf('}', i);
+                    if (i < 0) return null;
+                }
+                case '$' -> {
+                    if (i != regex.length() - 1) return null;
+                }
+                case '[', ']', '(', ')', '|', '^', '}' -> {
+                    return null;
+                }
+                default -> current.append(Character.toLowerCase(c));
+            }
+        }
+        endSegment(segments, current);
+        return segments;
+    }
+
+    private static void endSegment(List<String> segments, StringBuilder current) {
+        if (!current.isEmpty()) segments.add(current.toString());
+        current.setLength(0);
+    }
+
+    private static void dropLast(StringBuilder current) {
+        if (!current.isEmpty()) current.setLength(current.length() - 1);
+    }
+}
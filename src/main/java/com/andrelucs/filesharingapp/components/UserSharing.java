@@ -9,10 +9,17 @@ public class UserSharing extends CheckBox {
     private final String userIp;
 
     public UserSharing(String userIp) {
+        this(userIp, null);
+    }
+
+    /**
+     * @param detail shown after the ip, may be <code>null</code>
+     */
+    public UserSharing(String userIp, String detail) {
         this.userIp = userIp;
         getStylesheets().add(Objects.requireNonNull(getClass().getResource("styles.css")).toExternalForm());
         getStyleClass().add("user-sharing");
-        Platform.runLater(() -> setText(userIp));
+        Platform.runLater(() -> setText(detail == null ? userIp : userIp + " (" + detail + ")"));
 
     }
 
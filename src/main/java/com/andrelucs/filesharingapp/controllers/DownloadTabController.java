@@ -3,7 +3,13 @@ package com.andrelucs.filesharingapp.controllers;
 import com.andrelucs.filesharingapp.FileSharingApplication;
 import com.andrelucs.filesharingapp.communication.FileInfo;
 import com.andrelucs.filesharingapp.communication.client.Client;
+import com.andrelucs.filesharingapp.communication.client.SearchPage;
+import com.andrelucs.filesharingapp.communication.client.file.Download;
+import com.andrelucs.filesharingapp.communication.client.file.DownloadManager;
+import com.andrelucs.filesharingapp.communication.client.file.DownloadProgress;
 import com.andrelucs.filesharingapp.communication.client.file.DownloadProgressListener;
+import com.andrelucs.filesharingapp.communication.client.file.DownloadQueueListener;
+import com.andrelucs.filesharingapp.communication.client.file.FileTransferring;
 import com.andrelucs.filesharingapp.components.FileItem;
 import com.andrelucs.filesharingapp.components.UserSharing;
 import javafx.application.Platform;
@@ -19,17 +25,14 @@ import javafx.scene.control.TextField;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.TilePane;
 import javafx.scene.shape.Rectangle;
-import org.jetbrains.annotations.NotNull;
-
 import java.net.URL;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
-public class DownloadTabController implements Initializable, DownloadProgressListener {
+public class DownloadTabController implements Initializable, DownloadProgressListener, DownloadQueueListener {
     private static final int MAX_FILES_PER_PAGE = 30;
-    private static final long UPDATE_INTERVAL_MS = 50; // Update interval in milliseconds
 
     @FXML
     Label fileNameLabel;
@@ -43,8 +46,13 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
     private Pagination searchPagination;
     @FXML
     private Pane downloadProgressBar;
+    @FXML
+    private ListView<Download> downloadQueue;
 
     private Client client;
+    // Registered once for each client, the tab is updated every time it is selected
+    private boolean progressListenerAdded;
+    private boolean queueListenerAdded;
     private FileInfo selectedFile;
     private final List<String> shownFiles = new CopyOnWriteArrayList<>();
     private final List<FileInfo> fileInfoList = new CopyOnWriteArrayList<>();
@@ -54,10 +62,9 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
     private final FileItem[] fileItems;
     private boolean updatingPage;
     private boolean updateAgain;
+    private volatile boolean moreResultsAvailable;
     //Variables to handle download progress
-    private final Map<String, Rectangle> progressRectangles = new HashMap<>();
-    private final Map<String, Float> clientProgressMap = new HashMap<>();
-    private long lastUpdateTime = 0;
+    private final Map<String, Rectangle> progressRectangles = new LinkedHashMap<>();
     //---
 
     public DownloadTabController() {
@@ -81,17 +88,28 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
 
     public void updateClient() {
         System.out.println("initializing download tab");
-        var newClient = FileSharingApplication.getClient();
-        if (newClient != null && newClient != client) {
-            if (client != null) client.removeSearchResultListener(this::handleSearchResult);
-            newClient.addSearchResultListener(this::handleSearchResult);
+        Client current = FileSharingApplication.getClient();
+        assert current != null;
+        if (current != client) {
+            client = current;
+            progressListenerAdded = false;
+            queueListenerAdded = false;
         }
-        client = newClient;
-        assert client != null;
-        try {
-            client.addDownloadProgressListener(this);
-        } catch (IllegalStateException e) {
-            System.out.println("Error adding download progress listener");
+        if (!progressListenerAdded) {
+            try {
+                client.addDownloadProgressListener(this);
+                progressListenerAdded = true;
+            } catch (IllegalStateException e) {
+                System.out.println("Error adding download progress listener");
+            }
+        }
+        if (!queueListenerAdded) {
+            try {
+                client.addDownloadQueueListener(this);
+                queueListenerAdded = true;
+            } catch (IllegalStateException e) {
+                System.out.println("Error adding download queue listener");
+            }
         }
     }
 
@@ -112,54 +130,82 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
             alert.showAndWait();
             return;
         }
+        // The segment of each owner is added with its first progress
         progressRectangles.clear();
         downloadProgressBar.getChildren().clear();
-        for (int i = 0; i < selectedFileOwners.size(); i++) {
-            String owner = selectedFileOwners.toArray()[i].toString();
-            Rectangle rectangle = new Rectangle(0, 20);
-            rectangle.setStyle("-fx-fill: #0088bb");
-            double maxWidth = downloadProgressBar.getWidth();
-            progressRectangles.put(owner, rectangle);
-            rectangle.setX(i * maxWidth / selectedFileOwners.size());
-
+        try {
+            client.queueDownload(selectedFile.name(), selectedFileOwners);
+        } catch (IllegalStateException e) {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Download error");
+            alert.setContentText(e.getMessage());
+            alert.showAndWait();
         }
-        downloadProgressBar.getChildren().addAll(progressRectangles.values());
-        Thread downloadThread = getDownloadThread(selectedFileOwners);
-        downloadThread.start();
     }
 
-    private @NotNull Thread getDownloadThread(Set<String> selectedFileOwners) {
-        Thread downloadThread = new Thread(() -> {
-            try {
-                client.downloadFileFromOwners(selectedFile.name(), selectedFileOwners);
-            } catch (IllegalStateException e) {
-                Alert alert = new Alert(Alert.AlertType.ERROR);
-                alert.setTitle("Error");
-                alert.setHeaderText("Download error");
-                alert.setContentText(e.getMessage());
-                alert.showAndWait();
-            }
+    @Override
+    public void onDownloadChanged(Download download) {
+        Platform.runLater(() -> {
+            DownloadManager downloadManager = client.getDownloadManager();
+            if (downloadManager == null) return;
+            downloadQueue.getItems().setAll(downloadManager.getDownloads());
         });
-        downloadThread.setDaemon(true);
-        downloadThread.setName("Download Thread");
-        return downloadThread;
+    }
+
+    private ListCell<Download> createDownloadCell() {
+        ListCell<Download> cell = new ListCell<>() {
+            @Override
+            protected void updateItem(Download download, boolean empty) {
+                super.updateItem(download, empty);
+                if (empty || download == null) {
+                    setText(null);
+                    return;
+                }
+                String status = download.isPauseRequested() ? "PAUSING" : download.getStatus().name();
+                setText(download.getFileInfo().name() + " - " + status + " (" + download.getPriority().name().toLowerCase() + ")");
+            }
+        };
+        MenuItem pause = new MenuItem("Pause");
+        pause.setOnAction(event -> client.getDownloadManager().pause(cell.getItem()));
+        MenuItem resume = new MenuItem("Resume");
+        resume.setOnAction(event -> client.getDownloadManager().resume(cell.getItem()));
+        MenuItem moveUp = new MenuItem("Move up");
+        moveUp.setOnAction(event -> client.getDownloadManager().moveTo(cell.getItem(), cell.getIndex() - 1));
+        MenuItem moveDown = new MenuItem("Move down");
+        moveDown.setOnAction(event -> client.getDownloadManager().moveTo(cell.getItem(), cell.getIndex() + 1));
+        Menu priority = new Menu("Priority");
+        for (Download.Priority value : Download.Priority.values()) {
+            MenuItem item = new MenuItem(value.name().charAt(0) + value.name().substring(1).toLowerCase());
+            item.setOnAction(event -> client.getDownloadManager().setPriority(cell.getItem(), value));
+            priority.getItems().add(item);
+        }
+        ContextMenu contextMenu = new ContextMenu(pause, resume, moveUp, moveDown, priority);
+        cell.emptyProperty().addListener((observable, wasEmpty, isEmpty) -> cell.setContextMenu(isEmpty ? null : contextMenu));
+        return cell;
     }
 
     @FXML
     public void searchForFiles(ActionEvent ignoredEvent) {
         shownFiles.clear();
         fileInfoList.clear();
+        moreResultsAvailable = false;
         String searchQuery = searchInput.getText();
-        client.sendSearchRequest(searchQuery);
+        // The pages of a previous search are cancelled by the client, only the ones of this search are shown
+        client.sendSearchRequest(searchQuery).thenAccept(this::onSearchPage);
+    }
+
+    private void onSearchPage(SearchPage page) {
+        page.files().forEach(this::handleSearchResult);
+        moreResultsAvailable = page.hasMore();
+        Platform.runLater(this::updatePageCount);
     }
 
     private void handleSearchResult(FileInfo fileInfo) {
         if (shownFiles.contains(fileInfo.name())) return; // Do not show the same file twice
         shownFiles.add(fileInfo.name());
         fileInfoList.add(fileInfo);
-        int newPageCount = (int) Math.ceil(fileInfoList.size() / (double) MAX_FILES_PER_PAGE);
-        if (newPageCount != searchPagination.getPageCount())
-            Platform.runLater(() -> searchPagination.setPageCount(newPageCount));
+        Platform.runLater(this::updatePageCount);
         if (shownFiles.size() <= MAX_FILES_PER_PAGE) {
             if (updatingPage) {
                 updateAgain = true;
@@ -176,8 +222,15 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
         fileSizeLabel.setText(fileInfo.size() + " bytes");
         //displayFileOwners
         usersSharing.getChildren().removeIf(node -> true);
-        client.getFileOwners(fileInfo.name()).forEach(owner -> {
-            UserSharing userSharingCheckBox = new UserSharing(owner);
+        Collection<String> owners = client.getFileOwners(fileInfo.name());
+        FileTransferring fileTransferring = client.getFileTransferring();
+        // The owners that were fastest before come first, with the rate of their last pieces
+        if (fileTransferring != null) owners = fileTransferring.rankOwners(owners);
+        owners.forEach(owner -> {
+            double pieceRate = fileTransferring == null ? 0 : fileTransferring.getStatistics().getPieceRate(owner);
+            UserSharing userSharingCheckBox = pieceRate > 0
+                    ? new UserSharing(owner, String.format("%.1f MB/s", pieceRate / 1_000_000))
+                    : new UserSharing(owner);
             usersSharing.getChildren().add(userSharingCheckBox);
         });
     }
@@ -186,10 +239,27 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         searchPagination.setPageFactory(this::createPage);
+        downloadQueue.setCellFactory(listView -> createDownloadCell());
+    }
+
+    /**
+     * Shows one page for each loaded page of results, plus an extra one while the server has more results.
+     */
+    private void updatePageCount() {
+        int loadedPages = (int) Math.ceil(fileInfoList.size() / (double) MAX_FILES_PER_PAGE);
+        int newPageCount = Math.max(1, loadedPages + (moreResultsAvailable ? 1 : 0));
+        if (newPageCount != searchPagination.getPageCount())
+            searchPagination.setPageCount(newPageCount);
     }
 
     private Node createPage(Integer pageIndex) {
         currentPageIndex = pageIndex;
+        // Reaching the last loaded page fetches the next page of results from the server
+        int loadedPages = (int) Math.ceil(fileInfoList.size() / (double) MAX_FILES_PER_PAGE);
+        if (client != null && pageIndex >= loadedPages - 1) {
+            var nextPage = client.requestNextSearchPage();
+            if (nextPage != null) nextPage.thenAccept(this::onSearchPage);
+        }
 
         Platform.runLater(this::updatePageContent);
 
@@ -220,27 +290,33 @@ public class DownloadTabController implements Initializable, DownloadProgressLis
     }
 
     @Override
-    public void onProgressUpdate(FileInfo fileInfo, float progress) {
-        if (!Objects.equals(fileInfo.name(), selectedFile.name())) return;
-        clientProgressMap.put(fileInfo.owner(), progress);
+    public void onProgressUpdate(DownloadProgress progress) {
+        // The progress comes already coalesced, every update is drawn
+        Platform.runLater(() -> showProgress(progress));
+    }
 
-        float totalProgress = 0;
-        for (float clientProgress : clientProgressMap.values()) {
-            totalProgress += clientProgress;
-        }
-        float overallProgress = totalProgress / clientProgressMap.size();
-
-        Rectangle rect = progressRectangles.get(fileInfo.owner());
-        if (rect == null) return;
-        double maxWidth = downloadProgressBar.getWidth();
-        double finalWidth = maxWidth * overallProgress / 100;
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastUpdateTime >= UPDATE_INTERVAL_MS
-                || finalWidth - rect.getWidth() > 2
-                || finalWidth == maxWidth
-                || overallProgress % 1 == 0) {
-            lastUpdateTime = currentTime;
-            rect.setWidth(finalWidth);
+    /**
+     * Fills the progress bar up to the downloaded part of the file, with a segment for each owner
+     * sized by the bytes it sent.
+     */
+    private void showProgress(DownloadProgress progress) {
+        if (selectedFile == null || !Objects.equals(progress.file().name(), selectedFile.name())) return;
+        long receivedBytes = progress.owners().values().stream().mapToLong(DownloadProgress.OwnerProgress::receivedBytes).sum();
+        if (receivedBytes == 0) return;
+        double filledWidth = downloadProgressBar.getWidth() * progress.percent() / 100;
+        double x = 0;
+        for (var owner : progress.owners().entrySet()) {
+            // Owners that took over from a failed one get their segment once they send something
+            Rectangle rectangle = progressRectangles.computeIfAbsent(owner.getKey(), key -> {
+                Rectangle newRectangle = new Rectangle(0, 20);
+                newRectangle.setStyle("-fx-fill: #0088bb");
+                downloadProgressBar.getChildren().add(newRectangle);
+                return newRectangle;
+            });
+            double width = filledWidth * owner.getValue().receivedBytes() / receivedBytes;
+            rectangle.setX(x);
+            rectangle.setWidth(width);
+            x += width;
         }
     }
 }
@@ -2,6 +2,7 @@ package com.andrelucs.filesharingapp.controllers;
 
 import com.andrelucs.filesharingapp.FileSharingApplication;
 import com.andrelucs.filesharingapp.communication.client.file.FileShareTracker;
+import com.andrelucs.filesharingapp.communication.client.file.TrackedFiles;
 import com.andrelucs.filesharingapp.components.FileItem;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
@@ -16,6 +17,7 @@ import javafx.scene.layout.TilePane;
 import java.io.File;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
@@ -45,6 +47,9 @@ public class FilesTabController {
 
     private ScheduledExecutorService updateSharedFilesDisplayExecutor;
     private Future<?> currentUpdateFilesDisplay;
+    // Version of the tracked files and sort shown, the display is not rebuilt while neither changes
+    private volatile long displayedVersion = -1;
+    private volatile String displayedSort;
 
     @FXML
     public void initialize() {
@@ -81,7 +86,7 @@ public class FilesTabController {
     public void showFileInfo(File file) {
         displayedFile = file;
         splitPane.setDividerPosition(0, 0.5);
-        int sharedCount = FileShareTracker.getInstance().getShareCount(file.getName());
+        int sharedCount = FileShareTracker.getInstance().getShareCount(FileSharingApplication.getSharedName(file));
         downloadCountLabel.setText("Shared: " + sharedCount + " times.");
 
         if (isImage(file)) {
@@ -109,32 +114,40 @@ public class FilesTabController {
             selectedSort = "Name";
         }
         if (selectedSort.equals("Size"))
-            updateSharedFilesDisplay(Comparator.comparing(File::length));
+            updateSharedFilesDisplay(selectedSort, Comparator.comparing(File::length));
         else if (selectedSort.equals("Date"))
-            updateSharedFilesDisplay(Comparator.comparing(File::lastModified).reversed());
+            updateSharedFilesDisplay(selectedSort, Comparator.comparing(File::lastModified).reversed());
         else
-            updateSharedFilesDisplay(Comparator.comparing(File::getName));
+            updateSharedFilesDisplay(selectedSort, Comparator.comparing(File::getName));
     }
 
-    private void updateSharedFilesDisplay(Comparator<File> comparator) {
+    private void updateSharedFilesDisplay(String sort, Comparator<File> comparator) {
         Task<List<FileItem>> task = new Task<>() {
+            private TrackedFiles.Snapshot snapshot;
+
             @Override
             protected List<FileItem> call() {
-                List<File> files = FileSharingApplication.getFiles();
-                List<String> sharedFiles = FileSharingApplication.getSharedFileNames();
-                files.sort(comparator);
-                return files.stream().map(file -> {
-                    FileItem fileItem = new FileItem(file.getAbsoluteFile());
-                    fileItem.setMaxWidth(200);
-                    fileItem.addOnMouseClicked(ignoredEvent -> showFileInfo(file));
-                    fileItem.setShared(sharedFiles.contains(file.getName()));
-                    return fileItem;
-                }).toList();
+                snapshot = FileSharingApplication.getFilesSnapshot();
+                if (snapshot.version() == displayedVersion && sort.equals(displayedSort)) return null;
+                return snapshot.files().entrySet().stream()
+                        .sorted(Map.Entry.comparingByValue(comparator))
+                        .map(entry -> {
+                            File file = entry.getValue();
+                            FileItem fileItem = new FileItem(file.getAbsoluteFile());
+                            fileItem.setMaxWidth(200);
+                            fileItem.addOnMouseClicked(ignoredEvent -> showFileInfo(file));
+                            fileItem.setShared(snapshot.isShared(entry.getKey()));
+                            return fileItem;
+                        }).toList();
             }
 
             @Override
             protected void succeeded() {
+                // Nothing changed since the last update
+                if (getValue() == null) return;
                 filesDisplayContainer.getChildren().setAll(getValue());
+                displayedVersion = snapshot.version();
+                displayedSort = sort;
             }
         };
         if(currentUpdateFilesDisplay != null && !currentUpdateFilesDisplay.isDone()){
@@ -0,0 +1,137 @@
+package com.andrelucs.filesharingapp.communication.client;
+
+import com.andrelucs.filesharingapp.communication.ProtocolCommand;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Registers many files against a server socket that only confirms the frames when told to.
+ * It listens on the fixed port of the server, so it can not run at the same time as the other tests that do.
+ */
+@Timeout(30)
+class FileBatchTest {
+    private static final int FILES_PER_FRAME = 1000;
+
+    private ServerSocket server;
+    private Socket connection;
+    private PrintWriter serverWriter;
+    private Client client;
+    // The first line of each frame received, without the files that follow it
+    private final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void connect() throws IOException {
+        server = new ServerSocket(1234);
+        client = new Client("127.0.0.1");
+        connection = server.accept();
+        serverWriter = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), true);
+        Thread reading = new Thread(this::readFrames);
+        reading.setDaemon(true);
+        reading.start();
+        client.start();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        client.close();
+        connection.close();
+        server.close();
+    }
+
+    private void readFrames() {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                // Joining and leaving are confirmed right away, they are not frames
+                if (parts[1].equals("JOIN") || parts[1].equals("LEAVE")) {
+                    serverWriter.println(ProtocolCommand.withRequestId(ProtocolCommand.requestIdOf(line), "CONFIRM" + parts[1]));
+                    continue;
+                }
+                frames.add(line);
+                if (parts.length == 3 && (parts[1].equals("CREATEFILES") || parts[1].equals("DELETEFILES"))) {
+                    for (int i = Integer.parseInt(parts[2]); i > 0; i--) reader.readLine();
+                }
+            }
+        } catch (IOException ignored) {
+            // Closed by the test
+        }
+    }
+
+    private static Map<String, Long> files(int frames) {
+        Map<String, Long> files = new HashMap<>();
+        for (int i = 0; i < frames * FILES_PER_FRAME; i++) files.put("file" + i + ".bin", 10L);
+        return files;
+    }
+
+    private String nextFrame() throws InterruptedException {
+        String frame = frames.poll(5, TimeUnit.SECONDS);
+        assertNotNull(frame, "no frame was sent");
+        return frame;
+    }
+
+    private void confirm(String frame) {
+        int requestId = ProtocolCommand.requestIdOf(frame);
+        String command = frame.contains("CREATEFILES") ? "CONFIRMCREATEFILES" : "CONFIRMDELETEFILES";
+        serverWriter.println(ProtocolCommand.withRequestId(requestId, command + " " + FILES_PER_FRAME));
+    }
+
+    @Test
+    void queuesTheFramesInsteadOfWaiting() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Void> registered = client.register(files(6));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000, "the call waited");
+
+        List<String> sent = List.of(nextFrame(), nextFrame(), nextFrame(), nextFrame());
+        assertNull(frames.poll(300, TimeUnit.MILLISECONDS), "more frames than allowed in flight");
+
+        // Each confirmation sends one of the queued frames
+        confirm(sent.getFirst());
+        String fifth = nextFrame();
+        assertNull(frames.poll(300, TimeUnit.MILLISECONDS));
+        confirm(sent.get(1));
+        String sixth = nextFrame();
+
+        for (String frame : List.of(sent.get(2), sent.get(3), fifth)) confirm(frame);
+        assertFalse(registered.isDone());
+        confirm(sixth);
+        registered.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void sendsFromTheConfirmationsInOrder() throws Exception {
+        // Called on the thread reading the responses, it would stall the confirmations if it waited for them
+        CompletableFuture<Void> unregistered = client.register(files(4))
+                .thenCompose(ignored -> client.unregister(List.of("file0.bin")));
+        List<String> sent = List.of(nextFrame(), nextFrame(), nextFrame(), nextFrame());
+        CompletableFuture<Void> more = client.register(files(1));
+        assertNull(frames.poll(300, TimeUnit.MILLISECONDS));
+
+        sent.forEach(this::confirm);
+        String queued = nextFrame();
+        assertTrue(queued.contains("CREATEFILES"), queued);
+        String deleted = nextFrame();
+        assertTrue(deleted.contains("DELETEFILES"), deleted);
+        confirm(queued);
+        confirm(deleted);
+        more.get(5, TimeUnit.SECONDS);
+        unregistered.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,93 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(60)
+class BandwidthLimiterTest {
+    private static final String PEER = "peer";
+    private static final int CHUNK = 64 * 1024;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void holdsTheSendsToTheLimit() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setGlobalLimit(1024 * 1024);
+        assertTrue(limiter.isLimited());
+        long start = System.nanoTime();
+        for (int sent = 0; sent < 2 * 1024 * 1024; sent += CHUNK) {
+            limiter.acquire(PEER, CHUNK);
+            limiter.recordSent(PEER, CHUNK, CHUNK);
+        }
+        // Less the burst of a quarter of a second
+        long millis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        assertTrue(millis >= 1500 && millis < 3000, millis + " ms");
+    }
+
+    @Test
+    void givesBackWhatWasNotSent() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setPeerLimit(100 * 1024);
+        // Waits for the burst to be there
+        Thread.sleep(300);
+        limiter.acquire(PEER, 25 * 1024);
+        limiter.recordSent(PEER, 25 * 1024, 0);
+
+        long start = System.nanoTime();
+        limiter.acquire(PEER, 25 * 1024);
+        // Without the tokens given back it would wait a quarter of a second
+        long millis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        assertTrue(millis < 100, millis + " ms");
+    }
+
+    @Test
+    void measuresWhatWasSent() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        assertFalse(limiter.isLimited());
+        limiter.acquire(PEER, 100L * 1024 * 1024);
+        limiter.recordSent(PEER, 100L * 1024 * 1024, 1024 * 1024);
+        Thread.sleep(1100);
+
+        long rate = limiter.getGlobalRate();
+        assertTrue(rate > 512 * 1024 && rate <= 1024 * 1024, rate + " B/s");
+        long peerRate = limiter.getPeerRates().get(PEER);
+        assertTrue(peerRate > 512 * 1024 && peerRate <= 1024 * 1024, peerRate + " B/s");
+    }
+
+    @Test
+    void limitsUploadsThatAreAlreadyRunning() throws Exception {
+        int fileSize = 32 * 1024 * 1024;
+        Files.write(folder.resolve("limited.bin"), new byte[fileSize]);
+        try (LoopbackPeer peer = LoopbackPeer.start(folder); Socket socket = new Socket(LoopbackPeer.OWNER, 1235)) {
+            peer.awaitTracked("limited.bin");
+            BandwidthLimiter limiter = peer.transferring().getBandwidthLimiter();
+            socket.getOutputStream().write(("GETRANGE limited.bin 0-" + fileSize + "\n").getBytes(StandardCharsets.UTF_8));
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            assertEquals(fileSize, input.readLong());
+            byte[] buffer = new byte[1024 * 1024];
+            input.readFully(buffer);
+
+            // The rest is sent in chunks, each waits for the new limit
+            limiter.setGlobalLimit(4 * 1024 * 1024);
+            long start = System.nanoTime();
+            for (int received = buffer.length; received < fileSize; received += buffer.length) {
+                input.readFully(buffer);
+            }
+            long millis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+            // What was already in the socket buffers and in the last unlimited chunk is not held
+            assertTrue(millis >= 3000, millis + " ms");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the queue against downloads that only finish when the test says so.
+ */
+@Timeout(30)
+class DownloadManagerTest {
+    @TempDir
+    Path folder;
+    private FakeTransfers transfers;
+    private DownloadManager manager;
+
+    /**
+     * Downloads that wait until they are finished or failed by the test, or stopped by the manager.
+     */
+    private static final class FakeTransfers extends FileTransferring {
+        private final Path folder;
+        private final Map<String, CompletableFuture<Void>> results = new ConcurrentHashMap<>();
+        final List<String> started = new CopyOnWriteArrayList<>();
+
+        FakeTransfers(Path folder) throws IOException {
+            super(null, folder);
+            this.folder = folder;
+        }
+
+        CompletableFuture<Void> result(String fileName) {
+            return results.computeIfAbsent(fileName, name -> new CompletableFuture<>());
+        }
+
+        @Override
+        public File downloadFromMultipleOwners(FileInfo fileInfo, Set<String> owners, BooleanSupplier stopRequested) {
+            started.add(fileInfo.name());
+            CompletableFuture<Void> result = result(fileInfo.name());
+            try {
+                while (true) {
+                    if (stopRequested.getAsBoolean()) throw new CancellationException("Stopped");
+                    try {
+                        result.get(10, TimeUnit.MILLISECONDS);
+                        return folder.resolve(fileInfo.name()).toFile();
+                    } catch (TimeoutException ignored) {
+                        // Checks the stop request again
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw (RuntimeException) e.getCause();
+            } catch (InterruptedException e) {
+                throw new CancellationException("Interrupted");
+            } finally {
+                // A download started again waits for a new result
+                results.remove(fileInfo.name(), result);
+            }
+        }
+    }
+
+    @BeforeEach
+    void createManager() throws IOException {
+        transfers = new FakeTransfers(folder);
+        manager = new DownloadManager(transfers);
+    }
+
+    @AfterEach
+    void closeManager() throws IOException {
+        manager.close();
+        transfers.close();
+    }
+
+    @Test
+    void runsAtMostTheMaximumAtOnce() throws InterruptedException {
+        Download first = enqueue("a", Download.Priority.NORMAL);
+        Download second = enqueue("b", Download.Priority.NORMAL);
+        Download third = enqueue("c", Download.Priority.NORMAL);
+        awaitStatus(first, Download.Status.ACTIVE);
+        awaitStatus(second, Download.Status.ACTIVE);
+        assertEquals(Download.Status.QUEUED, third.getStatus());
+
+        transfers.result("a").complete(null);
+        awaitStatus(first, Download.Status.COMPLETED);
+        awaitStatus(third, Download.Status.ACTIVE);
+        assertEquals(folder.resolve("a").toFile(), first.getDownloadedFile());
+    }
+
+    @Test
+    void startsHigherPrioritiesFirst() throws InterruptedException {
+        manager.setMaxActiveDownloads(1);
+        Download running = enqueue("running", Download.Priority.LOW);
+        awaitStatus(running, Download.Status.ACTIVE);
+        Download low = enqueue("low", Download.Priority.LOW);
+        Download normal = enqueue("normal", Download.Priority.NORMAL);
+        Download high = enqueue("high", Download.Priority.HIGH);
+
+        // The first in the queue is still the last of the priorities
+        manager.moveTo(low, 0);
+        transfers.result("running").complete(null);
+        awaitStatus(high, Download.Status.ACTIVE);
+        // Same priority as the active one, but behind it in the queue
+        manager.setPriority(normal, Download.Priority.HIGH);
+        transfers.result("high").complete(null);
+        awaitStatus(normal, Download.Status.ACTIVE);
+        transfers.result("normal").complete(null);
+        awaitStatus(low, Download.Status.ACTIVE);
+        assertEquals(List.of("running", "high", "normal", "low"), transfers.started);
+    }
+
+    @Test
+    void pausesAndResumesActiveDownloads() throws InterruptedException {
+        manager.setMaxActiveDownloads(1);
+        Download paused = enqueue("paused", Download.Priority.NORMAL);
+        Download waiting = enqueue("waiting", Download.Priority.NORMAL);
+        awaitStatus(paused, Download.Status.ACTIVE);
+
+        manager.pause(paused);
+        awaitStatus(paused, Download.Status.PAUSED);
+        // Its place goes to the next one
+        awaitStatus(waiting, Download.Status.ACTIVE);
+
+        manager.resume(paused);
+        assertEquals(Download.Status.QUEUED, paused.getStatus());
+        transfers.result("waiting").complete(null);
+        awaitStatus(paused, Download.Status.ACTIVE);
+        transfers.result("paused").complete(null);
+        awaitStatus(paused, Download.Status.COMPLETED);
+        assertEquals(List.of("paused", "waiting", "paused"), transfers.started);
+    }
+
+    @Test
+    void pausesQueuedDownloadsWithoutStartingThem() throws InterruptedException {
+        manager.setMaxActiveDownloads(1);
+        Download running = enqueue("running", Download.Priority.NORMAL);
+        Download paused = enqueue("paused", Download.Priority.HIGH);
+        awaitStatus(running, Download.Status.ACTIVE);
+        manager.pause(paused);
+        transfers.result("running").complete(null);
+        awaitStatus(running, Download.Status.COMPLETED);
+        assertEquals(Download.Status.PAUSED, paused.getStatus());
+        assertEquals(List.of("running"), transfers.started);
+    }
+
+    @Test
+    void keepsFailedDownloadsUntilResumed() throws InterruptedException {
+        Download download = enqueue("failing", Download.Priority.NORMAL);
+        awaitStatus(download, Download.Status.ACTIVE);
+        IllegalStateException error = new IllegalStateException("No owner left");
+        transfers.result("failing").completeExceptionally(error);
+        awaitStatus(download, Download.Status.FAILED);
+        assertSame(error, download.getError());
+
+        manager.resume(download);
+        awaitStatus(download, Download.Status.ACTIVE);
+        assertNull(download.getError());
+        transfers.result("failing").complete(null);
+        awaitStatus(download, Download.Status.COMPLETED);
+
+        manager.clearFinished();
+        assertTrue(manager.getDownloads().isEmpty());
+    }
+
+    private Download enqueue(String fileName, Download.Priority priority) {
+        return manager.enqueue(new FileInfo(fileName, LoopbackPeer.OWNER, 10L), Set.of(LoopbackPeer.OWNER), priority);
+    }
+
+    private static void awaitStatus(Download download, Download.Status status) throws InterruptedException {
+        LoopbackPeer.await(Duration.ofSeconds(10), () -> download.getStatus() == status,
+                download.getFileInfo().name() + " to be " + status);
+    }
+}
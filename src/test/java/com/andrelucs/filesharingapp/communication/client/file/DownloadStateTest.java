@@ -0,0 +1,61 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadStateTest {
+    private static final FileInfo FILE = new FileInfo("state.bin", "owner", 3L * PieceScheduler.PIECE_SIZE, "abc");
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void resumesFromTheSavedPieces() throws IOException {
+        Path stateFile = folder.resolve("state.bin.state");
+        Path partialFile = partialFile();
+        DownloadState state = DownloadState.load(stateFile, partialFile, FILE);
+        state.markCompleted(0);
+        state.markCompleted(2);
+        state.save();
+
+        assertEquals(state.completedPieces(), DownloadState.load(stateFile, partialFile, FILE).completedPieces());
+        // Another version of the file starts over
+        FileInfo changed = new FileInfo(FILE.name(), FILE.owner(), FILE.size(), "def");
+        assertTrue(DownloadState.load(stateFile, partialFile, changed).completedPieces().isEmpty());
+    }
+
+    @Test
+    void startsOverFromABrokenState() throws IOException {
+        Path partialFile = partialFile();
+        for (int bitmapLength : new int[]{-1, Integer.MAX_VALUE, 2}) {
+            Path stateFile = folder.resolve("broken" + bitmapLength + ".state");
+            try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(stateFile))) {
+                output.writeUTF(FILE.name());
+                output.writeLong(FILE.size());
+                output.writeUTF(FILE.hash());
+                output.writeInt(PieceScheduler.PIECE_SIZE);
+                output.writeInt(bitmapLength);
+                // Cut before the end of the bitmap
+                output.writeByte(1);
+            }
+            assertTrue(DownloadState.load(stateFile, partialFile, FILE).completedPieces().isEmpty(), "length " + bitmapLength);
+        }
+    }
+
+    private Path partialFile() throws IOException {
+        Path partialFile = folder.resolve("state.bin.part");
+        try (RandomAccessFile file = new RandomAccessFile(partialFile.toFile(), "rw")) {
+            file.setLength(FILE.size());
+        }
+        return partialFile;
+    }
+}
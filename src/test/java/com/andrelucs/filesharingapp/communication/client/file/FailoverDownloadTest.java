@@ -0,0 +1,109 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import com.andrelucs.filesharingapp.communication.client.SearchPage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Downloads from an owner that cannot be reached, the download must go on with another owner found by the search.
+ */
+class FailoverDownloadTest {
+    private static final String FILE_NAME = "failover.bin";
+    /** Reserved, it never resolves */
+    private static final String DEAD_OWNER = "owner.invalid";
+    /** Failures in a row after which a download gives up on an owner */
+    private static final int MAX_OWNER_FAILURES = 2;
+
+    @TempDir
+    Path folder;
+    private LoopbackPeer peer;
+    private byte[] data;
+
+    @BeforeEach
+    void startPeer() throws Exception {
+        data = new byte[3 * 1024 * 1024 + 17];
+        new Random(17).nextBytes(data);
+        Files.write(folder.resolve(FILE_NAME), data);
+        peer = LoopbackPeer.start(folder);
+        peer.awaitHashed(FILE_NAME);
+    }
+
+    @AfterEach
+    void stopPeer() throws IOException {
+        if (peer != null) peer.close();
+    }
+
+    @Test
+    @Timeout(60)
+    void replacesAnOwnerThatKeepsFailing() throws Exception {
+        FileInfo fileInfo = search();
+        FileTransferring transferring = peer.transferring();
+
+        assertDownloaded(transferring.downloadFromMultipleOwners(fileInfo, Set.of(DEAD_OWNER)));
+        PeerHealth health = transferring.getPeerHealth();
+        // Asking it for the piece hashes failed too
+        assertTrue(health.getFailures(DEAD_OWNER) >= MAX_OWNER_FAILURES);
+        assertFalse(health.isAvailable(DEAD_OWNER));
+        assertEquals(0, health.getFailures(LoopbackPeer.OWNER));
+        // The owner that is failing is ranked last
+        assertEquals(LoopbackPeer.OWNER, transferring.rankOwners(Set.of(DEAD_OWNER, LoopbackPeer.OWNER)).getFirst());
+    }
+
+    @Test
+    @Timeout(60)
+    void failsWhenNoOwnerIsLeftAndResumesLater() throws Exception {
+        FileTransferring transferring = peer.transferring();
+        FileInfo fileInfo = new FileInfo(FILE_NAME, DEAD_OWNER, (long) data.length);
+
+        // Nothing was searched, so there is no owner to replace it with
+        RuntimeException error = assertThrows(RuntimeException.class,
+                () -> transferring.downloadFromMultipleOwners(fileInfo, Set.of(DEAD_OWNER)));
+        assertInstanceOf(IOException.class, error.getCause());
+        assertTrue(Files.exists(folder.resolve(".temp").resolve(FileTransferring.temporaryName(FILE_NAME) + ".state")),
+                "the state is kept to resume the download");
+
+        search();
+        assertDownloaded(transferring.downloadFromMultipleOwners(fileInfo, Set.of(DEAD_OWNER)));
+    }
+
+    @Test
+    void keepsTheTemporaryNamesOfSubfolderFilesApart() {
+        assertEquals("music%2Fsong.mp3", FileTransferring.temporaryName("music/song.mp3"));
+        assertEquals("music%252Fsong.mp3", FileTransferring.temporaryName("music%2Fsong.mp3"));
+        assertEquals("100%25%2Fsong.mp3", FileTransferring.temporaryName("100%/song.mp3"));
+    }
+
+    /**
+     * Searches the file, so the client knows its owners.
+     */
+    private FileInfo search() throws Exception {
+        SearchPage page = peer.client.sendSearchRequest(FILE_NAME).get();
+        FileInfo fileInfo = page.files().stream()
+                .filter(file -> file.name().equals(FILE_NAME))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(Set.of(LoopbackPeer.OWNER), peer.client.getFileOwners(FILE_NAME));
+        return fileInfo;
+    }
+
+    private void assertDownloaded(File downloaded) throws IOException {
+        try {
+            assertArrayEquals(data, Files.readAllBytes(downloaded.toPath()));
+        } finally {
+            Files.deleteIfExists(downloaded.toPath());
+        }
+    }
+}
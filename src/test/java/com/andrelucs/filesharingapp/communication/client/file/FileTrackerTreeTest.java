@@ -0,0 +1,97 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Shares a folder with subfolders, the files must be shared under their path relative to the folder.
+ */
+@Timeout(60)
+class FileTrackerTreeTest {
+    @TempDir
+    Path folder;
+    @TempDir
+    Path outside;
+    private RecordingClient client;
+    private FileTracker tracker;
+
+    @BeforeEach
+    void startTracker() throws Exception {
+        write(folder.resolve("top.bin"));
+        write(folder.resolve("music/album/track.bin"));
+        write(folder.resolve("music/cover.bin"));
+        // Not shared, the downloads and the index are kept there
+        write(folder.resolve(".temp/download.bin.part"));
+        client = RecordingClient.listen();
+        tracker = new FileTracker(client, folder);
+        LoopbackPeer.await(Duration.ofSeconds(10), () -> tracker.getTrackedFileCount() == 3, "the tree to be read");
+        tracker.sendPendingFiles();
+    }
+
+    @AfterEach
+    void stopTracker() throws IOException {
+        if (tracker != null) tracker.close();
+        if (client != null) client.close();
+    }
+
+    @Test
+    void sharesFilesUnderTheirRelativePath() throws Exception {
+        RecordingClient.Registration registration = client.awaitRegistration("music/album/track.bin");
+        assertEquals(Set.of("top.bin", "music/album/track.bin", "music/cover.bin"), registration.fileSizes().keySet());
+        assertEquals(folder.resolve("music/album/track.bin").toFile(), tracker.getFile("music/album/track.bin"));
+        assertEquals("music/album/track.bin", tracker.getSharedName(folder.resolve("music/album/track.bin").toFile()));
+        assertEquals(Set.of("music/album/track.bin", "music/cover.bin"), tracker.getSnapshot().files().subMap("music/", "music0").keySet());
+    }
+
+    @Test
+    void watchesFoldersMovedIn() throws Exception {
+        client.awaitRegistration("top.bin");
+        Path moved = outside.resolve("videos");
+        write(moved.resolve("clip.bin"));
+        write(moved.resolve("old/clip.bin"));
+        Files.move(moved, folder.resolve("videos"));
+
+        RecordingClient.Registration registration = client.awaitRegistration("videos/clip.bin");
+        assertEquals(Set.of("videos/clip.bin", "videos/old/clip.bin"), registration.fileSizes().keySet());
+
+        // The new folders are watched too
+        write(folder.resolve("videos/old/new.bin"));
+        client.awaitRegistration("videos/old/new.bin");
+    }
+
+    @Test
+    void unregistersTheFilesOfAFolderThatIsGone() throws Exception {
+        client.awaitRegistration("top.bin");
+        deleteTree(folder.resolve("music"));
+
+        List<String> unregistered = client.awaitUnregistration("music/cover.bin");
+        assertEquals(Set.of("music/album/track.bin", "music/cover.bin"), Set.copyOf(unregistered));
+        assertNull(tracker.getFile("music/album/track.bin"));
+        assertNotNull(tracker.getFile("top.bin"));
+    }
+
+    private static void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[100]);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Changes the shared folder while it is tracked, only the net change of each file must reach the server,
+ * once it stopped changing.
+ */
+@Timeout(60)
+class FileTrackerWatchTest {
+    // As in FileTracker
+    private static final long SETTLE_MILLIS = 1_000;
+    private static final String SEED_FILE = "seed.bin";
+
+    @TempDir
+    Path folder;
+    private RecordingClient client;
+    private FileTracker tracker;
+
+    @BeforeEach
+    void startTracker() throws Exception {
+        Files.write(folder.resolve(SEED_FILE), new byte[100]);
+        client = RecordingClient.listen();
+        tracker = new FileTracker(client, folder);
+        // The folder is watched once it was read, and nothing more is sent for the seed once it is hashed
+        LoopbackPeer.await(Duration.ofSeconds(10), () -> tracker.getHashTree(SEED_FILE) != null, "the folder to be read");
+        tracker.sendPendingFiles();
+        client.awaitRegistration(SEED_FILE, true);
+    }
+
+    @AfterEach
+    void stopTracker() throws IOException {
+        if (tracker != null) tracker.close();
+        if (client != null) client.close();
+    }
+
+    @Test
+    void registersAFileOnceItStopsGrowing() throws Exception {
+        Path growing = folder.resolve("growing.bin");
+        byte[] chunk = new byte[64 * 1024];
+        long lastWrite;
+        try (OutputStream output = Files.newOutputStream(growing)) {
+            for (int i = 0; i < 6; i++) {
+                output.write(chunk);
+                output.flush();
+                Thread.sleep(200);
+            }
+            lastWrite = System.nanoTime();
+        }
+
+        RecordingClient.Registration registration = client.awaitRegistration("growing.bin", false);
+        assertTrue(Duration.ofNanos(System.nanoTime() - lastWrite).toMillis() >= SETTLE_MILLIS - 250,
+                "registered before it settled");
+        assertEquals(6L * chunk.length, registration.fileSizes().get("growing.bin"));
+        // Then only once more, with its hash
+        assertEquals(6L * chunk.length, client.awaitRegistration("growing.bin", true).fileSizes().get("growing.bin"));
+        Thread.sleep(SETTLE_MILLIS * 2);
+        assertTrue(client.registrations.stream().noneMatch(batch -> batch.fileSizes().containsKey("growing.bin")));
+    }
+
+    @Test
+    void ignoresFilesThatAreGoneBeforeTheySettle() throws Exception {
+        Path temporary = folder.resolve("temporary.bin");
+        Files.write(temporary, new byte[1000]);
+        Thread.sleep(100);
+        Files.delete(temporary);
+
+        Thread.sleep(SETTLE_MILLIS * 2);
+        assertTrue(client.registrations.stream().noneMatch(batch -> batch.fileSizes().containsKey("temporary.bin")));
+        assertTrue(client.unregistrations.stream().noneMatch(batch -> batch.contains("temporary.bin")));
+        assertNull(tracker.getFile("temporary.bin"));
+    }
+
+    @Test
+    void doesNotSendChangesThatChangeNothing() throws Exception {
+        Path seed = folder.resolve(SEED_FILE);
+        // Fires a modify event, the size and modification time stay the same
+        Files.setLastModifiedTime(seed, Files.getLastModifiedTime(seed));
+        Thread.sleep(SETTLE_MILLIS * 2);
+        assertTrue(client.registrations.stream().noneMatch(batch -> batch.fileSizes().containsKey(SEED_FILE)));
+
+        Files.delete(seed);
+        assertEquals(List.of(SEED_FILE), client.awaitUnregistration(SEED_FILE));
+        assertNull(tracker.getFile(SEED_FILE));
+    }
+}
@@ -0,0 +1,128 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FolderIndexTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void savesAndLoadsTheEntries() throws IOException {
+        Path file = folder.resolve("hashed.bin");
+        byte[] data = new byte[PieceScheduler.PIECE_SIZE * 2 + 10];
+        new Random(22).nextBytes(data);
+        Files.write(file, data);
+        HashTree hashTree = HashTree.of(file);
+
+        Path indexFile = folder.resolve(".temp").resolve("index");
+        FolderIndex index = FolderIndex.load(indexFile);
+        assertTrue(index.entries().isEmpty());
+        index.put("hashed.bin", new FolderIndex.Entry(data.length, 1234, hashTree));
+        index.put("dir/not-hashed.bin", new FolderIndex.Entry(7, 5678, null));
+        index.saveIfChanged();
+
+        FolderIndex loaded = FolderIndex.load(indexFile);
+        assertEquals(2, loaded.entries().size());
+        FolderIndex.Entry hashed = loaded.get("hashed.bin");
+        assertTrue(hashed.matches(data.length, 1234));
+        assertEquals(hashTree.root(), hashed.hashTree().root());
+        assertEquals(hashTree.pieceCount(), hashed.hashTree().pieceCount());
+        assertNull(loaded.get("dir/not-hashed.bin").hashTree());
+        assertFalse(loaded.get("dir/not-hashed.bin").matches(7, 5679));
+    }
+
+    @Test
+    void onlySavesWhenChanged() throws IOException {
+        Path indexFile = folder.resolve("index");
+        FolderIndex index = FolderIndex.load(indexFile);
+        index.saveIfChanged();
+        assertFalse(Files.exists(indexFile));
+
+        index.put("file.bin", new FolderIndex.Entry(1, 1, null));
+        index.saveIfChanged();
+        FileTime saved = FileTime.fromMillis(1000);
+        Files.setLastModifiedTime(indexFile, saved);
+        index.saveIfChanged();
+        // Removing a file that is not there is no change either
+        index.remove("missing.bin");
+        index.saveIfChanged();
+        assertEquals(saved, Files.getLastModifiedTime(indexFile));
+
+        index.remove("file.bin");
+        index.saveIfChanged();
+        assertTrue(FolderIndex.load(indexFile).entries().isEmpty());
+    }
+
+    @Test
+    void ignoresIndexesItCanNotUse() throws IOException {
+        Path indexFile = folder.resolve("index");
+        // Another piece size, its trees would not match the pieces
+        try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(indexFile))) {
+            output.writeInt(1);
+            output.writeInt(PieceScheduler.PIECE_SIZE * 2);
+            output.writeInt(1);
+            output.writeUTF("file.bin");
+            output.writeLong(1);
+            output.writeLong(1);
+            output.writeBoolean(false);
+        }
+        assertTrue(FolderIndex.load(indexFile).entries().isEmpty());
+
+        // Cut in the middle of an entry
+        byte[] saved = Files.readAllBytes(indexFile);
+        try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(indexFile))) {
+            output.writeInt(1);
+            output.writeInt(PieceScheduler.PIECE_SIZE);
+            output.writeInt(2);
+            output.write(saved, 12, saved.length - 12);
+        }
+        assertTrue(FolderIndex.load(indexFile).entries().isEmpty());
+    }
+
+    @Test
+    @Timeout(60)
+    void restartsFromTheIndexWithoutHashingAgain() throws Exception {
+        Path unchanged = folder.resolve("unchanged.bin");
+        Path changed = folder.resolve("changed.bin");
+        Files.write(unchanged, new byte[1000]);
+        Files.write(changed, new byte[1000]);
+
+        String changedRoot;
+        try (RecordingClient client = RecordingClient.listen(); FileTracker tracker = new FileTracker(client, folder)) {
+            LoopbackPeer.await(Duration.ofSeconds(10), () -> tracker.getHashTree("unchanged.bin") != null
+                    && tracker.getHashTree("changed.bin") != null, "the files to be hashed");
+            changedRoot = tracker.getHashTree("changed.bin").root();
+        }
+        // Saved on close
+        assertTrue(Files.exists(folder.resolve(".temp").resolve("shared-files.index")));
+        Files.write(changed, new byte[2000]);
+
+        try (RecordingClient client = RecordingClient.listen(); FileTracker tracker = new FileTracker(client, folder)) {
+            // Shared right away, before the folder is read
+            assertNotNull(tracker.getFile("unchanged.bin"));
+            HashTree loaded = tracker.getHashTree("unchanged.bin");
+            assertNotNull(loaded);
+
+            LoopbackPeer.await(Duration.ofSeconds(10), () -> tracker.getHashTree("changed.bin") != null
+                    && !tracker.getHashTree("changed.bin").root().equals(changedRoot), "the changed file to be hashed again");
+            tracker.sendPendingFiles();
+            RecordingClient.Registration registration = client.awaitRegistration("unchanged.bin", true);
+            assertEquals(2000L, registration.fileSizes().get("changed.bin"));
+            assertEquals(tracker.getHashTree("changed.bin").root(), registration.hashes().get("changed.bin"));
+            // Not hashed again, its tree is still the one of the index
+            assertSame(loaded, tracker.getHashTree("unchanged.bin"));
+        }
+    }
+}
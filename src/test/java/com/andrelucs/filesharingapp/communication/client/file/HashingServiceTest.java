@@ -0,0 +1,121 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class HashingServiceTest {
+    private static final String BLOCKER = "blocker.bin";
+
+    @TempDir
+    Path folder;
+    private final List<String> hashed = new CopyOnWriteArrayList<>();
+    private final Map<String, HashTree> trees = new ConcurrentHashMap<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private HashingService service;
+
+    @AfterEach
+    void closeService() {
+        release.countDown();
+        if (service != null) service.close();
+    }
+
+    /**
+     * Starts a service with one worker, which stays in the listener of {@link #BLOCKER} until released.
+     */
+    private void startBlockedService() throws Exception {
+        service = new HashingService(1, (fileName, file, size, lastModified, hashTree) -> {
+            if (fileName.equals(BLOCKER)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            hashed.add(fileName);
+            trees.put(fileName, hashTree);
+        });
+        service.submit(BLOCKER, file(BLOCKER, 10), HashingService.Priority.RECENT);
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void hashesRecentFilesFirstNewestFirst() throws Exception {
+        startBlockedService();
+        service.submit("old-backlog.bin", file("old-backlog.bin", 10), HashingService.Priority.BACKLOG);
+        service.submit("old-recent.bin", file("old-recent.bin", 10), HashingService.Priority.RECENT);
+        service.submit("new-backlog.bin", file("new-backlog.bin", 10), HashingService.Priority.BACKLOG);
+        service.submit("new-recent.bin", file("new-recent.bin", 10), HashingService.Priority.RECENT);
+        assertEquals(5, service.getPendingCount());
+
+        release.countDown();
+        awaitHashed(4);
+        assertEquals(List.of("new-recent.bin", "old-recent.bin", "new-backlog.bin", "old-backlog.bin"), hashed);
+        LoopbackPeer.await(Duration.ofSeconds(5), () -> service.getPendingCount() == 0, "nothing left to hash");
+    }
+
+    @Test
+    void reportsOnlyTheLastSubmissionOfAFile() throws Exception {
+        startBlockedService();
+        File file = file("twice.bin", 10);
+        service.submit("twice.bin", file, HashingService.Priority.BACKLOG);
+        service.submit("cancelled.bin", file("cancelled.bin", 10), HashingService.Priority.RECENT);
+        Files.write(file.toPath(), new byte[PieceScheduler.PIECE_SIZE + 1]);
+        service.submit("twice.bin", file, HashingService.Priority.RECENT);
+        service.cancel("cancelled.bin");
+        assertFalse(service.isPending("cancelled.bin"));
+        assertTrue(service.isPending("twice.bin"));
+
+        release.countDown();
+        awaitHashed(1);
+        // The other jobs of the queue are skipped, not hashed
+        Thread.sleep(500);
+        assertEquals(List.of("twice.bin"), hashed);
+        assertEquals(HashTree.of(file.toPath()).root(), trees.get("twice.bin").root());
+        assertEquals(2, trees.get("twice.bin").pieceCount());
+        assertFalse(service.isPending("twice.bin"));
+    }
+
+    @Test
+    void skipsFilesThatAreGone() throws Exception {
+        startBlockedService();
+        File file = file("deleted.bin", 10);
+        service.submit("deleted.bin", file, HashingService.Priority.RECENT);
+        service.submit("kept.bin", file("kept.bin", 10), HashingService.Priority.BACKLOG);
+        Files.delete(file.toPath());
+
+        release.countDown();
+        awaitHashed(1);
+        assertEquals(List.of("kept.bin"), hashed);
+        LoopbackPeer.await(Duration.ofSeconds(5), () -> !service.isPending("deleted.bin"), "the deleted file to be dropped");
+    }
+
+    private File file(String name, int size) throws IOException {
+        Path path = folder.resolve(name);
+        Files.write(path, new byte[size]);
+        return path.toFile();
+    }
+
+    private void awaitHashed(int count) throws InterruptedException {
+        LoopbackPeer.await(Duration.ofSeconds(10), () -> hashed.size() >= count, count + " files to be hashed");
+    }
+}
@@ -0,0 +1,123 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Keeps more connections open between requests than there are upload threads, the idle ones must not hold a thread.
+ */
+class KeepAliveUploadTest {
+    private static final String FILE_NAME = "pieces.bin";
+    private static final int CONNECTIONS = UploadExecutor.MAX_UPLOAD_THREADS * 3;
+
+    @TempDir
+    Path folder;
+    private LoopbackPeer peer;
+    private byte[] data;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @BeforeEach
+    void startPeer() throws Exception {
+        data = new byte[1024 * 1024];
+        new Random(5).nextBytes(data);
+        Files.write(folder.resolve(FILE_NAME), data);
+        peer = LoopbackPeer.start(folder);
+        peer.awaitTracked(FILE_NAME);
+    }
+
+    @AfterEach
+    void stopPeer() throws IOException {
+        for (Socket socket : sockets) socket.close();
+        if (peer != null) peer.close();
+    }
+
+    @Test
+    @Timeout(60)
+    void idleConnectionsDoNotHoldUploadThreads() throws Exception {
+        UploadExecutor executor = peer.transferring().getUploadExecutor();
+        for (int i = 0; i < CONNECTIONS; i++) sockets.add(new Socket(LoopbackPeer.OWNER, 1235));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                int start = i * 1000 + round;
+                assertArrayEquals(Arrays.copyOfRange(data, start, start + 4096), getRange(sockets.get(i), start, start + 4096));
+            }
+            // Every connection is open and waiting for its next request
+            LoopbackPeer.await(Duration.ofSeconds(10), () -> executor.getActiveUploads() == 0, "idle connections to release their threads");
+            assertEquals(0, executor.getRejectedUploads());
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void answersRequestsSentTogether() throws Exception {
+        Socket socket = new Socket(LoopbackPeer.OWNER, 1235);
+        sockets.add(socket);
+        socket.getOutputStream().write(("GETRANGE " + FILE_NAME + " 0-10\nGETRANGE " + FILE_NAME + " 10-30\n").getBytes(StandardCharsets.UTF_8));
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        assertArrayEquals(Arrays.copyOfRange(data, 0, 10), readResponse(input));
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 30), readResponse(input));
+        // And still later ones, once the connection went idle
+        Thread.sleep(200);
+        assertArrayEquals(Arrays.copyOfRange(data, 30, 40), getRange(socket, 30, 40));
+    }
+
+    @Test
+    @Timeout(60)
+    void announcesADownloadOnceForAllItsRanges() throws Exception {
+        List<FileAction> actions = new CopyOnWriteArrayList<>();
+        peer.transferring().addFileTraficListener((action, fileInfo) -> {
+            if (fileInfo.name().equals(FILE_NAME)) actions.add(action);
+        });
+        FileShareTracker shares = FileShareTracker.getInstance();
+        int sharesBefore = shares.getShareCount(FILE_NAME);
+
+        Socket socket = new Socket(LoopbackPeer.OWNER, 1235);
+        sockets.add(socket);
+        for (int start = 0; start < 40; start += 10) getRange(socket, start, start + 10);
+        LoopbackPeer.await(Duration.ofSeconds(5), () -> !peer.transferring().isBeingUploaded(folder.resolve(FILE_NAME).toFile()),
+                "the ranges to be finished");
+        LoopbackPeer.await(Duration.ofSeconds(5), () -> shares.getShareCount(FILE_NAME) > sharesBefore, "the share to be counted");
+        Thread.sleep(200);
+        assertEquals(sharesBefore + 1, shares.getShareCount(FILE_NAME));
+        assertEquals(List.of(FileAction.UPLOAD), actions);
+    }
+
+    @Test
+    @Timeout(60)
+    void closesConnectionAfterGet() throws Exception {
+        try (Socket socket = new Socket(LoopbackPeer.OWNER, 1235)) {
+            socket.getOutputStream().write(("GET " + FILE_NAME + " 0-100\n").getBytes(StandardCharsets.UTF_8));
+            byte[] received = socket.getInputStream().readAllBytes();
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 100), received);
+        }
+    }
+
+    private static byte[] getRange(Socket socket, long start, long end) throws IOException {
+        socket.getOutputStream().write(("GETRANGE " + FILE_NAME + " " + start + "-" + end + "\n").getBytes(StandardCharsets.UTF_8));
+        return readResponse(new DataInputStream(socket.getInputStream()));
+    }
+
+    private static byte[] readResponse(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[(int) input.readLong()];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
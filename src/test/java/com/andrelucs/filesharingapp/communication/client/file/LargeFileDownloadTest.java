@@ -0,0 +1,107 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Downloads a sparse file larger than 4 GiB from the loopback peer, with data around the offsets where 32-bit
+ * positions would overflow, through the positional and the memory-mapped writers.
+ */
+class LargeFileDownloadTest {
+    private static final String FILE_NAME = "huge.bin";
+    private static final long FILE_SIZE = 4L * 1024 * 1024 * 1024 + 512L * 1024 * 1024 + 13;
+    private static final long[] DATA_OFFSETS = {0, (1L << 31) - 3, 1L << 31, (1L << 32) - 5, 1L << 32, FILE_SIZE - 4096};
+
+    @TempDir
+    Path folder;
+    private LoopbackPeer peer;
+    private Path source;
+
+    @BeforeEach
+    void startPeer() throws Exception {
+        source = folder.resolve(FILE_NAME);
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            Random random = new Random(7);
+            for (long offset : DATA_OFFSETS) {
+                byte[] block = new byte[4096];
+                random.nextBytes(block);
+                file.write(ByteBuffer.wrap(block), offset);
+            }
+        }
+        assertEquals(FILE_SIZE, Files.size(source));
+        peer = LoopbackPeer.start(folder);
+        peer.awaitTracked(FILE_NAME);
+    }
+
+    @AfterEach
+    void stopPeer() throws IOException {
+        if (peer != null) peer.close();
+    }
+
+    @Test
+    @Timeout(300)
+    void downloadsPastFourGibibytesWithPositionalWrites() throws IOException {
+        download(false);
+    }
+
+    @Test
+    @Timeout(300)
+    void downloadsPastFourGibibytesWithMappedWindows() throws IOException {
+        download(true);
+    }
+
+    @Test
+    @Timeout(60)
+    void servesRangesPastFourGibibytes() throws IOException {
+        long start = (1L << 32) - 5;
+        try (Socket socket = new Socket(LoopbackPeer.OWNER, 1235)) {
+            socket.getOutputStream().write(("GETRANGE " + FILE_NAME + " " + start + "-" + (start + 4096) + "\n").getBytes(StandardCharsets.UTF_8));
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            assertEquals(4096, input.readLong());
+            byte[] received = new byte[4096];
+            input.readFully(received);
+            byte[] expected = new byte[4096];
+            try (FileChannel file = FileChannel.open(source)) {
+                file.read(ByteBuffer.wrap(expected), start);
+            }
+            assertArrayEquals(expected, received);
+        }
+    }
+
+    private void download(boolean memoryMapped) throws IOException {
+        FileTransferring transferring = peer.transferring();
+        transferring.setMemoryMapped(memoryMapped);
+        long start = System.nanoTime();
+        // Two names for the same owner, so two workers share the file
+        File downloaded = transferring.downloadFromMultipleOwners(new FileInfo(FILE_NAME, LoopbackPeer.OWNER, FILE_SIZE),
+                new LinkedHashSet<>(List.of(LoopbackPeer.OWNER, "localhost")));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        try {
+            System.out.printf("memoryMapped=%s: %.1fs, %.0f MB/s%n", memoryMapped, seconds, FILE_SIZE / seconds / 1e6);
+            assertEquals(FILE_SIZE, downloaded.length());
+            assertEquals(-1, Files.mismatch(source, downloaded.toPath()));
+        } finally {
+            Files.deleteIfExists(downloaded.toPath());
+        }
+    }
+}
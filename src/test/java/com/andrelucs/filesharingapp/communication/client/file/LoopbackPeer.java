@@ -0,0 +1,88 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.client.Client;
+import com.andrelucs.filesharingapp.communication.server.Server;
+import com.andrelucs.filesharingapp.communication.server.ServerMode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * A server and a client sharing a folder on this machine, so the client can download from itself.<br/>
+ * It listens on the fixed ports of the application, the tests that use it can not run at the same time.
+ */
+final class LoopbackPeer implements AutoCloseable {
+    static final String OWNER = "127.0.0.1";
+
+    final Server server;
+    final Client client;
+    final Path folder;
+
+    private LoopbackPeer(Server server, Client client, Path folder) {
+        this.server = server;
+        this.client = client;
+        this.folder = folder;
+    }
+
+    static LoopbackPeer start(Path folder) throws IOException {
+        Server server = new Server(1234, ServerMode.SELECTOR);
+        server.start();
+        try {
+            Client client = new Client(OWNER, folder.toFile());
+            client.start();
+            return new LoopbackPeer(server, client, folder);
+        } catch (IOException | RuntimeException e) {
+            server.stop();
+            throw e;
+        }
+    }
+
+    FileTransferring transferring() {
+        return client.getFileTransferring();
+    }
+
+    /**
+     * Waits until the client tracks the files, so it serves them.
+     */
+    void awaitTracked(String... fileNames) throws InterruptedException {
+        await(Duration.ofSeconds(30), () -> {
+            for (String fileName : fileNames) {
+                if (client.getFile(fileName) == null) return false;
+            }
+            return true;
+        }, "files tracked");
+    }
+
+    /**
+     * Waits until the hash trees of the files are known.
+     */
+    void awaitHashed(String... fileNames) throws InterruptedException {
+        await(Duration.ofSeconds(60), () -> {
+            for (String fileName : fileNames) {
+                if (client.getHashTree(fileName) == null) return false;
+            }
+            return true;
+        }, "files hashed");
+    }
+
+    static void await(Duration timeout, BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail("Timed out waiting for " + description);
+            Thread.sleep(20);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            client.shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class ProgressReporterTest {
+    private static final int WORKERS = 8;
+    private static final int ADDS_PER_WORKER = 100_000;
+
+    private final ProgressReporter reporter = new ProgressReporter();
+    private final BlockingQueue<DownloadProgress> published = new LinkedBlockingQueue<>();
+    private final List<String> publishingThreads = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void closeReporter() {
+        reporter.close();
+    }
+
+    @Test
+    void sumsTheCountersOfEveryWorker() throws Exception {
+        reporter.addListener(published::add);
+        FileInfo file = new FileInfo("counted.bin", LoopbackPeer.OWNER, (long) WORKERS * ADDS_PER_WORKER + 1000);
+        ProgressReporter.Tracker tracker = reporter.start(file, 1000);
+
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int worker = 0; worker < WORKERS; worker++) {
+                String owner = "owner" + worker;
+                futures.add(workers.submit(() -> {
+                    LongAdder ownerCounter = tracker.owner(owner);
+                    for (int i = 0; i < ADDS_PER_WORKER; i++) {
+                        ownerCounter.add(1);
+                        tracker.addDownloaded(1);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            workers.shutdown();
+        }
+        reporter.finish(tracker);
+
+        DownloadProgress last = awaitFinished();
+        assertEquals(file.size(), last.downloadedBytes());
+        assertEquals(100, last.percent());
+        assertEquals(0, last.etaSeconds());
+        assertEquals(WORKERS, last.owners().size());
+        last.owners().values().forEach(owner -> assertEquals(ADDS_PER_WORKER, owner.receivedBytes()));
+    }
+
+    @Test
+    void publishesFromItsOwnThreadUntilFinished() throws Exception {
+        reporter.addListener(progress -> {
+            publishingThreads.add(Thread.currentThread().getName());
+            published.add(progress);
+        });
+        ProgressReporter.Tracker tracker = reporter.start(new FileInfo("slow.bin", LoopbackPeer.OWNER, 1_000_000L), 0);
+        tracker.addDownloaded(250_000);
+
+        DownloadProgress progress = published.poll(5, TimeUnit.SECONDS);
+        assertNotNull(progress);
+        assertFalse(progress.finished());
+        assertEquals(25, progress.percent());
+        assertTrue(progress.bytesPerSecond() > 0);
+
+        reporter.finish(tracker);
+        awaitFinished();
+        // Nothing is published for a download once it finished
+        Thread.sleep(3 * ProgressReporter.PUBLISH_INTERVAL_MILLIS);
+        assertTrue(published.isEmpty());
+        assertTrue(publishingThreads.stream().allMatch("Progress Publisher"::equals), publishingThreads::toString);
+    }
+
+    @Test
+    void keepsPublishingAfterAListenerFails() throws Exception {
+        reporter.addListener(progress -> {
+            throw new IllegalStateException("Broken listener");
+        });
+        reporter.addListener(published::add);
+        ProgressReporter.Tracker tracker = reporter.start(new FileInfo("failing.bin", LoopbackPeer.OWNER, 100L), 0);
+
+        assertNotNull(published.poll(5, TimeUnit.SECONDS));
+        assertNotNull(published.poll(5, TimeUnit.SECONDS));
+        reporter.finish(tracker);
+        awaitFinished();
+    }
+
+    @Test
+    void startsPublishingAgainForTheNextDownload() throws Exception {
+        reporter.addListener(published::add);
+        reporter.finish(reporter.start(new FileInfo("first.bin", LoopbackPeer.OWNER, 100L), 100));
+        awaitFinished();
+        // Lets the publishing task see that there is nothing left to publish
+        Thread.sleep(3 * ProgressReporter.PUBLISH_INTERVAL_MILLIS);
+
+        ProgressReporter.Tracker second = reporter.start(new FileInfo("second.bin", LoopbackPeer.OWNER, 100L), 0);
+        LoopbackPeer.await(Duration.ofSeconds(5), () -> published.stream().anyMatch(progress -> progress.file().name().equals("second.bin")),
+                "the second download to be published");
+        reporter.finish(second);
+    }
+
+    /**
+     * @return the last snapshot of the download, the ones published before it are skipped
+     */
+    private DownloadProgress awaitFinished() throws InterruptedException {
+        while (true) {
+            DownloadProgress progress = published.poll(5, TimeUnit.SECONDS);
+            assertNotNull(progress, "the last snapshot was not published");
+            if (progress.finished()) return progress;
+        }
+    }
+}
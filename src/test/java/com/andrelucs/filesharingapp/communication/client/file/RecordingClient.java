@@ -0,0 +1,99 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import com.andrelucs.filesharingapp.communication.client.Client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * A client that keeps the batches a {@link FileTracker} sends instead of sending them, connected to a server
+ * socket that never answers.<br/>
+ * It listens on the fixed port of the server, the tests that use it can not run at the same time.
+ */
+final class RecordingClient extends Client {
+    /**
+     * @param hashes empty when the files are registered before they were hashed
+     */
+    record Registration(Map<String, Long> fileSizes, Map<String, String> hashes) {
+    }
+
+    final BlockingQueue<Registration> registrations = new LinkedBlockingQueue<>();
+    final BlockingQueue<List<String>> unregistrations = new LinkedBlockingQueue<>();
+    private final ServerSocket server;
+
+    private RecordingClient(ServerSocket server) throws IOException {
+        super(LoopbackPeer.OWNER);
+        this.server = server;
+    }
+
+    static RecordingClient listen() throws IOException {
+        ServerSocket server = new ServerSocket(1234);
+        try {
+            return new RecordingClient(server);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> register(Map<String, Long> fileSizes, Map<String, String> hashes) {
+        registrations.add(new Registration(Map.copyOf(fileSizes), Map.copyOf(hashes)));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> unregister(List<String> fileNames) {
+        unregistrations.add(List.copyOf(fileNames));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Waits for a registration of the file, with or without its hash, the ones before it are dropped.
+     */
+    Registration awaitRegistration(String fileName) throws InterruptedException {
+        return awaitBatch(registrations, registration -> registration.fileSizes().containsKey(fileName), fileName + " to be registered");
+    }
+
+    /**
+     * Waits for a registration of the file, the ones before it are dropped.
+     *
+     * @param hashed whether the registration is the one with the root of its hash tree
+     */
+    Registration awaitRegistration(String fileName, boolean hashed) throws InterruptedException {
+        return awaitBatch(registrations, registration -> registration.fileSizes().containsKey(fileName)
+                && registration.hashes().containsKey(fileName) == hashed, fileName + " to be registered");
+    }
+
+    /**
+     * Waits for an unregistration of the file, the ones before it are dropped.
+     */
+    List<String> awaitUnregistration(String fileName) throws InterruptedException {
+        return awaitBatch(unregistrations, batch -> batch.contains(fileName), fileName + " to be unregistered");
+    }
+
+    private static <T> T awaitBatch(BlockingQueue<T> batches, Predicate<T> condition, String description) throws InterruptedException {
+        while (true) {
+            T batch = batches.poll(10, TimeUnit.SECONDS);
+            assertNotNull(batch, "Timed out waiting for " + description);
+            if (condition.test(batch)) return batch;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            shutdown();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrackedFilesTest {
+    private final TrackedFiles files = new TrackedFiles();
+
+    @Test
+    void copiesOnlyWhenChanged() {
+        files.put("a.bin", new File("a.bin"));
+        TrackedFiles.Snapshot first = files.snapshot();
+        assertSame(first, files.snapshot());
+        assertEquals(files.version(), first.version());
+
+        // Sharing a file that is already shared is no change
+        files.setShared("a.bin", true);
+        TrackedFiles.Snapshot shared = files.snapshot();
+        assertNotSame(first, shared);
+        assertTrue(shared.isShared("a.bin"));
+        assertFalse(first.isShared("a.bin"));
+        files.setShared("a.bin", true);
+        files.remove("missing.bin");
+        assertSame(shared, files.snapshot());
+
+        files.setShared(List.of("a.bin"), false);
+        assertFalse(files.snapshot().isShared("a.bin"));
+        assertThrows(UnsupportedOperationException.class, () -> files.snapshot().files().put("b.bin", new File("b.bin")));
+    }
+
+    @Test
+    void listsTheFilesUnderAFolder() {
+        for (String name : List.of("music/a.bin", "music/sub/b.bin", "music.bin", "musical/c.bin", "music0.bin", "top.bin")) {
+            files.put(name, new File(name));
+        }
+        assertEquals(List.of("music/a.bin", "music/sub/b.bin"), new ArrayList<>(files.filesUnder("music/").keySet()));
+        assertEquals(List.of("music/sub/b.bin"), new ArrayList<>(files.filesUnder("music/sub/").keySet()));
+        assertEquals(6, files.filesUnder("").size());
+
+        // A live view
+        var music = files.filesUnder("music/");
+        files.put("music/later.bin", new File("later.bin"));
+        assertTrue(music.containsKey("music/later.bin"));
+    }
+
+    @Test
+    @Timeout(30)
+    void snapshotsAreConsistentWhileChanging() throws Exception {
+        int writers = 4;
+        int filesPerWriter = 5_000;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService threads = Executors.newFixedThreadPool(writers + 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                String prefix = "writer" + writer + "/";
+                futures.add(threads.submit(() -> {
+                    for (int i = 0; i < filesPerWriter; i++) {
+                        String name = prefix + i;
+                        files.put(name, new File(name));
+                        files.setShared(name, true);
+                        if (i % 2 == 1) files.remove(prefix + (i - 1));
+                    }
+                }));
+            }
+            Future<?> reader = threads.submit(() -> {
+                long lastVersion = -1;
+                while (writing.get()) {
+                    TrackedFiles.Snapshot snapshot = files.snapshot();
+                    assertTrue(snapshot.version() >= lastVersion, "versions go back");
+                    lastVersion = snapshot.version();
+                    // Copies, they do not change under the reader
+                    int size = snapshot.files().size();
+                    assertEquals(size, new ArrayList<>(snapshot.files().keySet()).size());
+                }
+            });
+            for (Future<?> future : futures) future.get();
+            writing.set(false);
+            reader.get();
+        } finally {
+            threads.shutdown();
+        }
+
+        TrackedFiles.Snapshot snapshot = files.snapshot();
+        assertEquals(files.version(), snapshot.version());
+        assertEquals(writers * filesPerWriter / 2, snapshot.files().size());
+        assertEquals(writers * filesPerWriter / 2, files.size());
+        // The removed files are still marked shared, only the tracker unshares them
+        assertEquals(writers * filesPerWriter, snapshot.sharedNames().size());
+        assertTrue(snapshot.files().keySet().containsAll(Set.of("writer0/1", "writer0/3")));
+        assertFalse(snapshot.files().containsKey("writer0/0"));
+    }
+}
@@ -0,0 +1,122 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(30)
+class TransferStatisticsTest {
+    private static final int THREADS = 8;
+    private static final int ADDS_PER_THREAD = 50_000;
+
+    private final TransferStatistics statistics = new TransferStatistics();
+
+    @Test
+    void countsEveryByteAddedConcurrently() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                // Two threads per peer, sharing its counters
+                String peer = "peer" + thread % (THREADS / 2);
+                String file = "file" + thread % 2;
+                futures.add(threads.submit(() -> {
+                    TransferStatistics.PeerCounters counters = statistics.peer(peer);
+                    for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                        statistics.addDownloaded(counters, 2);
+                        statistics.addUploaded(counters, file, 1);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            threads.shutdown();
+        }
+
+        TransferStatistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(2L * THREADS * ADDS_PER_THREAD, snapshot.downloadedBytes());
+        assertEquals((long) THREADS * ADDS_PER_THREAD, snapshot.uploadedBytes());
+        assertEquals(THREADS / 2, snapshot.peers().size());
+        snapshot.peers().values().forEach(peer -> {
+            assertEquals(4L * ADDS_PER_THREAD, peer.downloadedBytes());
+            assertEquals(2L * ADDS_PER_THREAD, peer.uploadedBytes());
+        });
+        long perFile = (long) THREADS / 2 * ADDS_PER_THREAD;
+        assertEquals(Map.of("file0", perFile, "file1", perFile), snapshot.servedBytes());
+        assertTrue(snapshot.downloadRate() > 0);
+        assertTrue(snapshot.uploadRate() > 0);
+    }
+
+    @Test
+    void dropsIdlePeers() {
+        statistics.addDownloaded(statistics.peer("idle"), 10);
+        statistics.addUploaded(statistics.peer("active"), "file", 10);
+        long expiration = TimeUnit.NANOSECONDS.toMillis(BandwidthLimiter.PEER_EXPIRATION_NANOS);
+        statistics.expireIdlePeers(System.currentTimeMillis() + expiration / 2);
+        assertEquals(2, statistics.snapshot().peers().size());
+
+        statistics.expireIdlePeers(System.currentTimeMillis() + expiration + 1000);
+        assertNull(statistics.peerSnapshot("idle"));
+        assertEquals(0, statistics.getPieceRate("idle"));
+        // The totals are kept
+        assertEquals(10, statistics.snapshot().downloadedBytes());
+        assertEquals(Map.of("file", 10L), statistics.snapshot().servedBytes());
+        // A peer that comes back starts over
+        statistics.addDownloaded(statistics.peer("idle"), 5);
+        assertEquals(5, statistics.snapshot().peers().get("idle").downloadedBytes());
+    }
+
+    @Test
+    void ratesOnlyCountTheLastWindow() throws InterruptedException {
+        TransferStatistics.SlidingWindow window = new TransferStatistics.SlidingWindow();
+        window.add(1_000_000);
+        double rate = window.rate();
+        assertTrue(rate > 0);
+        // A young window is not divided by the whole window length
+        assertTrue(rate > 1_000_000.0 * 1000 / TransferStatistics.WINDOW_MILLIS, "rate " + rate);
+
+        Thread.sleep(TransferStatistics.WINDOW_MILLIS + 500);
+        assertEquals(0, window.rate());
+        window.add(500);
+        double expected = 500.0 * 1000 / TransferStatistics.WINDOW_MILLIS;
+        assertEquals(expected, window.rate(), expected * 0.1);
+    }
+
+    @Test
+    void smoothsThePieceRate() {
+        TransferStatistics.PeerCounters owner = statistics.peer("owner");
+        assertEquals(0, statistics.getPieceRate("owner"));
+        assertEquals(0, statistics.getPieceRate("unknown"));
+
+        statistics.pieceCompleted(owner, 1000, 1_000_000_000);
+        assertEquals(1000, statistics.getPieceRate("owner"), 1e-6);
+        statistics.pieceCompleted(owner, 2000, 1_000_000_000);
+        assertEquals(1250, statistics.getPieceRate("owner"), 1e-6);
+        statistics.pieceFailed(owner);
+
+        TransferStatistics.PeerSnapshot snapshot = statistics.peerSnapshot("owner");
+        assertEquals(2, snapshot.completedPieces());
+        assertEquals(1, snapshot.failedPieces());
+        assertNull(statistics.peerSnapshot("unknown"));
+    }
+
+    @Test
+    void countsActiveTransfers() {
+        statistics.downloadStarted();
+        statistics.downloadStarted();
+        statistics.uploadStarted();
+        statistics.downloadFinished();
+        TransferStatistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(1, snapshot.activeDownloads());
+        assertEquals(1, snapshot.activeUploads());
+    }
+}
@@ -0,0 +1,84 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadExecutorTest {
+
+    @Test
+    @Timeout(30)
+    void boundedPoolQueuesThenRefusesUploads() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(UploadExecutor.MAX_UPLOAD_THREADS);
+        try (UploadExecutor executor = new UploadExecutor(UploadMode.BOUNDED_POOL)) {
+            Runnable upload = () -> {
+                started.countDown();
+                awaitQuietly(release);
+            };
+            for (int i = 0; i < UploadExecutor.MAX_UPLOAD_THREADS + UploadExecutor.MAX_QUEUED_UPLOADS; i++) {
+                assertTrue(executor.execute(upload), "upload " + i + " should be accepted");
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            assertEquals(UploadExecutor.MAX_UPLOAD_THREADS, executor.getActiveUploads());
+            assertEquals(UploadExecutor.MAX_QUEUED_UPLOADS, executor.getQueuedUploads());
+            assertFalse(executor.execute(upload));
+            assertEquals(1, executor.getRejectedUploads());
+
+            release.countDown();
+            LoopbackPeer.await(Duration.ofSeconds(20), () -> executor.getActiveUploads() == 0 && executor.getQueuedUploads() == 0, "uploads to finish");
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void virtualThreadsRunEveryUploadAtOnce() throws InterruptedException {
+        int uploads = UploadExecutor.MAX_UPLOAD_THREADS + UploadExecutor.MAX_QUEUED_UPLOADS + 100;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(uploads);
+        try (UploadExecutor executor = new UploadExecutor(UploadMode.VIRTUAL_THREADS)) {
+            for (int i = 0; i < uploads; i++) {
+                assertTrue(executor.execute(() -> {
+                    started.countDown();
+                    awaitQuietly(release);
+                }));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(uploads, executor.getActiveUploads());
+            assertEquals(0, executor.getQueuedUploads());
+            assertEquals(0, executor.getRejectedUploads());
+            release.countDown();
+            LoopbackPeer.await(Duration.ofSeconds(20), () -> executor.getActiveUploads() == 0, "uploads to finish");
+        }
+    }
+
+    @Test
+    void shutdownLetsRunningUploadsFinish() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        UploadExecutor executor = new UploadExecutor(UploadMode.BOUNDED_POOL);
+        assertTrue(executor.execute(() -> {
+            awaitQuietly(release);
+            finished.countDown();
+        }));
+        executor.shutdown();
+        assertFalse(executor.execute(() -> {
+        }));
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
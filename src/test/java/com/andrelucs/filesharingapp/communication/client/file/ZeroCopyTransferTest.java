@@ -0,0 +1,101 @@
+package com.andrelucs.filesharingapp.communication.client.file;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of {@link FileChannel#transferTo} with the copy through a heap buffer, sending a file
+ * over the loopback interface. The rates are printed, the assertions only check that both send the same bytes.
+ */
+class ZeroCopyTransferTest {
+    private static final String FILE_NAME = "transfer.bin";
+    private static final int FILE_SIZE = 128 * 1024 * 1024;
+    private static final int RUNS = 3;
+
+    @TempDir
+    Path folder;
+    private LoopbackPeer peer;
+    private long expectedChecksum;
+
+    @BeforeEach
+    void startPeer() throws Exception {
+        CRC32 checksum = new CRC32();
+        try (FileChannel file = FileChannel.open(folder.resolve(FILE_NAME), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            Random random = new Random(8);
+            byte[] block = new byte[1024 * 1024];
+            for (int written = 0; written < FILE_SIZE; written += block.length) {
+                random.nextBytes(block);
+                checksum.update(block);
+                file.write(ByteBuffer.wrap(block));
+            }
+        }
+        expectedChecksum = checksum.getValue();
+        peer = LoopbackPeer.start(folder);
+        peer.awaitTracked(FILE_NAME);
+    }
+
+    @AfterEach
+    void stopPeer() throws IOException {
+        if (peer != null) peer.close();
+    }
+
+    @Test
+    @Timeout(120)
+    void zeroCopyAndBufferedSendTheSameBytes() throws IOException {
+        double zeroCopyRate = 0;
+        double bufferedRate = 0;
+        // Alternated, so both see the same state of the page cache
+        for (int run = 0; run < RUNS; run++) {
+            zeroCopyRate = Math.max(zeroCopyRate, measure(true));
+            bufferedRate = Math.max(bufferedRate, measure(false));
+        }
+        System.out.printf("transferTo: %.0f MB/s, heap buffer: %.0f MB/s (%.2fx)%n",
+                zeroCopyRate / 1e6, bufferedRate / 1e6, zeroCopyRate / bufferedRate);
+    }
+
+    /**
+     * @return the bytes per second of a GETRANGE of the whole file
+     */
+    private double measure(boolean zeroCopy) throws IOException {
+        peer.transferring().setZeroCopy(zeroCopy);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(LoopbackPeer.OWNER, 1235))) {
+            long start = System.nanoTime();
+            channel.write(ByteBuffer.wrap(("GETRANGE " + FILE_NAME + " 0-" + FILE_SIZE + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer length = ByteBuffer.allocate(Long.BYTES);
+            while (length.hasRemaining()) {
+                if (channel.read(length) < 0) throw new IOException("Connection closed before the length");
+            }
+            assertEquals(FILE_SIZE, length.flip().getLong());
+
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long received = 0;
+            while (received < FILE_SIZE) {
+                int read = channel.read(buffer.clear());
+                if (read < 0) break;
+                received += read;
+                checksum.update(buffer.flip());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertEquals(FILE_SIZE, received, "zeroCopy=" + zeroCopy);
+            assertEquals(expectedChecksum, checksum.getValue(), "zeroCopy=" + zeroCopy);
+            return received / seconds;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Both {@link ServerMode}s must read the same lines the same way, or a batch frame would end on another line,
+ * and end the connection the same way after LEAVE.
+ */
+@Timeout(30)
+class EmptyLineTest {
+    private Server server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    void threadPerClientModeCountsEmptyEntries() throws Exception {
+        sendEmptyLines(ServerMode.THREAD_PER_CLIENT);
+    }
+
+    @Test
+    void selectorModeCountsEmptyEntries() throws Exception {
+        sendEmptyLines(ServerMode.SELECTOR);
+    }
+
+    @Test
+    void threadPerClientModeClosesOnLeave() throws Exception {
+        leave(ServerMode.THREAD_PER_CLIENT);
+    }
+
+    @Test
+    void selectorModeClosesOnLeave() throws Exception {
+        leave(ServerMode.SELECTOR);
+    }
+
+    private int startServer(ServerMode mode) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server(port, mode);
+        server.start();
+        return port;
+    }
+
+    private void leave(ServerMode mode) throws Exception {
+        int port = startServer(mode);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            writer.println("JOIN 127.0.0.1");
+            assertEquals("CONFIRMJOIN", reader.readLine());
+            writer.println("CREATEFILE left.bin 10");
+            assertEquals("CONFIRMCREATEFILE left.bin", reader.readLine());
+
+            writer.println("LEAVE");
+            assertEquals("CONFIRMLEAVE", reader.readLine());
+            // Closed by the server, which drops the files of the client
+            assertNull(reader.readLine());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!server.getFileCatalog().search(Pattern.compile("left")).isEmpty()) {
+                assertTrue(System.nanoTime() < deadline, "the files of the client were not removed");
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void sendEmptyLines(ServerMode mode) throws Exception {
+        int port = startServer(mode);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            // A frame that does not end waits for more entries, the read fails instead of blocking
+            socket.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            // Ignored outside a frame, nothing is answered
+            writer.print("JOIN 127.0.0.1\n\n\r\n");
+            writer.flush();
+            assertEquals("CONFIRMJOIN", reader.readLine());
+
+            // The empty line is the second entry, the frame ends there
+            writer.print("CREATEFILES 2\n10 first.bin\n\nCREATEFILE second.bin 10\n");
+            writer.flush();
+            assertEquals("CONFIRMCREATEFILES 1", reader.readLine());
+            assertEquals("CONFIRMCREATEFILE second.bin", reader.readLine());
+            assertEquals(2, server.getFileCatalog().search(Pattern.compile("\\.bin$")).size());
+        }
+    }
+}
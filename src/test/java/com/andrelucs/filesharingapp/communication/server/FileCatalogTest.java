@@ -0,0 +1,86 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileCatalogTest {
+    private final FileCatalog catalog = new FileCatalog();
+
+    private void share(String owner, String... names) {
+        for (String name : names) catalog.add(new FileInfo(name, owner, 10L));
+    }
+
+    /**
+     * Reads every page of the search, the names of the files in the order they were received.
+     */
+    private List<String> readPages(Pattern pattern, int limit) {
+        List<String> names = new ArrayList<>();
+        String after = null;
+        do {
+            SearchResult result = catalog.search(pattern, after, limit);
+            result.files().stream().map(FileInfo::name).distinct().forEach(names::add);
+            after = result.nextAfter();
+        } while (after != null);
+        return names;
+    }
+
+    @Test
+    void pagesAreTheSortedMatches() {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String name = "song-" + (char) ('a' + i % 26) + i + ".mp3";
+            share("owner" + i % 3, name);
+            expected.add(name);
+            share("owner" + i % 3, "video-" + i + ".mp4");
+        }
+        expected.sort(null);
+
+        // From the candidates of the trigram index and from a scan of the names
+        assertEquals(expected, readPages(Pattern.compile("song", Pattern.CASE_INSENSITIVE), 7));
+        assertEquals(expected, readPages(Pattern.compile("^s.*3$", Pattern.CASE_INSENSITIVE), 7));
+        assertEquals(100, readPages(Pattern.compile("."), 1).size());
+    }
+
+    @Test
+    void countsTheMatchesOnTheFirstPage() {
+        share("first", "a-song.mp3", "b-song.mp3", "c-song.mp3", "other.txt");
+        share("second", "b-song.mp3");
+
+        SearchResult first = catalog.search(Pattern.compile("song"), null, 2);
+        assertEquals(3, first.totalMatches());
+        assertEquals("b-song.mp3", first.nextAfter());
+        // Every owner of a name is in the page
+        assertEquals(List.of("first", "first", "second"), first.files().stream().map(FileInfo::owner).toList());
+
+        SearchResult last = catalog.search(Pattern.compile("song"), first.nextAfter(), 2);
+        assertEquals(-1, last.totalMatches());
+        assertNull(last.nextAfter());
+        assertEquals(List.of("c-song.mp3"), last.files().stream().map(FileInfo::name).toList());
+
+        assertEquals(4, catalog.search(Pattern.compile("^"), null, 1).totalMatches());
+    }
+
+    @Test
+    void changesBeforeTheCursorDoNotShiftThePages() {
+        share("owner", "a.bin", "b.bin", "c.bin", "d.bin");
+        SearchResult first = catalog.search(Pattern.compile("bin"), null, 2);
+        assertEquals("b.bin", first.nextAfter());
+
+        catalog.remove("owner", "a.bin");
+        share("owner", "0.bin", "bb.bin");
+        SearchResult second = catalog.search(Pattern.compile("bin"), first.nextAfter(), 2);
+        assertEquals(List.of("bb.bin", "c.bin"), second.files().stream().map(FileInfo::name).toList());
+
+        // The cursor name itself may be gone
+        catalog.remove("owner", "c.bin");
+        SearchResult third = catalog.search(Pattern.compile("bin"), second.nextAfter(), 2);
+        assertEquals(List.of("d.bin"), third.files().stream().map(FileInfo::name).toList());
+        assertNull(third.nextAfter());
+    }
+}
@@ -0,0 +1,77 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A page is limited in file names, the FILE lines of a popular name must not list every peer sharing it.
+ */
+@Timeout(30)
+class SearchPageTest {
+    private static final int OWNERS = RequestHandler.MAX_OWNERS_PER_FILE + 10;
+
+    private Server server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    void sendsOnlyTheFirstOwnersOfEachName() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server(port, ServerMode.SELECTOR);
+        server.start();
+        for (int owner = 0; owner < OWNERS; owner++) {
+            server.addToFileList(new FileInfo("popular.bin", "10.0.0." + owner, 10L));
+            server.addToFileList(new FileInfo("rare.bin", "10.0.0." + owner, 10L));
+        }
+        server.addToFileList(new FileInfo("single.bin", "10.0.1.1", 10L));
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+            writer.println("SEARCHPAGE - 2 \\.bin$");
+            List<String> lines = readUntilEnd(reader);
+            assertEquals(2 * RequestHandler.MAX_OWNERS_PER_FILE, lines.size() - 1);
+            assertTrue(lines.getFirst().startsWith("FILE popular.bin 10.0.0.0 "), lines.getFirst());
+            assertEquals("ENDSEARCH >rare.bin 3", lines.getLast());
+
+            writer.println("SEARCHPAGE >rare.bin 2 \\.bin$");
+            assertEquals(List.of("FILE single.bin 10.0.1.1 10", "ENDSEARCH - -1"), readUntilEnd(reader));
+
+            // Every owner is in the group line
+            writer.println("SEARCHGROUPS - 1 popular");
+            lines = readUntilEnd(reader);
+            assertEquals(2, lines.size());
+            assertEquals(OWNERS, lines.getFirst().split(" ")[2].split(",").length);
+        }
+    }
+
+    private static List<String> readUntilEnd(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        do {
+            line = reader.readLine();
+            assertNotNull(line);
+            lines.add(line);
+        } while (!line.startsWith("ENDSEARCH"));
+        return lines;
+    }
+}
@@ -0,0 +1,126 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Holds many client connections open on each {@link ServerMode} and measures how many requests per second
+ * the server answers while they are open. The numbers are printed, the assertions only check that every
+ * connection and request was answered.
+ */
+class ServerLoadTest {
+    private static final int HELD_CONNECTIONS = 1000;
+    private static final int BUSY_CONNECTIONS = 16;
+    private static final int REQUESTS_PER_CONNECTION = 1000;
+
+    private final PrintStream out = System.out;
+    private final List<Connection> connections = new ArrayList<>();
+    private Server server;
+
+    private record Connection(Socket socket, BufferedReader reader, PrintWriter writer) implements Closeable {
+        static Connection open(int port) throws IOException {
+            Socket socket = new Socket("127.0.0.1", port);
+            return new Connection(socket,
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                    new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true));
+        }
+
+        String request(String request) throws IOException {
+            writer.println(request);
+            return reader.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @BeforeEach
+    void silenceServer() {
+        // The server logs every request, which would be most of what is measured
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        for (Connection connection : connections) connection.close();
+        if (server != null) server.stop();
+        System.setOut(out);
+    }
+
+    @Test
+    @Timeout(120)
+    void threadPerClientModeAnswersUnderLoad() throws Exception {
+        runLoad(ServerMode.THREAD_PER_CLIENT);
+    }
+
+    @Test
+    @Timeout(120)
+    void selectorModeAnswersUnderLoad() throws Exception {
+        runLoad(ServerMode.SELECTOR);
+    }
+
+    private void runLoad(ServerMode mode) throws Exception {
+        int port = freePort();
+        server = new Server(port, mode);
+        server.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < HELD_CONNECTIONS; i++) {
+            Connection connection = Connection.open(port);
+            connections.add(connection);
+            assertEquals("CONFIRMJOIN", connection.request("JOIN 127.0.0.1"));
+        }
+        double connectSeconds = (System.nanoTime() - start) / 1e9;
+        int threads = Thread.activeCount();
+
+        List<Callable<Integer>> clients = new ArrayList<>();
+        for (int c = 0; c < BUSY_CONNECTIONS; c++) {
+            Connection connection = connections.get(c);
+            int client = c;
+            clients.add(() -> {
+                int confirmed = 0;
+                for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+                    String fileName = "load-" + client + "-" + i + ".bin";
+                    if (("CONFIRMCREATEFILE " + fileName).equals(connection.request("CREATEFILE " + fileName + " 100"))) {
+                        confirmed++;
+                    }
+                }
+                return confirmed;
+            });
+        }
+        start = System.nanoTime();
+        int confirmed = 0;
+        try (ExecutorService executor = Executors.newFixedThreadPool(BUSY_CONNECTIONS)) {
+            for (Future<Integer> result : executor.invokeAll(clients)) confirmed += result.get();
+        }
+        double requestSeconds = (System.nanoTime() - start) / 1e9;
+
+        out.printf("%s: %d connections held (joined in %.2fs, %d threads), %.0f requests/s from %d connections%n",
+                mode, HELD_CONNECTIONS, connectSeconds, threads, confirmed / requestSeconds, BUSY_CONNECTIONS);
+        assertEquals(BUSY_CONNECTIONS * REQUESTS_PER_CONNECTION, confirmed);
+        assertEquals(BUSY_CONNECTIONS * REQUESTS_PER_CONNECTION, server.getFileCatalog().search(Pattern.compile("^load-")).size());
+        // Every held connection is still served after the load
+        assertEquals("CONFIRMLEAVE", connections.getLast().request("LEAVE"));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
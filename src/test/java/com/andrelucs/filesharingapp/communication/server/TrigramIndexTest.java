@@ -0,0 +1,39 @@
+package com.andrelucs.filesharingapp.communication.server;
+
+import com.andrelucs.filesharingapp.communication.FileInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrigramIndexTest {
+
+    @Test
+    void keepsEscapedPunctuationAsLiterals() {
+        assertEquals(List.of("song.mp3"), TrigramIndex.literalSegments("song\\.mp3"));
+        assertEquals(List.of("a\\b"), TrigramIndex.literalSegments("a\\\\b"));
+        assertEquals(List.of("track", "-01"), TrigramIndex.literalSegments("track\\d+\\-01"));
+        assertEquals(List.of("mix", "tape"), TrigramIndex.literalSegments("mix\\stape"));
+    }
+
+    @Test
+    void doesNotAnalyseEscapesWithArguments() {
+        for (String regex : List.of("\\x41bcd", "caf\\u00e9s", "\\0101bcd", "\\cAbcd", "\\N{LATIN SMALL LETTER A}bcd",
+                "\\p{L}bcd", "(?<n>abc)\\k<n>", "abc\\hdef", "abc\\Rdef", "(abc)\\1", "\\Qa.b\\E")) {
+            assertNull(TrigramIndex.literalSegments(regex), regex);
+        }
+    }
+
+    @Test
+    void searchesWithEscapesFindTheFiles() {
+        FileCatalog catalog = new FileCatalog();
+        catalog.add(new FileInfo("Abcd.txt", "owner", 10L));
+        catalog.add(new FileInfo("cafés.txt", "owner", 10L));
+        assertEquals(1, catalog.search(Pattern.compile("\\x41bcd")).size());
+        assertEquals(1, catalog.search(Pattern.compile("\\0101bcd")).size());
+        assertEquals(1, catalog.search(Pattern.compile("caf\\u00e9s")).size());
+        assertEquals(1, catalog.search(Pattern.compile("\\p{Lu}bcd")).size());
+    }
+}